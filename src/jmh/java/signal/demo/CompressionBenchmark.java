@@ -0,0 +1,62 @@
+package signal.demo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+* The compression stage in front of Session.encrypt, on JSON-like text, which it deflates, and on random bytes, which
+* stand in for JPEG and other compressed data and should be turned away after a look at the first 16 KB.
+* */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CompressionBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    private int size;
+
+    @Param({"text", "random"})
+    private String content;
+
+    private byte[] payload;
+    private byte[] compressed;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(size);
+
+        if (content.equals("text")) {
+            StringBuilder text = new StringBuilder(size + 64);
+            while (text.length() < size) {
+                text.append("{\"from\":\"Peer-").append(random.nextInt(1000))
+                        .append("\",\"body\":\"See you at ").append(random.nextInt(24)).append(":00\"},");
+            }
+            payload = text.substring(0, size).getBytes(StandardCharsets.UTF_8);
+        } else {
+            payload = new byte[size];
+            random.nextBytes(payload);
+        }
+
+        compressed = Compression.compress(payload);
+    }
+
+    @Benchmark
+    public int choose() {
+        return Compression.choose(payload, 0, payload.length);
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return Compression.compress(payload);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws Exception {
+        return Compression.decompress(compressed);
+    }
+}
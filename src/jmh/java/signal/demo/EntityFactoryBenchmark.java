@@ -0,0 +1,95 @@
+package signal.demo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+* Startup time for 10k and 100k entities: one at a time with the Entity constructor, in parallel through
+* EntityFactory (eager or lazy signed prekeys), and restored from a snapshot. lazyPreKeys only applies to the factory,
+* so the constructor runs in a state of its own without it.
+* */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class EntityFactoryBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Addresses {
+
+        @Param({"10000", "100000"})
+        private int count;
+
+        private List<String> addresses;
+
+        @Setup
+        public void setUp() {
+            addresses = addresses(count);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Factory {
+
+        @Param({"10000", "100000"})
+        private int count;
+
+        @Param({"true", "false"})
+        private boolean lazyPreKeys;
+
+        private List<String> addresses;
+        private File snapshot;
+
+        @Setup
+        public void setUp() throws IOException {
+            addresses = addresses(count);
+
+            snapshot = File.createTempFile("entities", ".snapshot");
+            snapshot.deleteOnExit();
+
+            EntityFactory factory = new EntityFactory(lazyPreKeys);
+            factory.saveSnapshot(factory.create(addresses), snapshot);
+        }
+
+        @TearDown
+        public void tearDown() {
+            snapshot.delete();
+        }
+    }
+
+    @Benchmark
+    public List<Entity> sequentialConstructor(Addresses state) throws Exception {
+        List<Entity> entities = new ArrayList<>(state.count);
+
+        for (String address : state.addresses) {
+            entities.add(new Entity(1, 1, address));
+        }
+
+        return entities;
+    }
+
+    @Benchmark
+    public List<Entity> parallelFactory(Factory state) {
+        return new EntityFactory(state.lazyPreKeys).create(state.addresses);
+    }
+
+    @Benchmark
+    public List<Entity> restoreSnapshot(Factory state) throws IOException {
+        return new EntityFactory(state.lazyPreKeys).restoreSnapshot(state.snapshot);
+    }
+
+    private static List<String> addresses(int count) {
+        List<String> addresses = new ArrayList<>(count);
+
+        for (int i = 0; i < count; i++) {
+            addresses.add("Entity-" + i);
+        }
+        return addresses;
+    }
+}
@@ -0,0 +1,72 @@
+package signal.demo.group;
+
+import org.openjdk.jmh.annotations.*;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.GroupCipher;
+import org.whispersystems.libsignal.groups.GroupSessionBuilder;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+* The GroupDemo flow at different group and message sizes: one sender encrypts a message once with its sender key and
+* every other member decrypts it. Each member has its own InMemorySenderKeyStore, as it would on its own device.
+*
+* "encrypt" is the sender's cost alone; "encryptAndDeliver" adds one decrypt per receiving member.
+* */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class GroupCipherBenchmark {
+
+    @Param({"2", "10", "100", "1000"})
+    private int groupSize;
+
+    @Param({"16", "1024", "65536", "1048576"})
+    private int messageSize;
+
+    private GroupCipher senderCipher;
+    private GroupCipher[] receiverCiphers;
+    private byte[] message;
+
+    @Setup
+    public void setUp() throws Exception {
+        SenderKeyName senderKeyName = new SenderKeyName("Political Discussions",
+                new SignalProtocolAddress("Charlie", 1));
+
+        InMemorySenderKeyStore senderStore = new InMemorySenderKeyStore();
+        SenderKeyDistributionMessage distributionMessage =
+                new GroupSessionBuilder(senderStore).create(senderKeyName);
+        senderCipher = new GroupCipher(senderStore, senderKeyName);
+
+        receiverCiphers = new GroupCipher[groupSize - 1];
+        for (int i = 0; i < receiverCiphers.length; i++) {
+            InMemorySenderKeyStore receiverStore = new InMemorySenderKeyStore();
+            new GroupSessionBuilder(receiverStore).process(senderKeyName, distributionMessage);
+            receiverCiphers[i] = new GroupCipher(receiverStore, senderKeyName);
+        }
+
+        message = new byte[messageSize];
+        new Random(messageSize).nextBytes(message);
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        return senderCipher.encrypt(message);
+    }
+
+    @Benchmark
+    public byte[] encryptAndDeliver() throws Exception {
+        byte[] ciphertext = senderCipher.encrypt(message);
+        byte[] plaintext = null;
+
+        for (GroupCipher receiverCipher : receiverCiphers) {
+            plaintext = receiverCipher.decrypt(ciphertext);
+        }
+        return plaintext;
+    }
+}
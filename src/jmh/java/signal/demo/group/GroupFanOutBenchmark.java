@@ -0,0 +1,67 @@
+package signal.demo.group;
+
+import org.openjdk.jmh.annotations.*;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+import signal.demo.Entity;
+import signal.demo.EntityFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+* One group message from one sender, delivered through GroupMessagingService to every other member of the group.
+*
+* Members are created lazily by EntityFactory, since only their sender key stores are used here.
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class GroupFanOutBenchmark {
+
+    private static final String GROUP_ID = "Political Discussions";
+
+    @Param({"10", "100", "1000", "10000"})
+    private int groupSize;
+
+    @Param({"1024"})
+    private int messageSize;
+
+    private GroupMessagingService service;
+    private Entity sender;
+    private List<Entity> members;
+    private byte[] message;
+
+    @Setup
+    public void setUp() {
+        List<String> names = new ArrayList<>(groupSize);
+        for (int i = 0; i < groupSize; i++) {
+            names.add("Member-" + i);
+        }
+
+        members = new EntityFactory(true).create(names);
+        sender = members.get(0);
+        service = new GroupMessagingService();
+
+        SenderKeyName senderKeyName = GroupMessagingService.senderKeyName(sender, GROUP_ID);
+        SenderKeyDistributionMessage distributionMessage = service.createSenderKey(sender, GROUP_ID);
+
+        for (Entity member : members.subList(1, groupSize)) {
+            service.processSenderKey(member, senderKeyName, distributionMessage);
+        }
+
+        message = new byte[messageSize];
+        new Random(messageSize).nextBytes(message);
+    }
+
+    @Benchmark
+    public int send() {
+        return service.send(sender, GROUP_ID, message, members, (member, plaintext) -> { })
+                .join()
+                .getDelivered();
+    }
+}
@@ -0,0 +1,84 @@
+package signal.demo.group;
+
+import org.openjdk.jmh.annotations.*;
+import signal.demo.Entity;
+import signal.demo.EntityFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+* Where pairwise fan-out stops being cheaper than sender keys.
+*
+* "pairwise" and "senderKey" pin HybridGroupSender to one mode through its cost setting; "hybrid" uses the default
+* cost and picks by itself. With churn, one member leaves and rejoins before every message, which costs sender keys a
+* rotation and a full redistribution each time. The group size at which senderKey overtakes pairwise without churn is
+* what HybridGroupSender.DEFAULT_SENDER_KEY_MESSAGE_COST should be.
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class HybridGroupBenchmark {
+
+    private static final String GROUP_ID = "Political Discussions";
+
+    @Param({"2", "4", "8", "16", "32", "64", "128"})
+    private int groupSize;
+
+    @Param({"pairwise", "senderKey", "hybrid"})
+    private String mode;
+
+    @Param({"false", "true"})
+    private boolean churn;
+
+    private HybridGroupSender sender;
+    private Entity churningMember;
+    private byte[] message;
+
+    @Setup
+    public void setUp() {
+        List<String> names = new ArrayList<>(groupSize);
+        for (int i = 0; i < groupSize; i++) {
+            names.add("Member-" + i);
+        }
+
+        List<Entity> members = new EntityFactory(true).create(names);
+
+        double senderKeyMessageCost;
+        switch (mode) {
+            case "pairwise":
+                senderKeyMessageCost = Double.POSITIVE_INFINITY;
+                break;
+            case "senderKey":
+                senderKeyMessageCost = Double.NEGATIVE_INFINITY;
+                break;
+            default:
+                senderKeyMessageCost = HybridGroupSender.DEFAULT_SENDER_KEY_MESSAGE_COST;
+        }
+
+        SenderKeyDistributor distributor = new SenderKeyDistributor(new GroupMessagingService(), new PairwiseSessions());
+        sender = new HybridGroupSender(members.get(0), GROUP_ID, distributor, senderKeyMessageCost);
+
+        for (Entity member : members) {
+            sender.addMember(member);
+        }
+
+        churningMember = members.get(groupSize - 1);
+        message = new byte[256];
+        new Random(groupSize).nextBytes(message);
+    }
+
+    @Benchmark
+    public int send() {
+        if (churn) {
+            sender.removeMember(churningMember);
+            sender.addMember(churningMember);
+        }
+
+        return sender.send(message, (member, plaintext) -> { }).join().getDelivered();
+    }
+}
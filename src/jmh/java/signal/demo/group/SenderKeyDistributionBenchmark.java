@@ -0,0 +1,63 @@
+package signal.demo.group;
+
+import org.openjdk.jmh.annotations.*;
+import signal.demo.Entity;
+import signal.demo.EntityFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* A new member joining a group, through SenderKeyDistributor.
+*
+* "welcome" is the whole exchange: every existing member's sender key sent pairwise to the new member, and theirs
+* sent to everyone. "distribute" is only the new member's key going out. Both include setting up the pairwise
+* sessions, since a new member has none yet. Every iteration brings in a fresh member.
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class SenderKeyDistributionBenchmark {
+
+    private static final String GROUP_ID = "Political Discussions";
+
+    @Param({"100", "1000", "5000"})
+    private int groupSize;
+
+    private final AtomicInteger joined = new AtomicInteger();
+    private EntityFactory factory;
+    private SenderKeyDistributor distributor;
+    private List<Entity> members;
+    private Entity newMember;
+
+    @Setup
+    public void setUp() {
+        List<String> names = new ArrayList<>(groupSize);
+        for (int i = 0; i < groupSize; i++) {
+            names.add("Member-" + i);
+        }
+
+        factory = new EntityFactory(true);
+        members = factory.create(names);
+        distributor = new SenderKeyDistributor(new GroupMessagingService(), new PairwiseSessions());
+    }
+
+    @Setup(Level.Iteration)
+    public void newMember() throws Exception {
+        newMember = factory.create("Newcomer-" + joined.incrementAndGet());
+    }
+
+    @Benchmark
+    public int welcome() {
+        return distributor.welcome(newMember, GROUP_ID, members).join().getDelivered();
+    }
+
+    @Benchmark
+    public int distribute() {
+        return distributor.distribute(newMember, GROUP_ID, members).join().getDelivered();
+    }
+}
@@ -0,0 +1,69 @@
+package signal.demo.group;
+
+import org.openjdk.jmh.annotations.*;
+import signal.demo.Entity;
+import signal.demo.EntityFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+* A burst of members leaving and rejoining, handled by SenderKeyRotationScheduler. The time until the scheduler has
+* settled should grow with the group size, not with the size of the burst, since the whole burst is one re-key.
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class SenderKeyRotationBenchmark {
+
+    private static final String GROUP_ID = "Political Discussions";
+
+    @Param({"1000", "5000"})
+    private int groupSize;
+
+    @Param({"1", "100", "1000"})
+    private int burst;
+
+    private SenderKeyRotationScheduler scheduler;
+    private Entity sender;
+    private List<Entity> members;
+
+    @Setup
+    public void setUp() {
+        List<String> names = new ArrayList<>(groupSize);
+        for (int i = 0; i < groupSize; i++) {
+            names.add("Member-" + i);
+        }
+
+        members = new EntityFactory(true).create(names);
+        sender = members.get(0);
+
+        scheduler = new SenderKeyRotationScheduler(
+                new SenderKeyDistributor(new GroupMessagingService(), new PairwiseSessions()));
+        scheduler.track(sender, GROUP_ID, members);
+        scheduler.settled(sender, GROUP_ID).join();
+    }
+
+    @TearDown
+    public void tearDown() {
+        scheduler.close();
+    }
+
+    @Benchmark
+    public long leaveAndRejoin() {
+        List<Entity> leaving = members.subList(1, Math.min(burst + 1, groupSize));
+
+        for (Entity member : leaving) {
+            scheduler.memberLeft(sender, GROUP_ID, member);
+        }
+        for (Entity member : leaving) {
+            scheduler.memberJoined(sender, GROUP_ID, member);
+        }
+
+        scheduler.settled(sender, GROUP_ID).join();
+        return scheduler.getRotationCount();
+    }
+}
@@ -0,0 +1,71 @@
+package signal.demo.group;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.GroupCipher;
+import org.whispersystems.libsignal.groups.GroupSessionBuilder;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* Group messages per second through two shared InMemorySenderKeyStores, one for the sending side and one for the
+* receiving side. Every thread sends in its own group, so threads only meet in the stores.
+*
+* Run main() for 1 to 64 threads.
+* */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SenderKeyStoreBenchmark {
+
+    private static final byte[] MESSAGE = "Hi guys! This is Charlie!!".getBytes(StandardCharsets.UTF_8);
+
+    @State(Scope.Benchmark)
+    public static class Stores {
+        private final AtomicInteger groups = new AtomicInteger();
+        private final InMemorySenderKeyStore senderStore = new InMemorySenderKeyStore();
+        private final InMemorySenderKeyStore receiverStore = new InMemorySenderKeyStore();
+    }
+
+    @State(Scope.Thread)
+    public static class Group {
+        private GroupCipher senderCipher;
+        private GroupCipher receiverCipher;
+
+        @Setup
+        public void setUp(Stores stores) throws Exception {
+            SenderKeyName senderKeyName = new SenderKeyName("Group-" + stores.groups.incrementAndGet(),
+                    new SignalProtocolAddress("Charlie", 1));
+
+            SenderKeyDistributionMessage distributionMessage =
+                    new GroupSessionBuilder(stores.senderStore).create(senderKeyName);
+            new GroupSessionBuilder(stores.receiverStore).process(senderKeyName, distributionMessage);
+
+            senderCipher = new GroupCipher(stores.senderStore, senderKeyName);
+            receiverCipher = new GroupCipher(stores.receiverStore, senderKeyName);
+        }
+    }
+
+    @Benchmark
+    public byte[] encryptAndDecrypt(Group group) throws Exception {
+        return group.receiverCipher.decrypt(group.senderCipher.encrypt(MESSAGE));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            new Runner(new OptionsBuilder()
+                    .include(SenderKeyStoreBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .forks(1)
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package signal.demo.one_on_one;
+
+import org.openjdk.jmh.annotations.*;
+import signal.demo.Entity;
+import signal.demo.EntityFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+* One message to each of many open conversations at once through Session.encryptAsync, from a single caller thread.
+* Conversations take no thread of their own, so the number of them is bounded by memory, not threads.
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AsyncSessionBenchmark {
+
+    private static final String MESSAGE = "Hello from Alice";
+
+    @Param({"100", "1000", "10000"})
+    private int conversations;
+
+    private List<Session> sessions;
+
+    @Setup
+    public void setUp() {
+        List<String> names = new ArrayList<>(conversations + 1);
+        for (int i = 0; i <= conversations; i++) {
+            names.add("Peer-" + i);
+        }
+
+        List<Entity> entities = new EntityFactory(true).create(names);
+        Entity alice = entities.get(0);
+
+        sessions = new ArrayList<>(conversations);
+        for (Entity peer : entities.subList(1, entities.size())) {
+            sessions.add(new Session(alice.getStore(), peer.getPreKey(), peer.getAddress()));
+        }
+
+        sendToAll();
+    }
+
+    @Benchmark
+    public void sendToAll() {
+        CompletableFuture<?>[] sent = new CompletableFuture[sessions.size()];
+
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = sessions.get(i).encryptAsync(MESSAGE);
+        }
+
+        CompletableFuture.allOf(sent).join();
+    }
+}
@@ -0,0 +1,95 @@
+package signal.demo.one_on_one;
+
+import org.openjdk.jmh.annotations.*;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import signal.demo.Entity;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+* Attachments from 16 B to 16 MB.
+*
+* "encryptFile" is the whole Session.encryptFile path: read the file, encrypt it chunk by chunk and send the pointer
+* in a Signal message. "encrypt" and "decrypt" are AttachmentCipher alone, from memory to memory. Ciphertext and
+* plaintext outputs are thrown away so only the cipher work is measured.
+* */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AttachmentBenchmark {
+
+    @Param({"16", "1024", "65536", "1048576", "16777216"})
+    private int attachmentSize;
+
+    private byte[] plaintext;
+    private byte[] ciphertext;
+    private AttachmentPointer pointer;
+    private File plaintextFile;
+    private Session aliceToBob;
+
+    @Setup
+    public void setUp() throws Exception {
+        plaintext = new byte[attachmentSize];
+        new Random(attachmentSize).nextBytes(plaintext);
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        pointer = AttachmentCipher.encrypt(Channels.newChannel(new ByteArrayInputStream(plaintext)),
+                Channels.newChannel(encrypted));
+        ciphertext = encrypted.toByteArray();
+
+        plaintextFile = File.createTempFile("attachment", ".bin");
+        Files.write(plaintextFile.toPath(), plaintext);
+
+        Entity alice = new Entity(1, 314159, "Alice");
+        Entity bob = new Entity(2, 271828, "Bob");
+        aliceToBob = new Session(alice.getStore(), bob.getPreKey(), bob.getAddress());
+    }
+
+    @TearDown
+    public void tearDown() {
+        plaintextFile.delete();
+    }
+
+    @Benchmark
+    public AttachmentPointer encrypt() throws Exception {
+        return AttachmentCipher.encrypt(Channels.newChannel(new ByteArrayInputStream(plaintext)), new NullChannel());
+    }
+
+    @Benchmark
+    public void decrypt() throws Exception {
+        AttachmentCipher.decrypt(pointer, Channels.newChannel(new ByteArrayInputStream(ciphertext)), new NullChannel());
+    }
+
+    @Benchmark
+    public CiphertextMessage encryptFile() {
+        return aliceToBob.encryptFile(plaintextFile, new NullChannel());
+    }
+
+    private static class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int written = src.remaining();
+            src.position(src.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package signal.demo.one_on_one;
+
+import org.openjdk.jmh.annotations.*;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import signal.demo.Entity;
+import signal.demo.EntityFactory;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+* One attachment sent to many contacts. "encryptFileToEach" runs Session.encryptFile once per contact, as the demo
+* used to. "putOnceSendToEach" encrypts it once into a fresh AttachmentStore and sends each contact only the pointer.
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class AttachmentFanOutBenchmark {
+
+    @Param({"65536", "1048576", "16777216"})
+    private int attachmentSize;
+
+    @Param({"50"})
+    private int contacts;
+
+    private File plaintextFile;
+    private File storeDirectory;
+    private AttachmentStore store;
+    private List<Session> sessions;
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] plaintext = new byte[attachmentSize];
+        new Random(attachmentSize).nextBytes(plaintext);
+
+        plaintextFile = File.createTempFile("attachment", ".bin");
+        Files.write(plaintextFile.toPath(), plaintext);
+        storeDirectory = Files.createTempDirectory("attachments").toFile();
+
+        List<String> names = new ArrayList<>(contacts + 1);
+        for (int i = 0; i <= contacts; i++) {
+            names.add("Peer-" + i);
+        }
+
+        List<Entity> entities = new EntityFactory(true).create(names);
+        Entity alice = entities.get(0);
+
+        sessions = new ArrayList<>(contacts);
+        for (Entity peer : entities.subList(1, entities.size())) {
+            sessions.add(new Session(alice.getStore(), peer.getPreKey(), peer.getAddress()));
+        }
+    }
+
+    /* A store that hasn't seen the file, so every invocation pays for one encryption */
+    @Setup(Level.Invocation)
+    public void freshStore() {
+        store = new AttachmentStore(new File(storeDirectory, Long.toString(System.nanoTime())));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        plaintextFile.delete();
+        Files.walk(storeDirectory.toPath())
+                .sorted((a, b) -> b.compareTo(a))
+                .forEach(path -> path.toFile().delete());
+    }
+
+    @Benchmark
+    public CiphertextMessage encryptFileToEach() {
+        CiphertextMessage last = null;
+
+        for (Session session : sessions) {
+            last = session.encryptFile(plaintextFile, new NullChannel());
+        }
+        return last;
+    }
+
+    @Benchmark
+    public CiphertextMessage putOnceSendToEach() {
+        AttachmentStore.Attachment attachment = store.put(plaintextFile);
+        CiphertextMessage last = null;
+
+        for (Session session : sessions) {
+            last = session.encryptAttachment(attachment);
+        }
+        return last;
+    }
+
+    private static class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int written = src.remaining();
+            src.position(src.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
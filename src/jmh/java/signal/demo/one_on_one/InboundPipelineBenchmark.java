@@ -0,0 +1,130 @@
+package signal.demo.one_on_one;
+
+import org.openjdk.jmh.annotations.*;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import signal.demo.Entity;
+import signal.demo.EntityFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+* A burst of messages from many peers to Bob, shuffled and with some sent twice, as a flaky network might deliver
+* them. Measures the time until Bob's InboundPipeline has dealt with all of them.
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class InboundPipelineBenchmark {
+
+    private static final String MESSAGE = "Hello from a peer";
+
+    @Param({"10", "100"})
+    private int peers;
+
+    @Param({"100"})
+    private int messagesPerPeer;
+
+    @Param({"0", "10"})
+    private int duplicatePercent;
+
+    private InboundPipeline pipeline;
+    private List<Entity> senders;
+    private List<Session> sessions;
+    private List<SignalProtocolAddress> burstFrom;
+    private List<Envelope> burst;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<String> names = new ArrayList<>(peers + 1);
+        for (int i = 0; i <= peers; i++) {
+            names.add("Peer-" + i);
+        }
+
+        List<Entity> entities = new EntityFactory(true).create(names);
+        Entity bob = entities.get(0);
+        senders = entities.subList(1, entities.size());
+
+        pipeline = new InboundPipeline(bob.getStore(), ForkJoinPool.commonPool(), new InboundPipeline.Listener() {
+            @Override
+            public void received(SignalProtocolAddress from, byte[] plaintext) {
+            }
+
+            @Override
+            public void failed(SignalProtocolAddress from, Envelope envelope, Exception e) {
+            }
+        });
+
+        /*
+        * Bob answers every peer once, so everything after that is a SignalMessage.
+        * */
+        sessions = new ArrayList<>(peers);
+        for (Entity sender : senders) {
+            Session toBob = new Session(sender.getStore(), bob.getPreKey(), bob.getAddress());
+            Session fromSender = new Session(bob.getStore(), null, sender.getAddress());
+
+            fromSender.decrypt(Envelope.of(toBob.encrypt(MESSAGE)));
+            toBob.decrypt(Envelope.of(fromSender.encrypt("Hi")));
+            sessions.add(toBob);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void prepareBurst() throws Exception {
+        Random random = new Random();
+        List<Integer> order = new ArrayList<>();
+
+        burst = new ArrayList<>();
+        burstFrom = new ArrayList<>();
+
+        for (int i = 0; i < senders.size(); i++) {
+            for (int m = 0; m < messagesPerPeer; m++) {
+                burst.add(Envelope.of(sessions.get(i).encrypt(MESSAGE)));
+                burstFrom.add(senders.get(i).getAddress());
+                order.add(burst.size() - 1);
+
+                if (random.nextInt(100) < duplicatePercent) {
+                    order.add(burst.size() - 1);
+                }
+            }
+        }
+
+        Collections.shuffle(order, random);
+
+        List<Envelope> shuffled = new ArrayList<>(order.size());
+        List<SignalProtocolAddress> shuffledFrom = new ArrayList<>(order.size());
+        for (int index : order) {
+            shuffled.add(burst.get(index));
+            shuffledFrom.add(burstFrom.get(index));
+        }
+
+        burst = shuffled;
+        burstFrom = shuffledFrom;
+    }
+
+    @Benchmark
+    public long deliverBurst() {
+        long before = processed();
+
+        for (int i = 0; i < burst.size(); i++) {
+            pipeline.receive(burstFrom.get(i), burst.get(i));
+        }
+
+        while (processed() - before < burst.size()) {
+            LockSupport.parkNanos(10_000);
+        }
+
+        return pipeline.getDuplicateCount();
+    }
+
+    private long processed() {
+        return pipeline.getDecryptedCount() + pipeline.getDuplicateCount() + pipeline.getFailedCount();
+    }
+}
@@ -0,0 +1,140 @@
+package signal.demo.one_on_one;
+
+import org.openjdk.jmh.annotations.*;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.impl.InMemorySignalProtocolStore;
+import org.whispersystems.libsignal.util.KeyHelper;
+import signal.demo.Entity;
+import signal.demo.sample_templates.MySignalKeyStore;
+import signal.demo.store.ConcurrentSignalProtocolStore;
+import signal.demo.store.LogSignalProtocolStore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* Session.encrypt and Session.decrypt from 16 B to 16 MB, with the sender's session kept in each of the store
+* implementations. The receiver is always an Entity. Messages go through both the String and the ByteBuffer API, with
+* and without compression. The messages are all one letter, so compressed they barely cost anything to encrypt.
+*
+* Every thread has its own sender and receiver, so -PjmhThreads=<n> measures how the pair scales.
+* */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MessageSizeBenchmark {
+
+    private static final AtomicInteger PAIRS = new AtomicInteger();
+
+    @Param({"16", "1024", "65536", "1048576", "16777216"})
+    private int messageSize;
+
+    @Param({"memory", "concurrent", "jdbc", "log"})
+    private String store;
+
+    @Param({"false", "true"})
+    private boolean compression;
+
+    private SignalProtocolStore senderStore;
+    private File logFile;
+    private Session senderToReceiver;
+    private Session receiverToSender;
+    private String message;
+    private ByteBuffer plaintext;
+    private ByteBuffer ciphertext;
+    private ByteBuffer decrypted;
+
+    @Setup
+    public void setUp() throws Exception {
+        int pair = PAIRS.incrementAndGet();
+        IdentityKeyPair identityKeyPair = KeyHelper.generateIdentityKeyPair();
+        int registrationId = KeyHelper.generateRegistrationId(false);
+
+        switch (store) {
+            case "memory":
+                senderStore = new InMemorySignalProtocolStore(identityKeyPair, registrationId);
+                break;
+            case "concurrent":
+                senderStore = new ConcurrentSignalProtocolStore(identityKeyPair, registrationId);
+                break;
+            case "jdbc":
+                senderStore = new MySignalKeyStore("jdbc:h2:mem:bench-" + pair, identityKeyPair, registrationId);
+                break;
+            case "log":
+                logFile = File.createTempFile("bench-" + pair, ".log");
+                logFile.delete();
+                senderStore = new LogSignalProtocolStore(logFile, identityKeyPair, registrationId);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown store: " + store);
+        }
+
+        SignalProtocolAddress senderAddress = new SignalProtocolAddress("Sender-" + pair, 1);
+        Entity receiver = new Entity(pair, pair, "Receiver-" + pair);
+
+        senderToReceiver = new Session(senderStore, receiver.getPreKey(), receiver.getAddress(),
+                ForkJoinPool.commonPool(), compression);
+
+        /*
+        * The receiver only ever decrypts, so it never needs the sender's bundle.
+        * */
+        receiverToSender = new Session(receiver.getStore(), null, senderAddress, ForkJoinPool.commonPool(),
+                compression);
+        receiverToSender.decrypt(senderToReceiver.encrypt("hello"));
+
+        char[] chars = new char[messageSize];
+        Arrays.fill(chars, 'a');
+        message = new String(chars);
+
+        plaintext = ByteBuffer.allocateDirect(messageSize);
+        plaintext.put(message.getBytes(StandardCharsets.UTF_8)).flip();
+        ciphertext = ByteBuffer.allocateDirect(Session.maxCiphertextLength(messageSize));
+        decrypted = ByteBuffer.allocateDirect(Session.maxCiphertextLength(messageSize));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        if (senderStore instanceof Closeable) {
+            ((Closeable) senderStore).close();
+        }
+        if (logFile != null) {
+            logFile.delete();
+        }
+    }
+
+    @Benchmark
+    public CiphertextMessage encrypt() throws Exception {
+        return senderToReceiver.encrypt(message);
+    }
+
+    @Benchmark
+    public String encryptAndDecrypt() throws Exception {
+        return receiverToSender.decrypt(senderToReceiver.encrypt(message));
+    }
+
+    /*
+    * The same round trip through the ByteBuffer API, with direct buffers reused across messages.
+    * */
+    @Benchmark
+    public int encryptAndDecryptBuffers() throws Exception {
+        plaintext.rewind();
+        ciphertext.clear();
+        decrypted.clear();
+
+        int type = senderToReceiver.encrypt(plaintext, ciphertext);
+        ciphertext.flip();
+
+        return receiverToSender.decrypt(type, ciphertext, decrypted);
+    }
+}
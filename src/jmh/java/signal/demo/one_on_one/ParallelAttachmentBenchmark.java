@@ -0,0 +1,87 @@
+package signal.demo.one_on_one;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/*
+* AttachmentCipher on a 256 MB attachment of random bytes, with pools of 1 to 32 workers, to see how close chunk
+* encryption and decryption come to scaling with cores. The workers seal or open and hash the chunks. Outputs are
+* thrown away, so the single-threaded read on the calling thread is what is left once there are enough workers.
+*
+* Measured so far only on a single-core machine, with one worker: about 70 MB/s each way, the same whether the
+* hashing runs on the calling thread or in the workers, since the total work is the same. Scaling with more cores
+* has not been measured yet.
+* */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ParallelAttachmentBenchmark {
+
+    @Param({"268435456"})
+    private int attachmentSize;
+
+    @Param({"1", "2", "4", "8", "16", "32"})
+    private int workers;
+
+    private byte[] plaintext;
+    private byte[] ciphertext;
+    private AttachmentPointer pointer;
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp() throws Exception {
+        plaintext = new byte[attachmentSize];
+        new Random(attachmentSize).nextBytes(plaintext);
+        pool = new ForkJoinPool(workers);
+
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream(attachmentSize + attachmentSize / 1024);
+        pointer = AttachmentCipher.encrypt(Channels.newChannel(new ByteArrayInputStream(plaintext)),
+                Channels.newChannel(encrypted), AttachmentCipher.DEFAULT_CHUNK_SIZE, pool);
+        ciphertext = encrypted.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public AttachmentPointer encrypt() throws Exception {
+        return AttachmentCipher.encrypt(Channels.newChannel(new ByteArrayInputStream(plaintext)), new NullChannel(),
+                AttachmentCipher.DEFAULT_CHUNK_SIZE, pool);
+    }
+
+    @Benchmark
+    public byte[] decrypt() throws Exception {
+        return AttachmentCipher.decrypt(pointer, Channels.newChannel(new ByteArrayInputStream(ciphertext)),
+                new NullChannel(), pool);
+    }
+
+    private static class NullChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int written = src.remaining();
+            src.position(src.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
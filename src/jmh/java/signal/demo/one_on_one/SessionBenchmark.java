@@ -0,0 +1,79 @@
+package signal.demo.one_on_one;
+
+import org.openjdk.jmh.annotations.*;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import signal.demo.Entity;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/*
+* Alternating traffic between Alice and Bob: every message switches direction.
+*
+* "alternating" is the current Session, which builds the session once and keeps ratcheting.
+* "rebuildPerSwitch" is what Session used to do on every direction switch: process the other party's PreKeyBundle
+* (X3DH plus the signed prekey signature check) and then encrypt. That old flow can't decrypt past the third switch
+* because the one-time prekey is gone by then, so only its sending side is measured.
+* */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SessionBenchmark {
+
+    private static final String MESSAGE = "Hello from Alice";
+
+    private Entity alice;
+    private Entity bob;
+    private PreKeyBundle aliceBundle;
+    private PreKeyBundle bobBundle;
+    private Session aliceToBob;
+    private Session bobToAlice;
+
+    @Setup
+    public void setUp() throws Exception {
+        alice = new Entity(1, 314159, "Alice");
+        bob = new Entity(2, 271828, "Bob");
+        aliceBundle = alice.getPreKey();
+        bobBundle = bob.getPreKey();
+
+        aliceToBob = new Session(alice.getStore(), bob.getPreKey(), bob.getAddress());
+        bobToAlice = new Session(bob.getStore(), alice.getPreKey(), alice.getAddress());
+
+        bobToAlice.decrypt(aliceToBob.encrypt("hello"));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public String alternating() throws Exception {
+        String toBob = bobToAlice.decrypt(aliceToBob.encrypt(MESSAGE));
+        return aliceToBob.decrypt(bobToAlice.encrypt(toBob));
+    }
+
+    /*
+    * "alternating" with every message serialized to an Envelope and parsed back, as it would be over a network.
+    * */
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public String alternatingEnvelopes() throws Exception {
+        byte[] toBob = Envelope.of(aliceToBob.encrypt(MESSAGE)).serialize();
+        String received = bobToAlice.decrypt(Envelope.deserialize(toBob));
+
+        byte[] toAlice = Envelope.of(bobToAlice.encrypt(received)).serialize();
+        return aliceToBob.decrypt(Envelope.deserialize(toAlice));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public CiphertextMessage rebuildPerSwitch() throws Exception {
+        new SessionBuilder(alice.getStore(), bob.getAddress()).process(bobBundle);
+        new SessionCipher(alice.getStore(), bob.getAddress()).encrypt(MESSAGE.getBytes(StandardCharsets.UTF_8));
+
+        new SessionBuilder(bob.getStore(), alice.getAddress()).process(aliceBundle);
+        return new SessionCipher(bob.getStore(), alice.getAddress()).encrypt(MESSAGE.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,119 @@
+package signal.demo.sample_templates;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+* Base64 encode and decode from 16 B to 16 MB, against the table-driven code it replaced (LegacyBase64) and
+* java.util.Base64 on the same input. The ByteBuffer variants go buffer to buffer; heap and direct take the same path.
+* */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class Base64Benchmark {
+
+    @Param({"16", "1024", "65536", "1048576", "16777216"})
+    private int size;
+
+    @Param({"false", "true"})
+    private boolean direct;
+
+    private byte[] raw;
+    private byte[] encodedBytes;
+    private String encoded;
+
+    private ByteBuffer rawBuffer;
+    private ByteBuffer encodedBuffer;
+    private ByteBuffer encodeOut;
+    private ByteBuffer decodeOut;
+
+    @Setup
+    public void setUp() {
+        raw = new byte[size];
+        new Random(size).nextBytes(raw);
+        encoded = Base64.encodeBytes(raw);
+        encodedBytes = Base64.encodeBytesToBytes(raw);
+
+        rawBuffer = allocate(raw.length).put(raw);
+        encodedBuffer = allocate(encodedBytes.length).put(encodedBytes);
+        encodeOut = allocate(encodedBytes.length);
+        decodeOut = allocate(raw.length);
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    @Benchmark
+    public String encodeBytes() {
+        return Base64.encodeBytes(raw);
+    }
+
+    @Benchmark
+    public byte[] encodeBytesToBytes() {
+        return Base64.encodeBytesToBytes(raw);
+    }
+
+    @Benchmark
+    public byte[] legacyEncodeBytesToBytes() {
+        return LegacyBase64.encodeBytesToBytes(raw, 0, raw.length, Base64.NO_OPTIONS);
+    }
+
+    @Benchmark
+    public byte[] jdkEncode() {
+        return java.util.Base64.getEncoder().encode(raw);
+    }
+
+    @Benchmark
+    public byte[] decode() throws Exception {
+        return Base64.decode(encoded);
+    }
+
+    @Benchmark
+    public byte[] decodeBytes() throws Exception {
+        return Base64.decode(encodedBytes, 0, encodedBytes.length, Base64.NO_OPTIONS);
+    }
+
+    @Benchmark
+    public byte[] legacyDecodeBytes() throws Exception {
+        return LegacyBase64.decode(encodedBytes, 0, encodedBytes.length, Base64.NO_OPTIONS);
+    }
+
+    @Benchmark
+    public byte[] jdkDecode() {
+        return java.util.Base64.getDecoder().decode(encodedBytes);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBuffer() {
+        rawBuffer.clear();
+        encodeOut.clear();
+        Base64.encode(rawBuffer, encodeOut);
+        return encodeOut;
+    }
+
+    @Benchmark
+    public ByteBuffer jdkEncodeBuffer() {
+        rawBuffer.clear();
+        return java.util.Base64.getEncoder().encode(rawBuffer);
+    }
+
+    @Benchmark
+    public ByteBuffer decodeBuffer() throws Exception {
+        encodedBuffer.clear();
+        decodeOut.clear();
+        Base64.decode(encodedBuffer, decodeOut);
+        return decodeOut;
+    }
+
+    @Benchmark
+    public ByteBuffer jdkDecodeBuffer() {
+        encodedBuffer.clear();
+        return java.util.Base64.getDecoder().decode(encodedBuffer);
+    }
+}
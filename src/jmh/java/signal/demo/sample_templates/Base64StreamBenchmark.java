@@ -0,0 +1,103 @@
+package signal.demo.sample_templates;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+* Base64.InputStream and Base64.OutputStream over in-memory streams, both directions, with and without line breaks,
+* next to java.util.Base64's wrapped streams. The caller moves data in 64 KB pieces, as a file copy would.
+* */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class Base64StreamBenchmark {
+
+    private static final int PIECE = 65536;
+
+    @Param({"65536", "1048576", "16777216"})
+    private int size;
+
+    @Param({"false", "true"})
+    private boolean breakLines;
+
+    private byte[] raw;
+    private byte[] encoded;
+    private byte[] piece;
+    private ByteArrayOutputStream sink;
+    private int options;
+
+    @Setup
+    public void setUp() throws IOException {
+        options = breakLines ? Base64.DO_BREAK_LINES : Base64.NO_OPTIONS;
+
+        raw = new byte[size];
+        new Random(size).nextBytes(raw);
+        encoded = Base64.encodeBytesToBytes(raw, 0, raw.length, options);
+        piece = new byte[PIECE];
+        sink = new ByteArrayOutputStream(encoded.length + 16);
+    }
+
+    @Benchmark
+    public int outputStreamEncode() throws IOException {
+        sink.reset();
+        write(new Base64.OutputStream(sink, Base64.ENCODE | options), raw);
+        return sink.size();
+    }
+
+    @Benchmark
+    public int outputStreamDecode() throws IOException {
+        sink.reset();
+        write(new Base64.OutputStream(sink, Base64.DECODE), encoded);
+        return sink.size();
+    }
+
+    @Benchmark
+    public long inputStreamEncode() throws IOException {
+        return read(new Base64.InputStream(new ByteArrayInputStream(raw), Base64.ENCODE | options));
+    }
+
+    @Benchmark
+    public long inputStreamDecode() throws IOException {
+        return read(new Base64.InputStream(new ByteArrayInputStream(encoded), Base64.DECODE));
+    }
+
+    @Benchmark
+    public int jdkOutputStreamEncode() throws IOException {
+        sink.reset();
+        write(breakLines ? java.util.Base64.getMimeEncoder().wrap(sink) : java.util.Base64.getEncoder().wrap(sink), raw);
+        return sink.size();
+    }
+
+    @Benchmark
+    public long jdkInputStreamDecode() throws IOException {
+        java.util.Base64.Decoder decoder = breakLines ? java.util.Base64.getMimeDecoder() : java.util.Base64.getDecoder();
+        return read(decoder.wrap(new ByteArrayInputStream(encoded)));
+    }
+
+    private void write(OutputStream out, byte[] data) throws IOException {
+        for (int off = 0; off < data.length; off += PIECE) {
+            out.write(data, off, Math.min(PIECE, data.length - off));
+        }
+        out.close();
+    }
+
+    private long read(InputStream in) throws IOException {
+        long total = 0;
+        int n;
+
+        while ((n = in.read(piece)) >= 0) {
+            total += n;
+        }
+        in.close();
+        return total;
+    }
+}
@@ -0,0 +1,67 @@
+package signal.demo.store;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import signal.demo.Entity;
+import signal.demo.one_on_one.Session;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* One sender entity, backed by ConcurrentSignalProtocolStore, encrypting to a different peer on every thread.
+*
+* Run main() to scale the same benchmark from 1 thread up to the number of cores.
+* */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ConcurrentStoreBenchmark {
+
+    private static final String MESSAGE = "Hello from Alice";
+
+    @State(Scope.Benchmark)
+    public static class Sender {
+        private final AtomicInteger peers = new AtomicInteger();
+        private Entity alice;
+
+        @Setup
+        public void setUp() throws Exception {
+            alice = new Entity(1, 314159, "Alice");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Peer {
+        private Session session;
+
+        @Setup
+        public void setUp(Sender sender) throws Exception {
+            int id = sender.peers.incrementAndGet();
+            Entity peer = new Entity(id, id, "Peer-" + id);
+
+            session = new Session(sender.alice.getStore(), peer.getPreKey(), peer.getAddress());
+        }
+    }
+
+    @Benchmark
+    public CiphertextMessage encryptToOwnPeer(Peer peer) throws Exception {
+        return peer.session.encrypt(MESSAGE);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        for (int threads = 1; threads < cores * 2; threads *= 2) {
+            new Runner(new OptionsBuilder()
+                    .include(ConcurrentStoreBenchmark.class.getSimpleName())
+                    .threads(Math.min(threads, cores))
+                    .forks(1)
+                    .build()).run();
+        }
+    }
+}
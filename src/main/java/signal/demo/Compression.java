@@ -0,0 +1,222 @@
+package signal.demo;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+* The compression stage in front of encryption. Ciphertext doesn't compress, so it has to happen before the cipher.
+*
+* A compressed payload is one codec byte and then the body. With NONE the body is the payload itself. With DEFLATE it
+* is the payload length in four bytes, then the payload as zlib at the fastest level. The codec byte is encrypted along
+* with the rest, so it is authenticated and doesn't show on the wire.
+*
+* The choice comes from a sample. Anything under MIN_LENGTH is sent as is. So is anything whose first SAMPLE_LENGTH
+* bytes don't shrink by at least a tenth. JPEG, PNG, zip and other compressed formats fail that test after a few
+* microseconds of work. Text and structured data such as JSON pass it easily.
+*
+* Deflaters and Inflaters hold native memory until end() is called, so the ones used here come from small pools and
+* any that don't fit back in are ended straight away.
+*
+* Compressing before encrypting makes the ciphertext length depend on the content. That only matters if an attacker
+* can put their own data next to a secret in the same payload and watch the lengths.
+* */
+public final class Compression {
+
+    public static final int NONE = 0;
+    public static final int DEFLATE = 1;
+
+    public static final int MIN_LENGTH = 128;
+    public static final int SAMPLE_LENGTH = 16 * 1024;
+
+    /* The most a DEFLATE payload may claim to inflate to */
+    public static final int MAX_INFLATED_LENGTH = 64 * 1024 * 1024;
+
+    private static final int MAX_RATIO_PERCENT = 90;
+    private static final int HEADER_LENGTH = 5;
+
+    /* DEFLATE can't expand more than this: a 258-byte match costs at least two bits */
+    private static final int MAX_INFLATE_RATIO = 1032;
+
+    /* Inflated output grows from this, so the length in the header alone never decides an allocation */
+    private static final int INITIAL_INFLATE_LENGTH = 64 * 1024;
+
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final BlockingQueue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final BlockingQueue<Inflater> INFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private Compression() {
+    }
+
+    /*
+    * DEFLATE if the sample at the start of the data is worth compressing, NONE otherwise.
+    * */
+    public static int choose(byte[] data, int offset, int length) {
+        if (length < MIN_LENGTH) {
+            return NONE;
+        }
+
+        int sampleLength = Math.min(length, SAMPLE_LENGTH);
+        return deflatesWell(data, offset, sampleLength, new byte[maxDeflatedLength(sampleLength)], 0) >= 0
+                ? DEFLATE
+                : NONE;
+    }
+
+    /*
+    * The codec byte and the body, with DEFLATE only if it actually saves a tenth.
+    * */
+    public static byte[] compress(byte[] payload) {
+        if (payload.length >= MIN_LENGTH && payload.length <= MAX_INFLATED_LENGTH
+                && (payload.length <= SAMPLE_LENGTH || choose(payload, 0, payload.length) == DEFLATE)) {
+
+            byte[] compressed = new byte[HEADER_LENGTH + maxDeflatedLength(payload.length)];
+            int deflatedLength = deflatesWell(payload, 0, payload.length, compressed, HEADER_LENGTH);
+
+            if (deflatedLength >= 0) {
+                compressed[0] = DEFLATE;
+                compressed[1] = (byte) (payload.length >>> 24);
+                compressed[2] = (byte) (payload.length >>> 16);
+                compressed[3] = (byte) (payload.length >>> 8);
+                compressed[4] = (byte) payload.length;
+                return Arrays.copyOf(compressed, HEADER_LENGTH + deflatedLength);
+            }
+        }
+
+        byte[] stored = new byte[1 + payload.length];
+        stored[0] = NONE;
+        System.arraycopy(payload, 0, stored, 1, payload.length);
+        return stored;
+    }
+
+    public static byte[] decompress(byte[] compressed) throws DataFormatException {
+        int length = decompressedLength(compressed);
+
+        return compressed[0] == NONE
+                ? Arrays.copyOfRange(compressed, 1, compressed.length)
+                : inflate(compressed, length);
+    }
+
+    /*
+    * The length decompress would return, from the header alone. Checks the codec and that the stated length is one
+    * the body could actually inflate to.
+    * */
+    public static int decompressedLength(byte[] compressed) throws DataFormatException {
+        if (compressed.length < 1) {
+            throw new DataFormatException("Compressed payload is empty");
+        }
+
+        switch (compressed[0]) {
+            case NONE:
+                return compressed.length - 1;
+
+            case DEFLATE:
+                if (compressed.length < HEADER_LENGTH) {
+                    throw new DataFormatException("Compressed payload is too short");
+                }
+
+                int length = ((compressed[1] & 0xFF) << 24) | ((compressed[2] & 0xFF) << 16)
+                        | ((compressed[3] & 0xFF) << 8) | (compressed[4] & 0xFF);
+
+                if (length < 0 || length > MAX_INFLATED_LENGTH
+                        || length > (long) (compressed.length - HEADER_LENGTH) * MAX_INFLATE_RATIO) {
+                    throw new DataFormatException("Bad inflated length: " + length);
+                }
+
+                return length;
+
+            default:
+                throw new DataFormatException("Unknown codec: " + compressed[0]);
+        }
+    }
+
+    /*
+    * An upper bound on the length of compress(payload) for a payload of the given length.
+    * */
+    public static int maxCompressedLength(int length) {
+        return 1 + length;
+    }
+
+    /*
+    * Fresh ones for streams, which keep their state across calls. The caller must end() them.
+    * */
+    public static Deflater newDeflater() {
+        return new Deflater(Deflater.BEST_SPEED);
+    }
+
+    public static Inflater newInflater() {
+        return new Inflater();
+    }
+
+    /* Room for output that saves at least a tenth */
+    private static int maxDeflatedLength(int length) {
+        return (int) ((long) length * MAX_RATIO_PERCENT / 100);
+    }
+
+    /*
+    * Deflates into out from outOffset and returns the deflated length, or -1 as soon as it runs out of room there.
+    * Callers leave room for maxDeflatedLength(length), so -1 means it wouldn't save a tenth.
+    * */
+    private static int deflatesWell(byte[] data, int offset, int length, byte[] out, int outOffset) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = newDeflater();
+        }
+
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+
+            int deflatedLength = deflater.deflate(out, outOffset, out.length - outOffset);
+
+            return deflater.finished() ? deflatedLength : -1;
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    private static byte[] inflate(byte[] compressed, int length) throws DataFormatException {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = newInflater();
+        }
+
+        try {
+            inflater.setInput(compressed, HEADER_LENGTH, compressed.length - HEADER_LENGTH);
+
+            byte[] payload = new byte[Math.min(length, INITIAL_INFLATE_LENGTH)];
+            int inflatedLength = 0;
+
+            while (inflatedLength < length) {
+                if (inflatedLength == payload.length) {
+                    payload = Arrays.copyOf(payload, (int) Math.min(length, 2L * payload.length));
+                }
+
+                int n = inflater.inflate(payload, inflatedLength, payload.length - inflatedLength);
+                if (n == 0) {
+                    break;
+                }
+                inflatedLength += n;
+            }
+
+            /* It must end exactly at the stated length, with nothing after it */
+            if (inflatedLength != length || (!inflater.finished() && inflater.inflate(new byte[1]) != 0)
+                    || !inflater.finished() || inflater.getRemaining() != 0) {
+                throw new DataFormatException("Compressed payload doesn't match its length");
+            }
+
+            return payload;
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -16,29 +16,54 @@ import org.whispersystems.libsignal.state.PreKeyBundle;
 import org.whispersystems.libsignal.state.PreKeyRecord;
 import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
-import org.whispersystems.libsignal.state.impl.InMemorySignalProtocolStore;
 import org.whispersystems.libsignal.util.KeyHelper;
 import signal.demo.group.InMemorySenderKeyStore;
+import signal.demo.store.ConcurrentSignalProtocolStore;
 
 public class Entity {
     private final SignalProtocolStore store;
-    private final PreKeyBundle preKey;
     private final SignalProtocolAddress address;
     private final SenderKeyStore senderKeyStore; /*used for group messages*/
+    private final PreKeyPool preKeyPool;
+
+    private final int signedPreKeyId;
+    private volatile SignedPreKeyRecord signedPreKey;
 
     public Entity(int preKeyId, int signedPreKeyId, String address)
             throws InvalidKeyException
+    {
+        this(address,
+                KeyHelper.generateIdentityKeyPair(),
+                KeyHelper.generateRegistrationId(false),
+                signedPreKeyId,
+                null,
+                preKeyId,
+                false);
+    }
+
+    /*
+    * Builds an entity around an existing identity. Used by EntityFactory, which restores entities from snapshots and
+    * can defer key generation: when lazyPreKeys is set and no signed prekey is given, the signed prekey isn't
+    * generated until the first getPreKey(). One-time prekeys always wait for it.
+    * */
+    Entity(String address,
+           IdentityKeyPair identityKeyPair,
+           int registrationId,
+           int signedPreKeyId,
+           SignedPreKeyRecord signedPreKey,
+           int preKeyId,
+           boolean lazyPreKeys)
+            throws InvalidKeyException
     {
         this.address = new SignalProtocolAddress(address, 1);
 
         /*
-        * Here we are using InMemorySignalProtocolStore for demonstration. In real application, you will have to write your
-        * own class to implement SignalProtocolStore interface to store and fetch keys from database.
+        * Here we are using an in-memory store for demonstration. ConcurrentSignalProtocolStore lets several Sessions
+        * of this entity encrypt to different peers from different threads. In real application, you will have to write
+        * your own class to implement SignalProtocolStore interface to store and fetch keys from database.
         * Check out "MySignalKeyStore" class in sample_templates package
         * */
-        this.store = new InMemorySignalProtocolStore(
-                KeyHelper.generateIdentityKeyPair(),
-                KeyHelper.generateRegistrationId(false));
+        this.store = new ConcurrentSignalProtocolStore(identityKeyPair, registrationId);
 
         /*
         * Here we are using InMemorySenderKeyStore for demonstration. In real application,
@@ -46,46 +71,98 @@ public class Entity {
         * */
         this.senderKeyStore=new InMemorySenderKeyStore(); /* for Group messages */
 
-        IdentityKeyPair identityKeyPair = store.getIdentityKeyPair();
-        int registrationId = store.getLocalRegistrationId();
+        this.signedPreKeyId = signedPreKeyId;
+
+        if (signedPreKey != null) {
+            this.signedPreKey = signedPreKey;
+            store.storeSignedPreKey(signedPreKeyId, signedPreKey);
+        } else if (!lazyPreKeys) {
+            this.signedPreKey = generateSignedPreKey();
+        }
 
-        ECKeyPair preKeyPair = Curve.generateKeyPair();
+        /*
+        * One-time prekeys come from a pool, numbered from preKeyId, so every new contact gets its own. The pool
+        * generates its first batch on the first getPreKey() and refills itself in the background after that, so
+        * constructing an entity never pays for them.
+        * */
+        this.preKeyPool = new PreKeyPool(store, preKeyId);
+    }
+
+    private SignedPreKeyRecord generateSignedPreKey() throws InvalidKeyException {
         ECKeyPair signedPreKeyPair = Curve.generateKeyPair();
-        int deviceId = 1;
         long timestamp = System.currentTimeMillis();
 
         byte[] signedPreKeySignature = Curve.calculateSignature(
-                identityKeyPair.getPrivateKey(),
+                store.getIdentityKeyPair().getPrivateKey(),
                 signedPreKeyPair.getPublicKey().serialize());
 
-        IdentityKey identityKey = identityKeyPair.getPublicKey();
-        ECPublicKey preKeyPublic = preKeyPair.getPublicKey();
-        ECPublicKey signedPreKeyPublic = signedPreKeyPair.getPublicKey();
-
-        this.preKey = new PreKeyBundle(
-                registrationId,
-                deviceId,
-                preKeyId,
-                preKeyPublic,
-                signedPreKeyId,
-                signedPreKeyPublic,
-                signedPreKeySignature,
-                identityKey);
-
-        PreKeyRecord preKeyRecord = new PreKeyRecord(preKey.getPreKeyId(), preKeyPair);
         SignedPreKeyRecord signedPreKeyRecord = new SignedPreKeyRecord(
                 signedPreKeyId, timestamp, signedPreKeyPair, signedPreKeySignature);
 
-        store.storePreKey(preKeyId, preKeyRecord);
         store.storeSignedPreKey(signedPreKeyId, signedPreKeyRecord);
+        return signedPreKeyRecord;
+    }
+
+    private SignedPreKeyRecord signedPreKey() {
+        SignedPreKeyRecord record = signedPreKey;
+
+        if (record == null) {
+            synchronized (this) {
+                record = signedPreKey;
+
+                if (record == null) {
+                    try {
+                        record = generateSignedPreKey();
+                    } catch (InvalidKeyException e) {
+                        throw new RuntimeException(e);
+                    }
+                    signedPreKey = record;
+                }
+            }
+        }
+
+        return record;
+    }
+
+    int getSignedPreKeyId() {
+        return signedPreKeyId;
+    }
+
+    /* The signed prekey, or null if it is deferred and nobody asked for a bundle yet */
+    SignedPreKeyRecord getGeneratedSignedPreKey() {
+        return signedPreKey;
     }
 
     public SignalProtocolStore getStore() {
         return store;
     }
 
+    /*
+    * A fresh PreKeyBundle with the next one-time prekey from the pool. This never blocks on a refill: if the pool
+    * happens to be empty, the bundle carries only the signed prekey.
+    * */
     public PreKeyBundle getPreKey() {
-        return preKey;
+        SignedPreKeyRecord signedPreKey = signedPreKey();
+        PreKeyRecord preKey = preKeyPool.poll();
+        int deviceId = 1;
+
+        int preKeyId = preKey == null ? -1 : preKey.getId();
+        ECPublicKey preKeyPublic = preKey == null ? null : preKey.getKeyPair().getPublicKey();
+        IdentityKey identityKey = store.getIdentityKeyPair().getPublicKey();
+
+        return new PreKeyBundle(
+                store.getLocalRegistrationId(),
+                deviceId,
+                preKeyId,
+                preKeyPublic,
+                signedPreKeyId,
+                signedPreKey.getKeyPair().getPublicKey(),
+                signedPreKey.getSignature(),
+                identityKey);
+    }
+
+    public PreKeyPool getPreKeyPool() {
+        return preKeyPool;
     }
 
     public SignalProtocolAddress getAddress() {
@@ -0,0 +1,190 @@
+package signal.demo;
+
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.util.KeyHelper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/*
+* Creates many entities at once, for load tests and the like.
+*
+* Entities are built in parallel on a fork/join pool. One-time prekeys always wait until the entity's first bundle is
+* requested. With lazyPreKeys the signed prekey waits too, and only the identity key pair is generated up front.
+*
+* A set of entities can be saved to a snapshot file and restored from it later without generating any keys. The
+* snapshot holds each entity's identity key pair, registration id and signed prekey (if it was generated), plus the
+* id its next one-time prekey should get. One-time prekeys themselves are not saved; restored entities generate new
+* ones. The snapshot contains private keys, so treat it like a key store.
+* */
+public class EntityFactory {
+
+    private static final int SNAPSHOT_MAGIC = 0x5349474e; /* "SIGN" */
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final int FIRST_PREKEY_ID = 1;
+    private static final int SIGNED_PREKEY_ID = 1;
+
+    private final ForkJoinPool pool;
+    private final boolean lazyPreKeys;
+
+    public EntityFactory(boolean lazyPreKeys) {
+        this(ForkJoinPool.commonPool(), lazyPreKeys);
+    }
+
+    public EntityFactory(ForkJoinPool pool, boolean lazyPreKeys) {
+        this.pool = pool;
+        this.lazyPreKeys = lazyPreKeys;
+    }
+
+    public Entity create(String address) throws InvalidKeyException {
+        return new Entity(address,
+                KeyHelper.generateIdentityKeyPair(),
+                KeyHelper.generateRegistrationId(false),
+                SIGNED_PREKEY_ID,
+                null,
+                FIRST_PREKEY_ID,
+                lazyPreKeys);
+    }
+
+    /*
+    * One entity per address, in the same order, built across the pool.
+    * */
+    public List<Entity> create(List<String> addresses) {
+        return inPool(() -> addresses.parallelStream()
+                .map(address -> {
+                    try {
+                        return create(address);
+                    } catch (InvalidKeyException e) {
+                        throw new RuntimeException(e);
+                    }
+                })
+                .collect(Collectors.toList()));
+    }
+
+    public void saveSnapshot(Collection<Entity> entities, File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(entities.size());
+
+            for (Entity entity : entities) {
+                SignedPreKeyRecord signedPreKey = entity.getGeneratedSignedPreKey();
+
+                out.writeUTF(entity.getAddress().getName());
+                out.writeInt(entity.getStore().getLocalRegistrationId());
+                writeBytes(out, entity.getStore().getIdentityKeyPair().serialize());
+                out.writeInt(entity.getSignedPreKeyId());
+                writeBytes(out, signedPreKey == null ? new byte[0] : signedPreKey.serialize());
+                out.writeInt(entity.getPreKeyPool().getNextPreKeyId());
+            }
+        }
+    }
+
+    /*
+    * Reads the whole snapshot first, then rebuilds the entities across the pool.
+    * */
+    public List<Entity> restoreSnapshot(File file) throws IOException {
+        List<EntitySnapshot> snapshots;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not an entity snapshot: " + file);
+            }
+
+            int count = in.readInt();
+            snapshots = new ArrayList<>(count);
+
+            for (int i = 0; i < count; i++) {
+                EntitySnapshot snapshot = new EntitySnapshot();
+
+                snapshot.address = in.readUTF();
+                snapshot.registrationId = in.readInt();
+                snapshot.identityKeyPair = readBytes(in);
+                snapshot.signedPreKeyId = in.readInt();
+                snapshot.signedPreKey = readBytes(in);
+                snapshot.nextPreKeyId = in.readInt();
+
+                snapshots.add(snapshot);
+            }
+        }
+
+        try {
+            return inPool(() -> snapshots.parallelStream()
+                    .map(this::restore)
+                    .collect(Collectors.toList()));
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private Entity restore(EntitySnapshot snapshot) {
+        try {
+            SignedPreKeyRecord signedPreKey = snapshot.signedPreKey.length == 0
+                    ? null
+                    : new SignedPreKeyRecord(snapshot.signedPreKey);
+
+            return new Entity(snapshot.address,
+                    new IdentityKeyPair(snapshot.identityKeyPair),
+                    snapshot.registrationId,
+                    snapshot.signedPreKeyId,
+                    signedPreKey,
+                    snapshot.nextPreKeyId,
+                    lazyPreKeys);
+        } catch (InvalidKeyException | IOException e) {
+            throw new RuntimeException(new IOException("Corrupt snapshot entry for " + snapshot.address, e));
+        }
+    }
+
+    private <T> T inPool(Callable<T> task) {
+        try {
+            return pool.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static class EntitySnapshot {
+        private String address;
+        private int registrationId;
+        private byte[] identityKeyPair;
+        private int signedPreKeyId;
+        private byte[] signedPreKey;
+        private int nextPreKeyId;
+    }
+}
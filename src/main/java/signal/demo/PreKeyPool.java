@@ -0,0 +1,231 @@
+package signal.demo;
+
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.PreKeyStore;
+import signal.demo.metrics.Counter;
+import signal.demo.metrics.Metrics;
+import signal.demo.metrics.Timer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+* The one-time prekeys an entity hands out in its PreKeyBundles.
+*
+* Prekeys are generated a batch at a time, with the batch split across the common fork/join pool, and stored in the
+* entity's PreKeyStore. Taking a prekey never waits for generation: once fewer than lowWaterMark are left, a refill
+* starts in the background, and if the pool is empty the caller gets null and can send a bundle with the signed
+* prekey only, which X3DH allows.
+*
+* A pool that was never filled generates its first batch on the first poll(), so entities that are never contacted
+* never pay for prekeys. Callers that poll while that first batch is being generated wait for it rather than find the
+* pool empty.
+*
+* Ids are 24-bit and wrap around. An id whose prekey is still in the store, handed out but not yet used by a
+* PreKeySignalMessage, is skipped rather than overwritten.
+* */
+public class PreKeyPool {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final int DEFAULT_LOW_WATER_MARK = 25;
+
+    /* Prekey ids are 24-bit on the wire */
+    private static final int MAX_PREKEY_ID = 0xFFFFFF;
+    private static final int SEQUENTIAL_THRESHOLD = 16;
+
+    private final PreKeyStore store;
+    private final int batchSize;
+    private final int lowWaterMark;
+    private final Executor refillExecutor;
+
+    private final Queue<PreKeyRecord> available = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger availableCount = new AtomicInteger();
+    private final AtomicInteger nextId;
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final AtomicBoolean filled = new AtomicBoolean();
+
+    private final LongAdder generated = new LongAdder();
+    private final LongAdder generationNanos = new LongAdder();
+    private final LongAdder handedOut = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+
+    private final Timer fillTimer;
+    private final Counter generatedMetric;
+    private final Counter handedOutMetric;
+    private final Counter exhaustedMetric;
+
+    public PreKeyPool(PreKeyStore store, int firstPreKeyId) {
+        this(store, firstPreKeyId, DEFAULT_BATCH_SIZE, DEFAULT_LOW_WATER_MARK, ForkJoinPool.commonPool());
+    }
+
+    public PreKeyPool(PreKeyStore store, int firstPreKeyId, int batchSize, int lowWaterMark, Executor refillExecutor) {
+        this.store = store;
+        this.nextId = new AtomicInteger(firstPreKeyId);
+        this.batchSize = batchSize;
+        this.lowWaterMark = lowWaterMark;
+        this.refillExecutor = refillExecutor;
+
+        Metrics metrics = Metrics.get();
+        this.fillTimer = metrics.timer("prekeys.fill");
+        this.generatedMetric = metrics.counter("prekeys.generated");
+        this.handedOutMetric = metrics.counter("prekeys.handed_out");
+        this.exhaustedMetric = metrics.counter("prekeys.exhausted");
+    }
+
+    /*
+    * Generates and stores one batch on the calling thread (and the fork/join pool).
+    * */
+    public void fill() {
+        int[] ids = nextIds(batchSize);
+        long start = System.nanoTime();
+
+        List<PreKeyRecord> batch = ForkJoinPool.commonPool().invoke(new Generate(ids, 0, ids.length));
+
+        generationNanos.add(System.nanoTime() - start);
+        generated.add(batch.size());
+        fillTimer.stop(start);
+        generatedMetric.add(batch.size());
+
+        for (PreKeyRecord record : batch) {
+            store.storePreKey(record.getId(), record);
+        }
+
+        available.addAll(batch);
+        availableCount.addAndGet(batch.size());
+        filled.set(true);
+    }
+
+    /* Only the first caller generates; the others block here until its batch is in */
+    private synchronized void fillFirst() {
+        if (!filled.get()) {
+            fill();
+        }
+    }
+
+    /*
+    * The next count ids that no stored prekey holds, fewer only if every id is taken.
+    * */
+    private int[] nextIds(int count) {
+        int[] ids = new int[count];
+        int found = 0;
+
+        for (int tried = 0; found < count && tried < MAX_PREKEY_ID; tried++) {
+            int id = wrap(nextId.getAndIncrement());
+
+            if (!store.containsPreKey(id)) {
+                ids[found++] = id;
+            }
+        }
+
+        return found == count ? ids : Arrays.copyOf(ids, found);
+    }
+
+    /*
+    * The next unused prekey, or null if the pool is empty right now.
+    * */
+    public PreKeyRecord poll() {
+        if (!filled.get()) {
+            fillFirst();
+        }
+
+        PreKeyRecord record = available.poll();
+
+        if (record != null) {
+            availableCount.decrementAndGet();
+            handedOut.increment();
+            handedOutMetric.increment();
+        } else {
+            exhausted.increment();
+            exhaustedMetric.increment();
+        }
+
+        refillIfLow();
+        return record;
+    }
+
+    private void refillIfLow() {
+        if (availableCount.get() < lowWaterMark && refilling.compareAndSet(false, true)) {
+            refillExecutor.execute(() -> {
+                try {
+                    fill();
+                } finally {
+                    refilling.set(false);
+                }
+            });
+        }
+    }
+
+    /* The id the next generated prekey will get */
+    public int getNextPreKeyId() {
+        return wrap(nextId.get());
+    }
+
+    public int getAvailableCount() {
+        return availableCount.get();
+    }
+
+    public long getGeneratedCount() {
+        return generated.sum();
+    }
+
+    public long getHandedOutCount() {
+        return handedOut.sum();
+    }
+
+    /* How many times a caller found the pool empty */
+    public long getExhaustedCount() {
+        return exhausted.sum();
+    }
+
+    /* Prekeys generated per second of batch generation time */
+    public double getKeysPerSecond() {
+        long nanos = generationNanos.sum();
+        return nanos == 0 ? 0 : generated.sum() * 1_000_000_000.0 / nanos;
+    }
+
+    private static int wrap(int id) {
+        return ((id - 1) & Integer.MAX_VALUE) % MAX_PREKEY_ID + 1;
+    }
+
+    private static class Generate extends RecursiveTask<List<PreKeyRecord>> {
+        private final int[] ids;
+        private final int from;
+        private final int to;
+
+        Generate(int[] ids, int from, int to) {
+            this.ids = ids;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<PreKeyRecord> compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                List<PreKeyRecord> records = new ArrayList<>(to - from);
+
+                for (int i = from; i < to; i++) {
+                    records.add(new PreKeyRecord(ids[i], Curve.generateKeyPair()));
+                }
+                return records;
+            }
+
+            int middle = (from + to) >>> 1;
+            Generate second = new Generate(ids, middle, to);
+            second.fork();
+
+            List<PreKeyRecord> records = new Generate(ids, from, middle).compute();
+            records.addAll(second.join());
+            return records;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package signal.demo;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+* Runs tasks one at a time, in submission order, on a shared executor.
+*
+* It owns no thread: while it has work, one task on the underlying executor drains its queue, and nothing runs while
+* it is idle. So there can be one per conversation, even for a very large number of conversations. A drain runs at
+* most MAX_BATCH tasks before handing the worker back, so one busy conversation can't keep a worker to itself.
+* */
+public class SerialExecutor implements Executor {
+
+    private static final int MAX_BATCH = 64;
+
+    private final Executor executor;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    public SerialExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+
+        try {
+            schedule();
+        } catch (RejectedExecutionException e) {
+            /* The caller is told the task was rejected, so it must not run later on */
+            tasks.remove(task);
+            throw e;
+        }
+    }
+
+    private void schedule() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                draining.set(false);
+                throw e;
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+
+            for (int i = 0; i < MAX_BATCH && (task = tasks.poll()) != null; i++) {
+                task.run();
+            }
+        } finally {
+            draining.set(false);
+
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package signal.demo.group;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.GroupCipher;
+import org.whispersystems.libsignal.groups.GroupSessionBuilder;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+import signal.demo.Entity;
+import signal.demo.metrics.Counter;
+import signal.demo.metrics.Metrics;
+import signal.demo.metrics.Timer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+* The sender-key flow from GroupDemo as a reusable service.
+*
+* A sender encrypts a group message once with its sender key. The single ciphertext is then handed to every member,
+* and the members decrypt it on the worker executor, a batch of members per task. A GroupCipher is only a store and a
+* name, so one is built per call rather than cached; a cache would keep pointing at the store of an Entity that has
+* since been replaced under the same address.
+*
+* Every member's sender key state lives in the member's own SenderKeyStore, so decrypts for different members never
+* share state.
+*
+* Encrypting and rotating both load, change and store the sender's record. libsignal only locks each step on its own,
+* so an encrypt could store the old record back over a rotation and the old key would live on. Both take the lock for
+* their sender key here first, shared by every instance of this class.
+* */
+public class GroupMessagingService {
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final Object[] LOCKS = new Object[LOCK_STRIPES];
+
+    static {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
+
+    /*
+    * Receives each member's plaintext as soon as that member has decrypted it. Called from the worker threads.
+    * */
+    public interface Inbox {
+        void deliver(Entity member, byte[] plaintext);
+    }
+
+    interface MemberTask {
+        byte[] run(Entity member) throws Exception;
+    }
+
+    private final Executor workers;
+    private final int batchSize;
+
+    private final Timer encryptTimer;
+    private final Timer decryptTimer;
+    private final Counter encryptedBytes;
+    private final Counter decryptedMessages;
+
+    public GroupMessagingService() {
+        this(ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE);
+    }
+
+    public GroupMessagingService(Executor workers, int batchSize) {
+        this.workers = workers;
+        this.batchSize = batchSize;
+
+        Metrics metrics = Metrics.get();
+        this.encryptTimer = metrics.timer("group.encrypt");
+        this.decryptTimer = metrics.timer("group.decrypt");
+        this.encryptedBytes = metrics.counter("group.encrypted.bytes");
+        this.decryptedMessages = metrics.counter("group.decrypted.messages");
+    }
+
+    /*
+    * Creates the sender's key for the group (or returns the existing one) as a distribution message for the members.
+    * */
+    public SenderKeyDistributionMessage createSenderKey(Entity sender, String groupId) {
+        SenderKeyName senderKeyName = senderKeyName(sender, groupId);
+
+        synchronized (lock(senderKeyName)) {
+            return new GroupSessionBuilder(sender.getSenderKeyStore()).create(senderKeyName);
+        }
+    }
+
+    /*
+    * Throws away the sender's current key for the group and creates a new one. Members have to receive the returned
+    * distribution message before they can read anything sent after this.
+    * */
+    public SenderKeyDistributionMessage rotateSenderKey(Entity sender, String groupId) {
+        SenderKeyName senderKeyName = senderKeyName(sender, groupId);
+
+        synchronized (lock(senderKeyName)) {
+            sender.getSenderKeyStore().storeSenderKey(senderKeyName, new SenderKeyRecord());
+            return new GroupSessionBuilder(sender.getSenderKeyStore()).create(senderKeyName);
+        }
+    }
+
+    public void processSenderKey(Entity member, SenderKeyName senderKeyName, SenderKeyDistributionMessage message) {
+        new GroupSessionBuilder(member.getSenderKeyStore()).process(senderKeyName, message);
+    }
+
+    public byte[] encrypt(Entity sender, String groupId, byte[] plaintext) {
+        SenderKeyName senderKeyName = senderKeyName(sender, groupId);
+
+        try {
+            GroupCipher cipher = cipher(sender, senderKeyName);
+            long start = encryptTimer.start();
+
+            byte[] ciphertext;
+            synchronized (lock(senderKeyName)) {
+                ciphertext = cipher.encrypt(plaintext);
+            }
+
+            encryptTimer.stop(start);
+            encryptedBytes.add(plaintext.length);
+            return ciphertext;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+    * Encrypts once and delivers the ciphertext to every member except the sender.
+    * */
+    public CompletableFuture<FanOut> send(Entity sender, String groupId, byte[] plaintext,
+                                          Collection<Entity> members, Inbox inbox) {
+        byte[] ciphertext = encrypt(sender, groupId, plaintext);
+        List<Entity> recipients = new ArrayList<>(members.size());
+
+        for (Entity member : members) {
+            if (!member.getAddress().equals(sender.getAddress())) {
+                recipients.add(member);
+            }
+        }
+
+        return deliver(senderKeyName(sender, groupId), ciphertext, recipients, inbox);
+    }
+
+    /*
+    * Decrypts one group ciphertext for each member across the worker executor. A member whose decrypt fails is
+    * reported in the result; it doesn't hold up the others.
+    * */
+    public CompletableFuture<FanOut> deliver(SenderKeyName senderKeyName, byte[] ciphertext,
+                                             List<Entity> members, Inbox inbox) {
+        return forEachMember(members, inbox, member -> {
+            GroupCipher cipher = cipher(member, senderKeyName);
+            long start = decryptTimer.start();
+
+            byte[] plaintext = cipher.decrypt(ciphertext);
+
+            decryptTimer.stop(start);
+            decryptedMessages.increment();
+            return plaintext;
+        });
+    }
+
+    /*
+    * Runs task for every member on the worker executor, a batch of members per task, and hands each result to the
+    * inbox.
+    * */
+    CompletableFuture<FanOut> forEachMember(List<Entity> members, Inbox inbox, MemberTask task) {
+        FanOut result = new FanOut();
+        List<CompletableFuture<Void>> batches = new ArrayList<>();
+
+        for (int from = 0; from < members.size(); from += batchSize) {
+            List<Entity> batch = members.subList(from, Math.min(from + batchSize, members.size()));
+
+            batches.add(CompletableFuture.runAsync(() -> {
+                for (Entity member : batch) {
+                    try {
+                        inbox.deliver(member, task.run(member));
+                        result.delivered();
+                    } catch (Exception e) {
+                        result.failed(member.getAddress(), e);
+                    }
+                }
+            }, workers));
+        }
+
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).thenApply(done -> result);
+    }
+
+    Executor getWorkers() {
+        return workers;
+    }
+
+    public static SenderKeyName senderKeyName(Entity sender, String groupId) {
+        return new SenderKeyName(groupId, sender.getAddress());
+    }
+
+    private static Object lock(SenderKeyName senderKeyName) {
+        return LOCKS[(senderKeyName.hashCode() & 0x7FFFFFFF) % LOCK_STRIPES];
+    }
+
+    private static GroupCipher cipher(Entity member, SenderKeyName senderKeyName) {
+        return new GroupCipher(member.getSenderKeyStore(), senderKeyName);
+    }
+
+    /*
+    * The outcome of one fan-out.
+    * */
+    public static class FanOut {
+        private final AtomicInteger delivered = new AtomicInteger();
+        private final Map<SignalProtocolAddress, Exception> failed = new ConcurrentHashMap<>();
+
+        public int getDelivered() {
+            return delivered.get();
+        }
+
+        public Map<SignalProtocolAddress, Exception> getFailed() {
+            return failed;
+        }
+
+        void delivered() {
+            delivered.incrementAndGet();
+        }
+
+        void failed(SignalProtocolAddress member, Exception e) {
+            failed.put(member, e);
+        }
+
+        FanOut add(FanOut other) {
+            delivered.addAndGet(other.delivered.get());
+            failed.putAll(other.failed);
+            return this;
+        }
+    }
+}
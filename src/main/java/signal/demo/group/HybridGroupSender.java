@@ -0,0 +1,357 @@
+package signal.demo.group;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+import signal.demo.Entity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+* One sender's messages to one group, sent either pairwise or with a sender key, whichever is cheaper right now.
+*
+* Pairwise, every message costs one Session encryption per recipient, but membership changes cost nothing. With a
+* sender key, a message costs one GroupCipher encryption, which includes a signature and is worth several pairwise
+* encryptions (senderKeyMessageCost of them). In exchange, every member who joins needs the sender key delivered to
+* them pairwise, and once a member who had the key leaves, the key is rotated and delivered to everyone again.
+*
+* Churn is tracked as membership changes per message, smoothed over recent messages. Per message, pairwise costs
+* "recipients" and sender keys cost "senderKeyMessageCost + churn * recipients". The mode only changes when the other
+* one is clearly cheaper, so a group near the crossover does not flip back and forth.
+*
+* A sender key message is only delivered to a member once the distribution that gave them the current key has been
+* processed, so a message never overtakes the key it needs, even when another send started that distribution.
+*
+* The sender key has exactly one owner. By default that is this class: it rotates the key and hands it out as above.
+* Given a SenderKeyRotationScheduler instead, it leaves the key to the scheduler, reports joins, leaves and messages
+* to it, and holds delivery of sender key messages until the scheduler has settled. The message is still encrypted
+* straight away, with whatever key is current, so one sent during a coalescing window after a leave can be read by
+* the member who left if they get hold of the ciphertext. Nothing else should rotate the same key.
+* */
+public class HybridGroupSender {
+
+    public enum Mode {PAIRWISE, SENDER_KEY}
+
+    /*
+    * A GroupCipher message (signature plus AES) against a SessionCipher message (AES plus HMAC). Tune it with
+    * HybridGroupBenchmark: it is the group size where senderKey overtakes pairwise without churn.
+    * */
+    public static final double DEFAULT_SENDER_KEY_MESSAGE_COST = 6;
+
+    private static final double CHURN_SMOOTHING = 0.1;
+    private static final double HYSTERESIS = 1.25;
+
+    private final Entity sender;
+    private final String groupId;
+    private final SenderKeyName senderKeyName;
+    private final GroupMessagingService groups;
+    private final PairwiseSessions pairwise;
+    private final SenderKeyDistributor distributor;
+    private final SenderKeyRotationScheduler scheduler;
+    private final double senderKeyMessageCost;
+
+    private final Map<SignalProtocolAddress, Entity> members = new LinkedHashMap<>();
+
+    /* Members given the current key, each with the distribution that gives it to them */
+    private final Map<SignalProtocolAddress, CompletableFuture<GroupMessagingService.FanOut>> haveSenderKey =
+            new HashMap<>();
+    private boolean senderKeyStale;
+    private int changesSinceLastMessage;
+    private double churn;
+    private Mode mode = Mode.PAIRWISE;
+
+    private final LongAdder pairwiseMessages = new LongAdder();
+    private final LongAdder senderKeyMessages = new LongAdder();
+    private final LongAdder pairwiseEncryptions = new LongAdder();
+    private final LongAdder groupEncryptions = new LongAdder();
+    private final LongAdder senderKeyDistributions = new LongAdder();
+    private final LongAdder senderKeyRotations = new LongAdder();
+    private final LongAdder modeSwitches = new LongAdder();
+    private final LongAdder pairwiseNanos = new LongAdder();
+    private final LongAdder senderKeyNanos = new LongAdder();
+
+    public HybridGroupSender(Entity sender, String groupId, SenderKeyDistributor distributor) {
+        this(sender, groupId, distributor, DEFAULT_SENDER_KEY_MESSAGE_COST);
+    }
+
+    public HybridGroupSender(Entity sender, String groupId, SenderKeyDistributor distributor,
+                             double senderKeyMessageCost) {
+        this(sender, groupId, distributor, null, senderKeyMessageCost);
+    }
+
+    /*
+    * Leaves rotation and distribution of the sender key to the scheduler, which starts tracking the group here.
+    * */
+    public HybridGroupSender(Entity sender, String groupId, SenderKeyRotationScheduler scheduler,
+                             double senderKeyMessageCost) {
+        this(sender, groupId, scheduler.getDistributor(), scheduler, senderKeyMessageCost);
+    }
+
+    private HybridGroupSender(Entity sender, String groupId, SenderKeyDistributor distributor,
+                              SenderKeyRotationScheduler scheduler, double senderKeyMessageCost) {
+        this.sender = sender;
+        this.groupId = groupId;
+        this.senderKeyName = GroupMessagingService.senderKeyName(sender, groupId);
+        this.groups = distributor.getGroups();
+        this.pairwise = distributor.getPairwise();
+        this.distributor = distributor;
+        this.scheduler = scheduler;
+        this.senderKeyMessageCost = senderKeyMessageCost;
+
+        if (scheduler != null) {
+            scheduler.track(sender, groupId, Collections.emptyList());
+        }
+    }
+
+    public synchronized void addMember(Entity member) {
+        if (!member.getAddress().equals(sender.getAddress()) && members.put(member.getAddress(), member) == null) {
+            changesSinceLastMessage++;
+
+            if (scheduler != null) {
+                scheduler.memberJoined(sender, groupId, member);
+            }
+        }
+    }
+
+    public synchronized void removeMember(Entity member) {
+        if (members.remove(member.getAddress()) != null) {
+            changesSinceLastMessage++;
+
+            if (scheduler != null) {
+                scheduler.memberLeft(sender, groupId, member);
+            }
+
+            /* They can read anything sent with the key they have, so it must not be used again */
+            if (haveSenderKey.remove(member.getAddress()) != null) {
+                senderKeyStale = true;
+            }
+        }
+    }
+
+    /*
+    * Picks the mode for this message and delivers it to every member. The sender key, if used, is brought up to date
+    * first: rotated if someone who had it left, and delivered pairwise to members who don't have it yet.
+    * */
+    public CompletableFuture<GroupMessagingService.FanOut> send(byte[] plaintext, GroupMessagingService.Inbox inbox) {
+        List<Entity> recipients;
+        Map<CompletableFuture<?>, List<Entity>> byKey = new IdentityHashMap<>();
+        byte[] groupCiphertext = null;
+        Mode mode;
+
+        synchronized (this) {
+            churn += CHURN_SMOOTHING * (changesSinceLastMessage - churn);
+            changesSinceLastMessage = 0;
+
+            mode = chooseMode();
+            recipients = new ArrayList<>(members.values());
+
+            if (mode == Mode.SENDER_KEY) {
+                Map<SignalProtocolAddress, CompletableFuture<GroupMessagingService.FanOut>> keyReady =
+                        scheduler == null ? updateSenderKey(recipients) : null;
+
+                /* Under the lock, so no other send can rotate the key in between */
+                groupCiphertext = groups.encrypt(sender, groupId, plaintext);
+
+                if (scheduler == null) {
+                    for (Entity member : recipients) {
+                        byKey.computeIfAbsent(keyReady.get(member.getAddress()), key -> new ArrayList<>())
+                                .add(member);
+                    }
+                } else {
+                    /* Taken after encrypting: a rotation since then has unsettled it, one before has finished */
+                    byKey.put(scheduler.settled(sender, groupId), recipients);
+                    scheduler.messageSent(sender, groupId);
+                }
+            }
+        }
+
+        long start = System.nanoTime();
+        CompletableFuture<GroupMessagingService.FanOut> result;
+
+        if (mode == Mode.PAIRWISE) {
+            pairwiseMessages.increment();
+            pairwiseEncryptions.add(recipients.size());
+
+            result = groups.forEachMember(recipients, inbox, member -> {
+                CiphertextMessage ciphertext = pairwise.encrypt(sender, member, plaintext);
+                return pairwise.decrypt(member, sender, ciphertext);
+            });
+        } else {
+            senderKeyMessages.increment();
+            groupEncryptions.increment();
+
+            byte[] ciphertext = groupCiphertext;
+            List<CompletableFuture<GroupMessagingService.FanOut>> parts = new ArrayList<>(byKey.size());
+
+            /* Each member's copy waits for the distribution that gives them the key, whether or not it worked */
+            for (Map.Entry<CompletableFuture<?>, List<Entity>> entry : byKey.entrySet()) {
+                List<Entity> members = entry.getValue();
+
+                parts.add(entry.getKey()
+                        .handle((distribution, e) -> null)
+                        .thenCompose(ready -> groups.deliver(senderKeyName, ciphertext, members, inbox)));
+            }
+
+            result = CompletableFuture.allOf(parts.toArray(new CompletableFuture[0])).thenApply(done -> {
+                GroupMessagingService.FanOut total = new GroupMessagingService.FanOut();
+
+                for (CompletableFuture<GroupMessagingService.FanOut> part : parts) {
+                    total.add(part.join());
+                }
+                return total;
+            });
+        }
+
+        LongAdder nanos = mode == Mode.PAIRWISE ? pairwiseNanos : senderKeyNanos;
+        return result.whenComplete((fanOut, e) -> nanos.add(System.nanoTime() - start));
+    }
+
+    /*
+    * Rotates the key if it is stale and starts distributing it to recipients who don't have it. Returns the
+    * distribution each recipient has to wait for. That is taken before the distribution can complete: a failure
+    * takes the member out of haveSenderKey, possibly right away on this thread. Callers hold the lock.
+    * */
+    private Map<SignalProtocolAddress, CompletableFuture<GroupMessagingService.FanOut>> updateSenderKey(
+            List<Entity> recipients) {
+        SenderKeyDistributionMessage distributionMessage = null;
+
+        if (senderKeyStale) {
+            distributionMessage = groups.rotateSenderKey(sender, groupId);
+            haveSenderKey.clear();
+            senderKeyStale = false;
+            senderKeyRotations.increment();
+        }
+
+        List<Entity> needSenderKey = new ArrayList<>();
+        for (Entity member : recipients) {
+            if (!haveSenderKey.containsKey(member.getAddress())) {
+                needSenderKey.add(member);
+            }
+        }
+
+        if (needSenderKey.isEmpty()) {
+            return keyReady(recipients);
+        }
+
+        if (distributionMessage == null) {
+            distributionMessage = groups.createSenderKey(sender, groupId);
+        }
+
+        CompletableFuture<GroupMessagingService.FanOut> distribution =
+                distributor.distribute(sender, groupId, distributionMessage, needSenderKey);
+
+        pairwiseEncryptions.add(needSenderKey.size());
+        senderKeyDistributions.add(needSenderKey.size());
+
+        for (Entity member : needSenderKey) {
+            haveSenderKey.put(member.getAddress(), distribution);
+        }
+
+        Map<SignalProtocolAddress, CompletableFuture<GroupMessagingService.FanOut>> keyReady = keyReady(recipients);
+
+        /* Members it failed for are given the key again with the next message */
+        distribution.whenComplete((fanOut, e) -> {
+            synchronized (this) {
+                if (e != null) {
+                    haveSenderKey.values().removeIf(pending -> pending == distribution);
+                } else {
+                    for (SignalProtocolAddress failed : fanOut.getFailed().keySet()) {
+                        haveSenderKey.remove(failed, distribution);
+                    }
+                }
+            }
+        });
+
+        return keyReady;
+    }
+
+    private Map<SignalProtocolAddress, CompletableFuture<GroupMessagingService.FanOut>> keyReady(
+            List<Entity> recipients) {
+        Map<SignalProtocolAddress, CompletableFuture<GroupMessagingService.FanOut>> keyReady = new HashMap<>();
+        for (Entity member : recipients) {
+            keyReady.put(member.getAddress(), haveSenderKey.get(member.getAddress()));
+        }
+        return keyReady;
+    }
+
+    private Mode chooseMode() {
+        double recipients = members.size();
+        double pairwiseCost = recipients;
+        double senderKeyCost = senderKeyMessageCost + churn * recipients;
+
+        Mode next = mode;
+
+        if (mode == Mode.PAIRWISE && senderKeyCost * HYSTERESIS < pairwiseCost) {
+            next = Mode.SENDER_KEY;
+        } else if (mode == Mode.SENDER_KEY && pairwiseCost * HYSTERESIS < senderKeyCost) {
+            next = Mode.PAIRWISE;
+        }
+
+        if (next != mode) {
+            modeSwitches.increment();
+            mode = next;
+        }
+
+        return mode;
+    }
+
+    public synchronized Mode getMode() {
+        return mode;
+    }
+
+    /* Membership changes per message, smoothed */
+    public synchronized double getChurn() {
+        return churn;
+    }
+
+    public synchronized int getMemberCount() {
+        return members.size();
+    }
+
+    public long getPairwiseMessageCount() {
+        return pairwiseMessages.sum();
+    }
+
+    public long getSenderKeyMessageCount() {
+        return senderKeyMessages.sum();
+    }
+
+    /* Session encryptions for messages and for sender key distribution */
+    public long getPairwiseEncryptionCount() {
+        return pairwiseEncryptions.sum();
+    }
+
+    public long getGroupEncryptionCount() {
+        return groupEncryptions.sum();
+    }
+
+    public long getSenderKeyDistributionCount() {
+        return senderKeyDistributions.sum();
+    }
+
+    public long getSenderKeyRotationCount() {
+        return senderKeyRotations.sum();
+    }
+
+    public long getModeSwitchCount() {
+        return modeSwitches.sum();
+    }
+
+    /* Time from send() until every member had the message, summed per mode */
+    public long getPairwiseNanos() {
+        return pairwiseNanos.sum();
+    }
+
+    public long getSenderKeyNanos() {
+        return senderKeyNanos.sum();
+    }
+}
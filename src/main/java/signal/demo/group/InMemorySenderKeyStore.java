@@ -5,34 +5,67 @@ import org.whispersystems.libsignal.groups.state.SenderKeyRecord;
 import org.whispersystems.libsignal.groups.state.SenderKeyStore;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 
 /*
-* A simple SenderKeyStore for demo purposes
+* A simple SenderKeyStore for demo purposes, safe to share between threads.
+*
+* GroupCipher loads a record, advances its chain and stores it back. Parsing a fresh copy on every load would keep a
+* failed decrypt from leaving a half-advanced chain behind, but it costs a protobuf decode per message. Instead the
+* stored record is handed out as is and marked as checked out, and storeSenderKey checks it back in and keeps its
+* bytes as the last good state. That costs one encode per store and nothing per load.
+*
+* Not every load is followed by a store: GroupSessionBuilder.create only reads an existing record, and a failed
+* decrypt gives up half way. So a record loaded again while still checked out is encoded and compared with the last
+* good bytes. If it is unchanged it is handed out again; if not, it is rebuilt from those bytes.
+*
+* libsignal already runs every group operation under the global GroupCipher.LOCK, so one monitor around the map is
+* enough; finer locking here would never be contended.
 * */
 public class InMemorySenderKeyStore implements SenderKeyStore {
 
-    private final Map<SenderKeyName, SenderKeyRecord> store = new HashMap<>();
+    private final Map<SenderKeyName, Entry> store = new HashMap<>();
 
     @Override
-    public void storeSenderKey(SenderKeyName senderKeyName, SenderKeyRecord record) {
-        store.put(senderKeyName, record);
+    public synchronized void storeSenderKey(SenderKeyName senderKeyName, SenderKeyRecord record) {
+        Entry entry = store.get(senderKeyName);
+
+        if (entry == null) {
+            entry = new Entry();
+            store.put(senderKeyName, entry);
+        }
+
+        entry.record = record;
+        entry.committed = record.serialize();
+        entry.checkedOut = false;
     }
 
     @Override
-    public SenderKeyRecord loadSenderKey(SenderKeyName senderKeyName) {
-        try {
-            SenderKeyRecord record = store.get(senderKeyName);
+    public synchronized SenderKeyRecord loadSenderKey(SenderKeyName senderKeyName) {
+        Entry entry = store.get(senderKeyName);
+
+        if (entry == null) {
+            return new SenderKeyRecord();
+        }
 
-            if (record == null) {
-                return new SenderKeyRecord();
-            } else {
-                return new SenderKeyRecord(record.serialize());
+        try {
+            if (entry.checkedOut && !Arrays.equals(entry.record.serialize(), entry.committed)) {
+                entry.record = new SenderKeyRecord(entry.committed);
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+
+        entry.checkedOut = true;
+        return entry.record;
+    }
+
+    private static class Entry {
+        private SenderKeyRecord record;
+        private byte[] committed;
+        private boolean checkedOut;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,95 @@
+package signal.demo.group;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.UntrustedIdentityException;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import signal.demo.Entity;
+import signal.demo.one_on_one.Session;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+* One-on-one Sessions between group members, cached per (self, other).
+*
+* A Session only needs the other party's PreKeyBundle to start a session it is about to send on. The receiving side
+* gets its session from the first PreKeySignalMessage, so no bundle (and no one-time prekey) is taken for it.
+*
+* An entry belongs to the two Entity instances it was built for. An Entity rebuilt under the same address replaces
+* it, so a Session never outlives the store it was built on. Entries are only ever built inside compute, so two
+* first senders can't both take a prekey.
+* */
+public class PairwiseSessions {
+
+    private final ConcurrentMap<Pair, Entry> sessions = new ConcurrentHashMap<>();
+
+    public CiphertextMessage encrypt(Entity from, Entity to, byte[] plaintext) throws UntrustedIdentityException {
+        return session(from, to, true).encrypt(plaintext);
+    }
+
+    public byte[] decrypt(Entity to, Entity from, CiphertextMessage ciphertext) {
+        return session(to, from, false).decryptBytes(ciphertext);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    private Session session(Entity self, Entity other, boolean sending) {
+        Pair pair = new Pair(self.getAddress(), other.getAddress());
+        Entry entry = sessions.get(pair);
+
+        if (entry == null || !entry.serves(self, other, sending)) {
+            entry = sessions.compute(pair, (key, current) ->
+                    current != null && current.serves(self, other, sending) ? current : new Entry(self, other, sending));
+        }
+
+        return entry.session;
+    }
+
+    private static class Entry {
+        private final Entity self;
+        private final Entity other;
+        private final Session session;
+        private final boolean withBundle;
+
+        Entry(Entity self, Entity other, boolean sending) {
+            this.self = self;
+            this.other = other;
+            this.withBundle = sending && !self.getStore().containsSession(other.getAddress());
+            this.session = new Session(self.getStore(), withBundle ? other.getPreKey() : null, other.getAddress());
+        }
+
+        /* A receive-only Session can't send until the store has a session for it to use */
+        boolean serves(Entity self, Entity other, boolean sending) {
+            return this.self == self && this.other == other
+                    && (!sending || withBundle || self.getStore().containsSession(other.getAddress()));
+        }
+    }
+
+    private static class Pair {
+        private final SignalProtocolAddress self;
+        private final SignalProtocolAddress other;
+
+        Pair(SignalProtocolAddress self, SignalProtocolAddress other) {
+            this.self = self;
+            this.other = other;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Pair)) {
+                return false;
+            }
+
+            Pair that = (Pair) o;
+            return self.equals(that.self) && other.equals(that.other);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(self, other);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package signal.demo.group;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+import signal.demo.Entity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+* Delivers SenderKeyDistributionMessages over the members' pairwise Sessions, the way a real deployment has to.
+*
+* Sending side: the distribution message is serialized once and encrypted for each member on the worker executor, a
+* batch of members per task. Callers get a future right away, so handing a key to thousands of members never blocks
+* the sender.
+*
+* Receiving side: each member has an inbound queue, drained by at most one worker at a time. A drain takes everything
+* that is queued, decrypts it and processes the distribution messages together. If the same sender key (same sender,
+* group and key id) arrives more than once in a drain, only the copy with the lowest iteration is processed.
+* */
+public class SenderKeyDistributor {
+
+    private interface Transfer {
+        Pending prepare(Entity member) throws Exception;
+    }
+
+    private final GroupMessagingService groups;
+    private final PairwiseSessions pairwise;
+    private final ConcurrentMap<SignalProtocolAddress, Inbound> inbound = new ConcurrentHashMap<>();
+
+    public SenderKeyDistributor(GroupMessagingService groups, PairwiseSessions pairwise) {
+        this.groups = groups;
+        this.pairwise = pairwise;
+    }
+
+    /*
+    * Sends the sender's current key for the group to every member.
+    * */
+    public CompletableFuture<GroupMessagingService.FanOut> distribute(Entity sender, String groupId,
+                                                                      List<Entity> members) {
+        return distribute(sender, groupId, groups.createSenderKey(sender, groupId), members);
+    }
+
+    public CompletableFuture<GroupMessagingService.FanOut> distribute(Entity sender, String groupId,
+                                                                      SenderKeyDistributionMessage message,
+                                                                      List<Entity> members) {
+        SenderKeyName senderKeyName = GroupMessagingService.senderKeyName(sender, groupId);
+        byte[] serialized = message.serialize();
+
+        return transfer(members, member ->
+                new Pending(member, sender, senderKeyName, pairwise.encrypt(sender, member, serialized)));
+    }
+
+    /*
+    * A member joins: every existing member sends them its sender key, and they send theirs to everyone. Keys arriving
+    * at the new member are processed in bulk by its inbound queue. Failures are reported by the other member's
+    * address.
+    * */
+    public CompletableFuture<GroupMessagingService.FanOut> welcome(Entity newMember, String groupId,
+                                                                   List<Entity> members) {
+        List<Entity> others = new ArrayList<>(members.size());
+
+        for (Entity member : members) {
+            if (!member.getAddress().equals(newMember.getAddress())) {
+                others.add(member);
+            }
+        }
+
+        CompletableFuture<GroupMessagingService.FanOut> theirKeys = transfer(others, member -> {
+            byte[] serialized = groups.createSenderKey(member, groupId).serialize();
+
+            return new Pending(newMember, member, GroupMessagingService.senderKeyName(member, groupId),
+                    pairwise.encrypt(member, newMember, serialized));
+        });
+
+        return theirKeys.thenCombine(distribute(newMember, groupId, others), GroupMessagingService.FanOut::add);
+    }
+
+    /*
+    * Encrypts on the workers, queues each message at its recipient, and completes once every recipient has processed
+    * its message or failed.
+    * */
+    private CompletableFuture<GroupMessagingService.FanOut> transfer(List<Entity> members, Transfer transfer) {
+        GroupMessagingService.FanOut result = new GroupMessagingService.FanOut();
+        Queue<CompletableFuture<Void>> processed = new ConcurrentLinkedQueue<>();
+
+        CompletableFuture<GroupMessagingService.FanOut> encrypted =
+                groups.forEachMember(members, (member, plaintext) -> { }, member -> {
+                    Pending pending = transfer.prepare(member);
+
+                    processed.add(pending.done.handle((done, e) -> {
+                        if (e == null) {
+                            result.delivered();
+                        } else {
+                            result.failed(member.getAddress(), unwrap(e));
+                        }
+                        return null;
+                    }));
+
+                    enqueue(pending);
+                    return null;
+                });
+
+        return encrypted.thenCompose(encryption -> {
+            encryption.getFailed().forEach(result::failed);
+
+            return CompletableFuture.allOf(processed.toArray(new CompletableFuture[0])).thenApply(done -> result);
+        });
+    }
+
+    private void enqueue(Pending pending) {
+        Inbound queue = inbound.computeIfAbsent(pending.recipient.getAddress(), address -> new Inbound());
+
+        queue.pending.add(pending);
+        schedule(queue);
+    }
+
+    private void schedule(Inbound queue) {
+        if (queue.draining.compareAndSet(false, true)) {
+            groups.getWorkers().execute(() -> drain(queue));
+        }
+    }
+
+    private void drain(Inbound queue) {
+        try {
+            List<Pending> batch = new ArrayList<>();
+            Pending next;
+
+            while ((next = queue.pending.poll()) != null) {
+                batch.add(next);
+            }
+
+            process(batch);
+        } finally {
+            queue.draining.set(false);
+        }
+
+        if (!queue.pending.isEmpty()) {
+            schedule(queue);
+        }
+    }
+
+    /*
+    * Every message has to be decrypted, in order, to keep the pairwise ratchets in step. Processing is where the
+    * duplicates are skipped.
+    * */
+    private void process(List<Pending> batch) {
+        Map<String, Pending> lowest = new HashMap<>();
+
+        for (Pending pending : batch) {
+            try {
+                byte[] received = pairwise.decrypt(pending.recipient, pending.sender, pending.ciphertext);
+                pending.message = new SenderKeyDistributionMessage(received);
+
+                String key = pending.senderKeyName.serialize() + "::" + pending.message.getId();
+                Pending seen = lowest.get(key);
+
+                if (seen == null || pending.message.getIteration() < seen.message.getIteration()) {
+                    lowest.put(key, pending);
+                }
+            } catch (Exception e) {
+                pending.done.completeExceptionally(e);
+            }
+        }
+
+        for (Pending pending : batch) {
+            if (pending.message == null) {
+                continue;
+            }
+
+            String key = pending.senderKeyName.serialize() + "::" + pending.message.getId();
+
+            try {
+                if (lowest.get(key) == pending) {
+                    groups.processSenderKey(pending.recipient, pending.senderKeyName, pending.message);
+                }
+                pending.done.complete(null);
+            } catch (Exception e) {
+                pending.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    GroupMessagingService getGroups() {
+        return groups;
+    }
+
+    PairwiseSessions getPairwise() {
+        return pairwise;
+    }
+
+    private static Exception unwrap(Throwable e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+    }
+
+    private static class Inbound {
+        private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+    }
+
+    private static class Pending {
+        private final Entity recipient;
+        private final Entity sender;
+        private final SenderKeyName senderKeyName;
+        private final CiphertextMessage ciphertext;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private SenderKeyDistributionMessage message;
+
+        Pending(Entity recipient, Entity sender, SenderKeyName senderKeyName, CiphertextMessage ciphertext) {
+            this.recipient = recipient;
+            this.sender = sender;
+            this.senderKeyName = senderKeyName;
+            this.ciphertext = ciphertext;
+        }
+    }
+}
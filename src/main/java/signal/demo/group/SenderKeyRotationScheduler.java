@@ -0,0 +1,365 @@
+package signal.demo.group;
+
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.groups.SenderKeyName;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+import signal.demo.Entity;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+* Keeps each sender key in a group fresh: rotates it when a member leaves or after maxMessagesPerKey messages, and
+* hands the current key to members who join.
+*
+* Changes are not acted on right away. The first change to a group starts a coalescing window; every join, leave and
+* message-count rotation that arrives before the window closes is folded into one piece of work. Joins alone only need
+* the current key sent to the new members. A leave or a used-up key means one rotation and one redistribution to
+* everyone, however many members left.
+*
+* Redistribution is done in slices of sliceSize members, one slice after the other, and only maxConcurrentRekeys
+* groups are re-keyed at a time. Changes that come in while a group is being re-keyed wait for the next window. So a
+* mass join or leave costs at most one re-key per window per group.
+*
+* Until the rotation for a leave has gone out, the key the member took with them is still the current one. Anything
+* encrypted with it during the coalescing window, and while the rotation is in flight, can be read by someone who has
+* already left and gets hold of the ciphertext. HybridGroupSender doesn't close that window: it encrypts right away
+* and only holds back delivery until settled(). A sender that must not allow it has to wait for settled() before it
+* encrypts, at the cost of the window's latency on every message.
+*
+* A window whose rotation fails is counted in getFailedRunCount() and its changes are kept for the next window, so a
+* failing store delays the rotation instead of dropping it. Members the key couldn't be delivered to are counted in
+* getFailedDistributionCount() and queued again as if they had just joined, so the next window retries them, and
+* settled() waits until they have it.
+* */
+public class SenderKeyRotationScheduler implements Closeable {
+
+    public static final long DEFAULT_COALESCE_MILLIS = 200;
+    public static final long DEFAULT_MAX_MESSAGES_PER_KEY = 1000;
+    public static final int DEFAULT_SLICE_SIZE = 256;
+    public static final int DEFAULT_MAX_CONCURRENT_REKEYS = 4;
+
+    private final SenderKeyDistributor distributor;
+    private final ScheduledExecutorService timer;
+    private final boolean ownsTimer;
+    private final long coalesceMillis;
+    private final long maxMessagesPerKey;
+    private final int sliceSize;
+    private final Semaphore rekeys;
+
+    private final ConcurrentMap<SenderKeyName, Group> groups = new ConcurrentHashMap<>();
+
+    private final LongAdder rotations = new LongAdder();
+    private final LongAdder distributions = new LongAdder();
+    private final LongAdder coalescedChanges = new LongAdder();
+    private final LongAdder failedDistributions = new LongAdder();
+    private final LongAdder failedRuns = new LongAdder();
+
+    public SenderKeyRotationScheduler(SenderKeyDistributor distributor) {
+        this(distributor, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sender-key-rotation");
+            thread.setDaemon(true);
+            return thread;
+        }), true, DEFAULT_COALESCE_MILLIS, DEFAULT_MAX_MESSAGES_PER_KEY, DEFAULT_SLICE_SIZE,
+                DEFAULT_MAX_CONCURRENT_REKEYS);
+    }
+
+    public SenderKeyRotationScheduler(SenderKeyDistributor distributor, ScheduledExecutorService timer,
+                                      long coalesceMillis, long maxMessagesPerKey, int sliceSize,
+                                      int maxConcurrentRekeys) {
+        this(distributor, timer, false, coalesceMillis, maxMessagesPerKey, sliceSize, maxConcurrentRekeys);
+    }
+
+    private SenderKeyRotationScheduler(SenderKeyDistributor distributor, ScheduledExecutorService timer,
+                                       boolean ownsTimer, long coalesceMillis, long maxMessagesPerKey, int sliceSize,
+                                       int maxConcurrentRekeys) {
+        this.distributor = distributor;
+        this.timer = timer;
+        this.ownsTimer = ownsTimer;
+        this.coalesceMillis = coalesceMillis;
+        this.maxMessagesPerKey = maxMessagesPerKey;
+        this.sliceSize = sliceSize;
+        this.rekeys = new Semaphore(maxConcurrentRekeys);
+    }
+
+    /*
+    * Starts tracking the sender's key for the group. All members get the current key in the first window.
+    * */
+    public void track(Entity sender, String groupId, Collection<Entity> members) {
+        Group group = groups.computeIfAbsent(GroupMessagingService.senderKeyName(sender, groupId),
+                name -> new Group(sender, groupId));
+
+        synchronized (group) {
+            for (Entity member : members) {
+                if (!member.getAddress().equals(sender.getAddress())) {
+                    group.members.put(member.getAddress(), member);
+                    group.joined.add(member.getAddress());
+                }
+            }
+            changed(group);
+        }
+    }
+
+    public void memberJoined(Entity sender, String groupId, Entity member) {
+        Group group = group(sender, groupId);
+
+        synchronized (group) {
+            if (group.members.put(member.getAddress(), member) == null) {
+                group.joined.add(member.getAddress());
+                changed(group);
+            }
+        }
+    }
+
+    public void memberLeft(Entity sender, String groupId, Entity member) {
+        Group group = group(sender, groupId);
+
+        synchronized (group) {
+            if (group.members.remove(member.getAddress()) != null) {
+                /*
+                * A member who never got the key has nothing to take away with them. One queued again after a failed
+                * distribution may have got it anyway.
+                * */
+                boolean neverHadKey = group.joined.remove(member.getAddress())
+                        && !group.retried.remove(member.getAddress());
+                if (!neverHadKey) {
+                    group.rotate = true;
+                }
+                changed(group);
+            }
+        }
+    }
+
+    /*
+    * Call once per group message the sender encrypts.
+    * */
+    public void messageSent(Entity sender, String groupId) {
+        Group group = group(sender, groupId);
+
+        synchronized (group) {
+            if (++group.messages == maxMessagesPerKey) {
+                group.rotate = true;
+                changed(group);
+            }
+        }
+    }
+
+    /*
+    * Completes once every change made so far has been acted on.
+    * */
+    public CompletableFuture<Void> settled(Entity sender, String groupId) {
+        Group group = group(sender, groupId);
+
+        synchronized (group) {
+            return group.settled;
+        }
+    }
+
+    private Group group(Entity sender, String groupId) {
+        Group group = groups.get(GroupMessagingService.senderKeyName(sender, groupId));
+
+        if (group == null) {
+            throw new IllegalStateException("Not tracked: " + groupId + " from " + sender.getAddress());
+        }
+        return group;
+    }
+
+    /* Callers hold the group's monitor */
+    private void changed(Group group) {
+        group.changes++;
+
+        if (group.settled.isDone()) {
+            group.settled = new CompletableFuture<>();
+        }
+
+        if (!group.scheduled && !group.inFlight) {
+            group.scheduled = true;
+            timer.schedule(() -> flush(group), coalesceMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush(Group group) {
+        SenderKeyDistributionMessage message;
+        List<Entity> targets = new ArrayList<>();
+
+        synchronized (group) {
+            if (!rekeys.tryAcquire()) {
+                timer.schedule(() -> flush(group), coalesceMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+
+            group.scheduled = false;
+            group.inFlight = true;
+            int changes = group.changes;
+            group.changes = 0;
+
+            GroupMessagingService groupService = distributor.getGroups();
+
+            try {
+                if (group.rotate) {
+                    message = groupService.rotateSenderKey(group.sender, group.groupId);
+                    targets.addAll(group.members.values());
+                    group.rotate = false;
+                    group.messages = 0;
+                    rotations.increment();
+                } else {
+                    message = groupService.createSenderKey(group.sender, group.groupId);
+
+                    for (SignalProtocolAddress address : group.joined) {
+                        targets.add(group.members.get(address));
+                    }
+                }
+            } catch (RuntimeException e) {
+                /* Nothing has been cleared, so putting the changes back retries the whole window */
+                failedRuns.increment();
+                group.changes += Math.max(1, changes);
+                finished(group);
+                return;
+            }
+            coalescedChanges.add(Math.max(0, changes - 1));
+            group.joined.clear();
+            group.retried.clear();
+        }
+
+        distributeSlice(group, message, targets, 0);
+    }
+
+    private void distributeSlice(Group group, SenderKeyDistributionMessage message, List<Entity> targets, int from) {
+        if (from >= targets.size()) {
+            finished(group);
+            return;
+        }
+
+        List<Entity> slice = targets.subList(from, Math.min(from + sliceSize, targets.size()));
+
+        CompletableFuture<GroupMessagingService.FanOut> distribution;
+
+        try {
+            distribution = distributor.distribute(group.sender, group.groupId, message, slice);
+        } catch (RuntimeException e) {
+            distribution = new CompletableFuture<>();
+            distribution.completeExceptionally(e);
+        }
+
+        distribution.whenComplete((fanOut, e) -> {
+            List<SignalProtocolAddress> failed = new ArrayList<>();
+
+            if (e != null) {
+                for (Entity member : slice) {
+                    failed.add(member.getAddress());
+                }
+            } else {
+                distributions.add(fanOut.getDelivered());
+                failed.addAll(fanOut.getFailed().keySet());
+            }
+
+            if (!failed.isEmpty()) {
+                failedDistributions.add(failed.size());
+                retry(group, failed);
+            }
+            distributeSlice(group, message, targets, from + slice.size());
+        });
+    }
+
+    /*
+    * Queues members who didn't get the key for the next window. Those who left in the meantime don't need it.
+    * */
+    private void retry(Group group, List<SignalProtocolAddress> failed) {
+        synchronized (group) {
+            boolean queued = false;
+
+            for (SignalProtocolAddress address : failed) {
+                if (group.members.containsKey(address) && group.joined.add(address)) {
+                    group.retried.add(address);
+                    queued = true;
+                }
+            }
+
+            if (queued) {
+                changed(group);
+            }
+        }
+    }
+
+    private void finished(Group group) {
+        rekeys.release();
+
+        synchronized (group) {
+            group.inFlight = false;
+
+            if (group.changes > 0) {
+                group.scheduled = true;
+                timer.schedule(() -> flush(group), coalesceMillis, TimeUnit.MILLISECONDS);
+            } else {
+                group.settled.complete(null);
+            }
+        }
+    }
+
+    SenderKeyDistributor getDistributor() {
+        return distributor;
+    }
+
+    public long getFailedRunCount() {
+        return failedRuns.sum();
+    }
+
+    public long getRotationCount() {
+        return rotations.sum();
+    }
+
+    /* Distribution messages delivered to members */
+    public long getDistributionCount() {
+        return distributions.sum();
+    }
+
+    /* Changes that were folded into another change's re-key instead of getting their own */
+    public long getCoalescedChangeCount() {
+        return coalescedChanges.sum();
+    }
+
+    public long getFailedDistributionCount() {
+        return failedDistributions.sum();
+    }
+
+    @Override
+    public void close() {
+        if (ownsTimer) {
+            timer.shutdown();
+        }
+    }
+
+    private static class Group {
+        private final Entity sender;
+        private final String groupId;
+        private final Map<SignalProtocolAddress, Entity> members = new LinkedHashMap<>();
+        private final Set<SignalProtocolAddress> joined = new LinkedHashSet<>();
+        private final Set<SignalProtocolAddress> retried = new HashSet<>();
+        private boolean rotate;
+        private long messages;
+        private int changes;
+        private boolean scheduled;
+        private boolean inFlight;
+        private CompletableFuture<Void> settled = CompletableFuture.completedFuture(null);
+
+        Group(Entity sender, String groupId) {
+            this.sender = sender;
+            this.groupId = groupId;
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package signal.demo.metrics;
+
+public interface Counter {
+
+    Counter NOOP = amount -> { };
+
+    void add(long amount);
+
+    default void increment() {
+        add(1);
+    }
+}
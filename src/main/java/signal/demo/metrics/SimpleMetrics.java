@@ -0,0 +1,189 @@
+package signal.demo.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+* An in-process Metrics that keeps everything in memory and can dump it as text or JSON.
+*
+* Counters are LongAdders. Timers keep a count, a total, a maximum and a histogram with one bucket per power of two
+* nanoseconds, so percentiles are accurate to within a factor of two, which is plenty to spot a slow operation.
+* */
+public class SimpleMetrics implements Metrics {
+
+    private final ConcurrentMap<String, SimpleCounter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, SimpleTimer> timers = new ConcurrentHashMap<>();
+
+    @Override
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, key -> new SimpleCounter());
+    }
+
+    @Override
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, key -> new SimpleTimer());
+    }
+
+    public long getCount(String counterName) {
+        SimpleCounter counter = counters.get(counterName);
+        return counter == null ? 0 : counter.sum.sum();
+    }
+
+    public void writeText(Appendable out) throws IOException {
+        for (Map.Entry<String, SimpleCounter> entry : new TreeMap<>(counters).entrySet()) {
+            out.append(entry.getKey()).append(' ').append(Long.toString(entry.getValue().sum.sum())).append('\n');
+        }
+
+        for (Map.Entry<String, SimpleTimer> entry : new TreeMap<>(timers).entrySet()) {
+            SimpleTimer timer = entry.getValue();
+
+            out.append(entry.getKey())
+                    .append(" count=").append(Long.toString(timer.count.sum()))
+                    .append(" mean=").append(Long.toString(timer.mean())).append("ns")
+                    .append(" p50=").append(Long.toString(timer.percentile(0.50))).append("ns")
+                    .append(" p99=").append(Long.toString(timer.percentile(0.99))).append("ns")
+                    .append(" max=").append(Long.toString(timer.max.get())).append("ns")
+                    .append('\n');
+        }
+    }
+
+    public void writeJson(Appendable out) throws IOException {
+        out.append("{\"counters\":{");
+
+        String separator = "";
+        for (Map.Entry<String, SimpleCounter> entry : new TreeMap<>(counters).entrySet()) {
+            out.append(separator).append(quote(entry.getKey())).append(':')
+                    .append(Long.toString(entry.getValue().sum.sum()));
+            separator = ",";
+        }
+
+        out.append("},\"timers\":{");
+
+        separator = "";
+        for (Map.Entry<String, SimpleTimer> entry : new TreeMap<>(timers).entrySet()) {
+            SimpleTimer timer = entry.getValue();
+
+            out.append(separator).append(quote(entry.getKey())).append(":{")
+                    .append("\"count\":").append(Long.toString(timer.count.sum()))
+                    .append(",\"totalNanos\":").append(Long.toString(timer.total.sum()))
+                    .append(",\"maxNanos\":").append(Long.toString(timer.max.get()))
+                    .append(",\"p50Nanos\":").append(Long.toString(timer.percentile(0.50)))
+                    .append(",\"p99Nanos\":").append(Long.toString(timer.percentile(0.99)))
+                    .append(",\"histogram\":{");
+
+            String bucketSeparator = "";
+            for (int i = 0; i < timer.buckets.length; i++) {
+                long count = timer.buckets[i].sum();
+
+                if (count > 0) {
+                    out.append(bucketSeparator).append('"').append(Long.toString(upperBound(i))).append("\":")
+                            .append(Long.toString(count));
+                    bucketSeparator = ",";
+                }
+            }
+
+            out.append("}}");
+            separator = ",";
+        }
+
+        out.append("}}");
+    }
+
+    /*
+    * Writes JSON if the file name ends in .json, text otherwise.
+    * */
+    public void dump(File file) {
+        try (Writer out = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            if (file.getName().endsWith(".json")) {
+                writeJson(out);
+            } else {
+                writeText(out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+
+        try {
+            writeText(text);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return text.toString();
+    }
+
+    /* Bucket i holds durations up to 2^i - 1 ns */
+    private static long upperBound(int bucket) {
+        return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    private static String quote(String name) {
+        return '"' + name.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    private static class SimpleCounter implements Counter {
+        private final LongAdder sum = new LongAdder();
+
+        @Override
+        public void add(long amount) {
+            sum.add(amount);
+        }
+    }
+
+    private static class SimpleTimer implements Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        private final LongAdder[] buckets = new LongAdder[65];
+
+        SimpleTimer() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        @Override
+        public void record(long nanos) {
+            long duration = Math.max(0, nanos);
+
+            count.increment();
+            total.add(duration);
+            max.accumulate(duration);
+            buckets[64 - Long.numberOfLeadingZeros(duration)].increment();
+        }
+
+        long mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : total.sum() / n;
+        }
+
+        long percentile(double fraction) {
+            long n = count.sum();
+            long rank = (long) Math.ceil(n * fraction);
+            long seen = 0;
+
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i].sum();
+
+                if (seen >= rank && seen > 0) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return 0;
+        }
+    }
+}
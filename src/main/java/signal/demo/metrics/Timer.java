@@ -0,0 +1,36 @@
+package signal.demo.metrics;
+
+/*
+* Usage:
+*
+*     long start = timer.start();
+*     ...
+*     timer.stop(start);
+* */
+public interface Timer {
+
+    Timer NOOP = new Timer() {
+        @Override
+        public long start() {
+            return 0;
+        }
+
+        @Override
+        public void record(long nanos) {
+        }
+
+        @Override
+        public void stop(long start) {
+        }
+    };
+
+    default long start() {
+        return System.nanoTime();
+    }
+
+    default void stop(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    void record(long nanos);
+}
@@ -0,0 +1,528 @@
+package signal.demo.one_on_one;
+
+import signal.demo.Compression;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+* Streams an attachment through AES-256-GCM in fixed-size chunks, so memory use stays at a small window of chunk
+* buffers no matter how large the file is.
+*
+* Every attachment gets a fresh random key and IV. Chunk i is sealed on its own under the IV with i folded into its
+* last four bytes, so each chunk is authenticated and tied to its position. The stored length in the pointer tells
+* the receiver exactly how many chunks to expect, which catches truncated or padded ciphertext.
+*
+* Since no chunk depends on another, they are sealed and opened on a fork/join pool, up to two per worker at a time,
+* while the calling thread reads ahead. Results are written out in chunk order, so the stream is the same as if it
+* had been done one chunk at a time. An attachment of one chunk never leaves the calling thread. The pool is a
+* dedicated one unless the caller passes their own, so attachments don't hold up Session's async work on the common
+* pool or get held up by it.
+*
+* The digest carried in the pointer is the SHA-256 of the SHA-256s of the stored chunks, in order. Each chunk is hashed
+* by the worker that seals or opens it, so hashing scales with the workers like the cipher does. The receiver combines
+* its chunk hashes the same way and checks the result at the end, so verifying the file takes no second pass over it.
+* The check comes after the last chunk is written, so a caller that gets an exception must discard what it was given.
+* Because it covers the stored chunks, the digest depends on the chunk size and the codec as well as the content: the
+* same file encrypted with another chunk size, or compressed differently, has another digest. Both are in the pointer,
+* so a receiver can always check it. It only identifies content among attachments encrypted with the same settings.
+* Reading, writing and compression still happen on the calling thread, and bound how far this scales.
+*
+* Text and other compressible attachments are deflated on the way in, as one stream cut into the same fixed-size chunks,
+* so the chunk layout doesn't change. Compression.choose looks at the first chunk to decide; a JPEG is sent as is. The
+* pointer records the codec and the stored length, which is what the chunks are counted against, while the length
+* stays that of the original plaintext.
+* */
+class AttachmentCipher {
+
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    /* Chunk sizes come from the sender, and every chunk in flight costs two buffers of this size */
+    static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    static final int KEY_LENGTH = 32;
+    static final int IV_LENGTH = 12;
+    static final int DIGEST_LENGTH = 32;
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int TAG_LENGTH = 16;
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static volatile ForkJoinPool defaultPool;
+
+    private AttachmentCipher() {
+    }
+
+    static AttachmentPointer encrypt(ReadableByteChannel in, WritableByteChannel out)
+            throws IOException, GeneralSecurityException
+    {
+        return encrypt(in, out, DEFAULT_CHUNK_SIZE);
+    }
+
+    static AttachmentPointer encrypt(ReadableByteChannel in, WritableByteChannel out, int chunkSize)
+            throws IOException, GeneralSecurityException
+    {
+        return encrypt(in, out, chunkSize, getDefaultPool());
+    }
+
+    static AttachmentPointer encrypt(ReadableByteChannel in, WritableByteChannel out, int chunkSize,
+                                     ForkJoinPool pool)
+            throws IOException, GeneralSecurityException
+    {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Bad chunk size: " + chunkSize);
+        }
+
+        byte[] key = new byte[KEY_LENGTH];
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(key);
+        RANDOM.nextBytes(iv);
+
+        ChunkCipher chunks = new ChunkCipher(Cipher.ENCRYPT_MODE, key, iv, chunkSize, pool,
+                sealed -> writeFully(out, sealed));
+
+        ByteBuffer plaintext = ByteBuffer.allocate(chunkSize);
+        readFully(in, plaintext);
+        plaintext.flip();
+
+        /* The first chunk decides whether the attachment is worth compressing */
+        int codec = Compression.choose(plaintext.array(), 0, plaintext.limit());
+        Deflater deflater = codec == Compression.DEFLATE ? Compression.newDeflater() : null;
+        ByteBuffer stored = deflater != null ? ByteBuffer.allocate(chunkSize) : null;
+
+        long length = 0;
+
+        try {
+            while (plaintext.hasRemaining()) {
+                length += plaintext.remaining();
+
+                if (deflater == null) {
+                    chunks.seal(plaintext);
+                } else {
+                    deflater.setInput(plaintext.array(), 0, plaintext.limit());
+                    while (!deflater.needsInput()) {
+                        deflate(deflater, stored, chunks);
+                    }
+                }
+
+                plaintext.clear();
+                readFully(in, plaintext);
+                plaintext.flip();
+            }
+
+            if (deflater != null) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate(deflater, stored, chunks);
+                }
+
+                if (stored.position() > 0) {
+                    stored.flip();
+                    chunks.seal(stored);
+                }
+            }
+
+            chunks.finish();
+        } finally {
+            chunks.close();
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+
+        return new AttachmentPointer(key, iv, chunkSize, length, chunks.digest.digest(), codec, chunks.total);
+    }
+
+    /*
+    * Returns the digest, once it has matched the one in the pointer.
+    * */
+    static byte[] decrypt(AttachmentPointer pointer, ReadableByteChannel in, WritableByteChannel out)
+            throws IOException, GeneralSecurityException
+    {
+        return decrypt(pointer, in, out, getDefaultPool());
+    }
+
+    /*
+    * One worker per core, created on first use. The threads are daemons, so it never needs shutting down.
+    * */
+    static ForkJoinPool getDefaultPool() {
+        if (defaultPool == null) {
+            synchronized (AttachmentCipher.class) {
+                if (defaultPool == null) {
+                    defaultPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+                        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                        thread.setName("attachment-cipher-" + thread.getPoolIndex());
+                        thread.setDaemon(true);
+                        return thread;
+                    }, null, false);
+                }
+            }
+        }
+        return defaultPool;
+    }
+
+    static byte[] decrypt(AttachmentPointer pointer, ReadableByteChannel in, WritableByteChannel out,
+                          ForkJoinPool pool)
+            throws IOException, GeneralSecurityException
+    {
+        int codec = pointer.getCodec();
+
+        if (pointer.getKey().length != KEY_LENGTH || pointer.getIv().length != IV_LENGTH
+                || pointer.getDigest().length != DIGEST_LENGTH
+                || pointer.getChunkSize() <= 0 || pointer.getChunkSize() > MAX_CHUNK_SIZE
+                || (codec != Compression.NONE && codec != Compression.DEFLATE)
+                || (codec == Compression.NONE && pointer.getStoredLength() != pointer.getLength())) {
+            throw new IOException("Malformed attachment pointer");
+        }
+
+        int chunkSize = pointer.getChunkSize();
+        PlaintextWriter plaintext = new PlaintextWriter(codec, chunkSize, pointer.getLength(), out);
+        ChunkCipher chunks = new ChunkCipher(Cipher.DECRYPT_MODE, pointer.getKey(), pointer.getIv(), chunkSize, pool,
+                plaintext);
+
+        ByteBuffer ciphertext = ByteBuffer.allocate(chunkSize + TAG_LENGTH);
+        long remaining = pointer.getStoredLength();
+
+        try {
+            while (remaining > 0) {
+                int storedLength = (int) Math.min(chunkSize, remaining);
+
+                ciphertext.limit(storedLength + TAG_LENGTH);
+                if (readFully(in, ciphertext) < storedLength + TAG_LENGTH) {
+                    throw new IOException("Attachment ciphertext is truncated");
+                }
+                ciphertext.flip();
+
+                chunks.open(ciphertext);
+                remaining -= storedLength;
+            }
+
+            chunks.finish();
+            plaintext.finish();
+        } finally {
+            chunks.close();
+            plaintext.close();
+        }
+
+        ciphertext.limit(1);
+        if (in.read(ciphertext) > 0) {
+            throw new IOException("Attachment ciphertext has trailing data");
+        }
+
+        byte[] actual = chunks.digest.digest();
+        if (!MessageDigest.isEqual(actual, pointer.getDigest())) {
+            throw new IOException("Attachment digest doesn't match");
+        }
+
+        return actual;
+    }
+
+    /*
+    * Deflates into stored and seals it whenever it fills up.
+    * */
+    private static void deflate(Deflater deflater, ByteBuffer stored, ChunkCipher chunks)
+            throws IOException, GeneralSecurityException
+    {
+        int deflated = deflater.deflate(stored.array(), stored.position(), stored.remaining());
+        stored.position(stored.position() + deflated);
+
+        if (!stored.hasRemaining()) {
+            stored.flip();
+            chunks.seal(stored);
+        }
+    }
+
+    /*
+    * Inflates as much as fits into inflated, ready to read.
+    * */
+    private static void inflate(Inflater inflater, ByteBuffer inflated) throws IOException {
+        try {
+            int n = inflater.inflate(inflated.array(), 0, inflated.capacity());
+            if (n == 0 && inflater.needsDictionary()) {
+                throw new IOException("Attachment compressed data is malformed");
+            }
+            inflated.limit(n);
+        } catch (DataFormatException e) {
+            throw new IOException("Attachment compressed data is malformed", e);
+        }
+    }
+
+    /*
+    * Where the chunks come out of a ChunkCipher, in order. The buffer is only valid during the call.
+    * */
+    private interface ChunkSink {
+        void accept(ByteBuffer chunk) throws IOException;
+    }
+
+    /*
+    * Seals or opens the chunks of one attachment on the pool, each under its own nonce, and hands the results to the
+    * sink in chunk order. The chunk hashes go into digest in the same order.
+    *
+    * The newest chunk is held back until another one arrives, so a one-chunk attachment, and the last chunk of any
+    * other, runs on the calling thread instead of waiting for a worker. Once the window is full, the next chunk waits
+    * for the oldest one to finish and be written. Tasks and their buffers are reused after that.
+    * */
+    private static final class ChunkCipher {
+        private final int mode;
+        private final SecretKeySpec keySpec;
+        private final byte[] iv;
+        private final int chunkSize;
+        private final ForkJoinPool pool;
+        private final ChunkSink sink;
+        private final int window;
+        private final MessageDigest digest;
+
+        private final ArrayDeque<ChunkTask> inFlight = new ArrayDeque<>();
+        private final ArrayDeque<ChunkTask> idle = new ArrayDeque<>();
+        private ChunkTask held;
+        private int index;
+        private long total;
+
+        ChunkCipher(int mode, byte[] key, byte[] iv, int chunkSize, ForkJoinPool pool, ChunkSink sink)
+                throws GeneralSecurityException
+        {
+            this.mode = mode;
+            this.keySpec = new SecretKeySpec(key, "AES");
+            this.iv = iv;
+            this.chunkSize = chunkSize;
+            this.pool = pool;
+            this.sink = sink;
+            this.window = Math.max(2, 2 * pool.getParallelism());
+            this.digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        }
+
+        /* Queues the chunk's remaining bytes to be encrypted, then clears it */
+        void seal(ByteBuffer chunk) throws IOException, GeneralSecurityException {
+            total += chunk.remaining();
+            submit(chunk);
+        }
+
+        /* Queues one sealed chunk to be decrypted, then clears it */
+        void open(ByteBuffer sealed) throws IOException, GeneralSecurityException {
+            submit(sealed);
+        }
+
+        /* Waits for every queued chunk and hands it to the sink */
+        void finish() throws IOException, GeneralSecurityException {
+            while (!inFlight.isEmpty()) {
+                complete(inFlight.poll());
+            }
+
+            if (held != null) {
+                ChunkTask last = held;
+                held = null;
+                last.invoke();
+                complete(last);
+            }
+        }
+
+        /* Drops whatever is still queued after a failure */
+        void close() {
+            for (ChunkTask task : inFlight) {
+                task.cancel(false);
+            }
+            inFlight.clear();
+            held = null;
+        }
+
+        private void submit(ByteBuffer chunk) throws IOException, GeneralSecurityException {
+            if (held != null) {
+                pool.execute(held);
+                inFlight.add(held);
+                held = null;
+            }
+
+            if (inFlight.size() >= window) {
+                complete(inFlight.poll());
+            }
+
+            ChunkTask task = idle.poll();
+            if (task == null) {
+                task = new ChunkTask(mode, keySpec, chunkSize + TAG_LENGTH);
+            }
+
+            task.input.put(chunk);
+            task.input.flip();
+            task.parameters = chunkParameters(iv, index++);
+
+            chunk.clear();
+            held = task;
+        }
+
+        private void complete(ChunkTask task) throws IOException, GeneralSecurityException {
+            task.join();
+
+            if (task.failure != null) {
+                throw task.failure;
+            }
+
+            digest.update(task.chunkDigest);
+            sink.accept(task.output);
+
+            task.reinitialize();
+            task.input.clear();
+            task.output.clear();
+            idle.add(task);
+        }
+    }
+
+    /*
+    * One chunk through the cipher, and the hash of its stored bytes: the input when sealing, the output when opening.
+    * A task only ever runs on one thread at a time, so it keeps a Cipher and a MessageDigest of its own.
+    * */
+    private static final class ChunkTask extends RecursiveAction {
+        private final Cipher cipher;
+        private final MessageDigest chunkHash;
+        private final int mode;
+        private final SecretKeySpec keySpec;
+        private final ByteBuffer input;
+        private final ByteBuffer output;
+        private GCMParameterSpec parameters;
+        private byte[] chunkDigest;
+        private GeneralSecurityException failure;
+
+        ChunkTask(int mode, SecretKeySpec keySpec, int bufferSize) throws GeneralSecurityException {
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+            this.chunkHash = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            this.mode = mode;
+            this.keySpec = keySpec;
+            this.input = ByteBuffer.allocate(bufferSize);
+            this.output = ByteBuffer.allocate(bufferSize);
+        }
+
+        @Override
+        protected void compute() {
+            failure = null;
+
+            try {
+                if (mode == Cipher.ENCRYPT_MODE) {
+                    chunkHash.update(input.array(), input.position(), input.remaining());
+                }
+
+                cipher.init(mode, keySpec, parameters);
+                cipher.doFinal(input, output);
+                output.flip();
+
+                if (mode == Cipher.DECRYPT_MODE) {
+                    chunkHash.update(output.array(), output.position(), output.remaining());
+                }
+                chunkDigest = chunkHash.digest();
+            } catch (GeneralSecurityException e) {
+                failure = e;
+            }
+        }
+    }
+
+    /*
+    * Takes opened chunks in order, inflates them if the attachment was compressed, and writes the plaintext. It never
+    * lets the plaintext run past the length in the pointer.
+    * */
+    private static final class PlaintextWriter implements ChunkSink {
+        private final Inflater inflater;
+        private final ByteBuffer inflated;
+        private final long expectedLength;
+        private final WritableByteChannel out;
+        private long length;
+
+        PlaintextWriter(int codec, int chunkSize, long expectedLength, WritableByteChannel out) {
+            this.inflater = codec == Compression.DEFLATE ? Compression.newInflater() : null;
+            this.inflated = inflater != null ? ByteBuffer.allocate(chunkSize) : null;
+            this.expectedLength = expectedLength;
+            this.out = out;
+        }
+
+        @Override
+        public void accept(ByteBuffer plaintext) throws IOException {
+            if (inflater == null) {
+                write(plaintext);
+                return;
+            }
+
+            inflater.setInput(plaintext.array(), plaintext.position(), plaintext.remaining());
+            while (!inflater.needsInput() && !inflater.finished()) {
+                inflate(inflater, inflated);
+                write(inflated);
+                inflated.clear();
+            }
+        }
+
+        void finish() throws IOException {
+            if (inflater != null && (!inflater.finished() || inflater.getRemaining() > 0)) {
+                throw new IOException("Attachment compressed data is malformed");
+            }
+
+            if (length != expectedLength) {
+                throw new IOException("Attachment length doesn't match");
+            }
+        }
+
+        void close() {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            length += buffer.remaining();
+            if (length > expectedLength) {
+                throw new IOException(inflater != null
+                        ? "Attachment inflates past its length"
+                        : "Attachment length doesn't match");
+            }
+
+            writeFully(out, buffer);
+        }
+    }
+
+    private static GCMParameterSpec chunkParameters(byte[] iv, int index) {
+        byte[] nonce = iv.clone();
+
+        nonce[IV_LENGTH - 4] ^= (byte) (index >>> 24);
+        nonce[IV_LENGTH - 3] ^= (byte) (index >>> 16);
+        nonce[IV_LENGTH - 2] ^= (byte) (index >>> 8);
+        nonce[IV_LENGTH - 1] ^= (byte) index;
+
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+    }
+
+    /*
+    * A single read() may return fewer bytes than asked for, so keep reading until the buffer is full or the
+    * channel is exhausted.
+    * */
+    private static int readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        int total = 0;
+
+        while (buffer.hasRemaining()) {
+            int read = in.read(buffer);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+
+        return total;
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package signal.demo.one_on_one;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/*
+* What the receiver needs to decrypt a streamed attachment: the per-attachment AES key and IV, the chunk size, the
+* plaintext length, the digest of the stored chunks, and the codec it was stored with and the length it was stored
+* at. The digest is only meaningful together with the chunk size and codec it was computed under. This is the only part
+* of an attachment that goes through the Signal session.
+* */
+class AttachmentPointer {
+
+    private final byte[] key;
+    private final byte[] iv;
+    private final int chunkSize;
+    private final long length;
+    private final byte[] digest;
+    private final int codec;
+    private final long storedLength;
+
+    AttachmentPointer(byte[] key, byte[] iv, int chunkSize, long length, byte[] digest, int codec, long storedLength) {
+        this.key = key;
+        this.iv = iv;
+        this.chunkSize = chunkSize;
+        this.length = length;
+        this.digest = digest;
+        this.codec = codec;
+        this.storedLength = storedLength;
+    }
+
+    byte[] getKey() {
+        return key;
+    }
+
+    byte[] getIv() {
+        return iv;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    byte[] getDigest() {
+        return digest;
+    }
+
+    /* A Compression codec */
+    int getCodec() {
+        return codec;
+    }
+
+    /* Bytes sealed into chunks, after compression */
+    long getStoredLength() {
+        return storedLength;
+    }
+
+    byte[] serialize() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(chunkSize);
+            out.writeLong(length);
+            out.writeByte(codec);
+            out.writeLong(storedLength);
+            out.writeByte(key.length);
+            out.write(key);
+            out.writeByte(iv.length);
+            out.write(iv);
+            out.writeByte(digest.length);
+            out.write(digest);
+            out.flush();
+
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static AttachmentPointer deserialize(byte[] serialized) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized));
+
+        int chunkSize = in.readInt();
+        long length = in.readLong();
+        int codec = in.readUnsignedByte();
+        long storedLength = in.readLong();
+        byte[] key = new byte[in.readUnsignedByte()];
+        in.readFully(key);
+        byte[] iv = new byte[in.readUnsignedByte()];
+        in.readFully(iv);
+        byte[] digest = new byte[in.readUnsignedByte()];
+        in.readFully(digest);
+
+        if (chunkSize <= 0 || chunkSize > AttachmentCipher.MAX_CHUNK_SIZE || length < 0 || storedLength < 0
+                || key.length != AttachmentCipher.KEY_LENGTH || iv.length != AttachmentCipher.IV_LENGTH) {
+            throw new IOException("Malformed attachment pointer");
+        }
+
+        return new AttachmentPointer(key, iv, chunkSize, length, digest, codec, storedLength);
+    }
+}
@@ -0,0 +1,262 @@
+package signal.demo.one_on_one;
+
+import signal.demo.metrics.Counter;
+import signal.demo.metrics.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+* Attachments on disk.
+*
+* Sending: put() encrypts a file once, under a fresh attachment key, into encrypted/<id>.bin, where id is random so
+* the name says nothing about the content. The pointer with the key and digest is kept next to it in
+* encrypted/<id>.ptr, so the directory is as sensitive as the key store. The Attachment put() returns can go to any
+* number of Sessions, and each of them only carries the pointer. The same file again costs nothing, and the same
+* content from another file is kept once: put() always uses the default chunk size, and the codec follows from the
+* content, so equal content gets equal digests here. A blob is never replaced, and a store opened later on the same directory
+* picks up the blobs and pointers already there, so pointers that have been sent stay good.
+*
+* Receiving: decrypt() writes the plaintext to decrypted/<digest>. It goes through a temporary file that is moved into
+* place only once the digest checks out, so concurrent decrypts never overwrite each other and nothing half-written or
+* forged ever sits under a digest name. The digest comes from the sender, so the ciphertext is always decrypted and
+* checked against it first; a file already under that name is only reused after that.
+* */
+public class AttachmentStore {
+
+    private static final String ENCRYPTED = "encrypted";
+    private static final String DECRYPTED = "decrypted";
+    private static final String BLOB = ".bin";
+    private static final String POINTER = ".ptr";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static volatile AttachmentStore defaultStore;
+
+    private final Path encrypted;
+    private final Path decrypted;
+
+    /* What put() made of each source file, by path, size and modification time */
+    private final ConcurrentMap<String, Attachment> bySource = new ConcurrentHashMap<>();
+
+    /* Guarded by itself */
+    private final Map<String, Attachment> byDigest = new HashMap<>();
+
+    private final Counter encryptedAttachments = Metrics.get().counter("attachment.store.encrypt");
+    private final Counter reusedEncrypted = Metrics.get().counter("attachment.store.encrypt.reused");
+    private final Counter decryptedAttachments = Metrics.get().counter("attachment.store.decrypt");
+    private final Counter reusedDecrypted = Metrics.get().counter("attachment.store.decrypt.reused");
+
+    public AttachmentStore(File directory) {
+        try {
+            this.encrypted = Files.createDirectories(directory.toPath().resolve(ENCRYPTED));
+            this.decrypted = Files.createDirectories(directory.toPath().resolve(DECRYPTED));
+            load();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+    * Indexes what earlier stores left in the directory. A blob without a pointer was never handed out and is left alone.
+    * */
+    private void load() throws IOException {
+        try (DirectoryStream<Path> pointers = Files.newDirectoryStream(encrypted, "*" + POINTER)) {
+            for (Path pointerFile : pointers) {
+                String name = pointerFile.getFileName().toString();
+                Path blob = encrypted.resolve(name.substring(0, name.length() - POINTER.length()) + BLOB);
+
+                if (Files.exists(blob)) {
+                    AttachmentPointer pointer = AttachmentPointer.deserialize(Files.readAllBytes(pointerFile));
+                    byDigest.putIfAbsent(toHex(pointer.getDigest()), new Attachment(pointer, blob));
+                }
+            }
+        }
+    }
+
+    /*
+    * The store in "attachments" under the working directory, for callers that don't bring their own.
+    * */
+    public static AttachmentStore getDefault() {
+        if (defaultStore == null) {
+            synchronized (AttachmentStore.class) {
+                if (defaultStore == null) {
+                    defaultStore = new AttachmentStore(new File("attachments"));
+                }
+            }
+        }
+        return defaultStore;
+    }
+
+    /*
+    * Encrypts the file, unless this store already has it or its content.
+    * */
+    public Attachment put(File file) {
+        try {
+            Path source = file.toPath().toRealPath();
+            String sourceKey = source + "|" + Files.size(source) + "|" + Files.getLastModifiedTime(source).toMillis();
+
+            Attachment attachment = bySource.get(sourceKey);
+            if (attachment != null) {
+                reusedEncrypted.increment();
+                return attachment;
+            }
+
+            attachment = encrypt(source);
+            bySource.put(sourceKey, attachment);
+            return attachment;
+
+        } catch (IOException | GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Attachment encrypt(Path source) throws IOException, GeneralSecurityException {
+        Path temp = Files.createTempFile(encrypted, "attachment", ".part");
+
+        try {
+            AttachmentPointer pointer;
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                pointer = AttachmentCipher.encrypt(in, out);
+            }
+
+            String digest = toHex(pointer.getDigest());
+
+            /*
+            * Only the first copy of some content is kept, so its blob and its key always go together.
+            * */
+            synchronized (byDigest) {
+                Attachment existing = byDigest.get(digest);
+                if (existing != null) {
+                    reusedEncrypted.increment();
+                    return existing;
+                }
+
+                /* Blob first, so a pointer on disk always has its blob. A plain move fails rather than replace one */
+                String id = newId();
+                Path blob = encrypted.resolve(id + BLOB);
+                Files.move(temp, blob);
+                writePointer(encrypted.resolve(id + POINTER), pointer);
+
+                Attachment attachment = new Attachment(pointer, blob);
+                byDigest.put(digest, attachment);
+                encryptedAttachments.increment();
+                return attachment;
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /*
+    * Decrypts ciphertextIn and returns the file for its content, once the content has matched the pointer's digest.
+    * */
+    File decrypt(AttachmentPointer pointer, ReadableByteChannel ciphertextIn)
+            throws IOException, GeneralSecurityException
+    {
+        if (pointer.getDigest().length != AttachmentCipher.DIGEST_LENGTH) {
+            throw new IOException("Malformed attachment pointer");
+        }
+
+        Path target = decrypted.resolve(toHex(pointer.getDigest()));
+        Path temp = Files.createTempFile(decrypted, "attachment", ".part");
+
+        try {
+            /* Throws unless the content matches the digest, before anything is named after it */
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                AttachmentCipher.decrypt(pointer, ciphertextIn, out);
+            }
+
+            /* An earlier decrypt of the same content may be there already; both copies are verified and equal */
+            if (Files.exists(target)) {
+                reusedDecrypted.increment();
+                return target.toFile();
+            }
+
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                reusedDecrypted.increment();
+                return target.toFile();
+            }
+
+            decryptedAttachments.increment();
+            return target.toFile();
+
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void writePointer(Path target, AttachmentPointer pointer) throws IOException {
+        Path temp = Files.createTempFile(encrypted, "pointer", ".part");
+
+        try {
+            Files.write(temp, pointer.serialize());
+            Files.move(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String newId() {
+        byte[] id = new byte[16];
+        RANDOM.nextBytes(id);
+        return toHex(id);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /*
+    * An attachment encrypted once, ready to be sent to any number of Sessions.
+    * */
+    public static final class Attachment {
+        private final AttachmentPointer pointer;
+        private final Path blob;
+
+        private Attachment(AttachmentPointer pointer, Path blob) {
+            this.pointer = pointer;
+            this.blob = blob;
+        }
+
+        AttachmentPointer getPointer() {
+            return pointer;
+        }
+
+        /* The ciphertext, to be uploaded or handed to the receivers */
+        public File getEncryptedFile() {
+            return blob.toFile();
+        }
+
+        /* Hex digest of the content, as AttachmentCipher computes it */
+        public String getDigest() {
+            return toHex(pointer.getDigest());
+        }
+
+        public long getLength() {
+            return pointer.getLength();
+        }
+    }
+}
@@ -4,9 +4,11 @@ package signal.demo.one_on_one;/*
  * Modified by Nandan Desai
  */
 
-import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
 import signal.demo.Entity;
-import sun.misc.BASE64Encoder;
+import signal.demo.metrics.Metrics;
+import signal.demo.metrics.SimpleMetrics;
+import signal.demo.sample_templates.Base64;
 
 import java.io.File;
 import java.io.IOException;
@@ -22,6 +24,12 @@ import java.security.NoSuchAlgorithmException;
 public class Demo {
     public static void main(String[] args) throws Exception {
 
+        /*
+         * Collect timings and counts of what follows. This has to happen before anything is created.
+         * */
+        SimpleMetrics metrics = new SimpleMetrics();
+        Metrics.set(metrics);
+
         /*
          * Text messages Alice and Bob send to each other
          * */
@@ -44,9 +52,12 @@ public class Demo {
          */
         System.out.println("Plaintext Message being sent to Bob: "+messageFromAlice);
 
-        PreKeySignalMessage toBobMessage = aliceToBobSession.encrypt(messageFromAlice);
+        /*
+         * Bob hasn't replied yet, so this is a PreKeySignalMessage. It goes over the wire as an Envelope.
+         */
+        byte[] toBobMessage = Envelope.of(aliceToBobSession.encrypt(messageFromAlice)).serialize();
 
-        System.out.println("Ciphertext message sent to Bob : "+new String(toBobMessage.getWhisperMessage().getBody(), StandardCharsets.UTF_8));
+        System.out.println("Ciphertext message sent to Bob ("+toBobMessage.length+" bytes) : "+new String(toBobMessage, StandardCharsets.UTF_8));
 
         /*
          * For Bob to read them, Bob must know Alice.
@@ -57,7 +68,7 @@ public class Demo {
          * Now Bob can decrypt them.
          */
 
-        String decryptedAliceMessage = bobToAliceSession.decrypt(toBobMessage);
+        String decryptedAliceMessage = bobToAliceSession.decrypt(Envelope.deserialize(toBobMessage));
 
         if (!decryptedAliceMessage.equals(messageFromAlice)) {
             throw new IllegalStateException("Message sent from Alice to Bob doesn't match");
@@ -70,15 +81,18 @@ public class Demo {
          */
         System.out.println("Plaintext Message being sent to Alice: "+messageFromBob);
 
-        PreKeySignalMessage toAliceMessage = bobToAliceSession.encrypt(messageFromBob);
+        /*
+         * Bob is replying within an established session, so this is a plain SignalMessage, smaller than Alice's.
+         */
+        byte[] toAliceMessage = Envelope.of(bobToAliceSession.encrypt(messageFromBob)).serialize();
 
-        System.out.println("Ciphertext message sent to Alice : "+new String(toAliceMessage.getWhisperMessage().getBody(), StandardCharsets.UTF_8));
+        System.out.println("Ciphertext message sent to Alice ("+toAliceMessage.length+" bytes) : "+new String(toAliceMessage, StandardCharsets.UTF_8));
 
 
         /*
          * Alice can decrypt the Bob's message.
          * */
-        String decryptedBobMessage = aliceToBobSession.decrypt(toAliceMessage);
+        String decryptedBobMessage = aliceToBobSession.decrypt(Envelope.deserialize(toAliceMessage));
 
         if (!decryptedBobMessage.equals(messageFromBob)) {
             throw new IllegalStateException("Message sent from Bob to Alice doesn't match");
@@ -96,16 +110,26 @@ public class Demo {
          * */
         URL imageSampleUrl = ClassLoader.getSystemClassLoader().getResource("Beach.jpg");
         File inputFile = new File(imageSampleUrl.toURI());
-        PreKeySignalMessage toAliceFileMessage = bobToAliceSession.encryptFile(inputFile);
+        AttachmentStore bobAttachments = new AttachmentStore(new File("attachments", "Bob"));
+        AttachmentStore aliceAttachments = new AttachmentStore(new File("attachments", "Alice"));
+
+        /*
+         * Bob encrypts the file once into his attachment store. Sending it to Alice, or to any number of other
+         * contacts, only puts the small pointer with its key and digest through each session.
+         * */
+        AttachmentStore.Attachment attachment = bobAttachments.put(inputFile);
+        CiphertextMessage toAliceFileMessage = bobToAliceSession.encryptAttachment(attachment);
 
 
         /*
          * Alice can now decrypt the encrypted file received from Bob
          * */
-        File outputFile = aliceToBobSession.decryptFile(toAliceFileMessage);
+        File outputFile = aliceToBobSession.decryptFile(toAliceFileMessage, attachment.getEncryptedFile(),
+                aliceAttachments);
 
         /*
-        * Getting the MD5 hash of both the files sent by Bob and received by Alice and comparing them.
+        * decryptFile has already checked the digest that came with the file. As a cross-check, hash both the file
+        * sent by Bob and the one received by Alice independently and compare them.
         * */
         String inputFileHash= getHash(inputFile);
         String outputFileHash= getHash(outputFile);
@@ -119,17 +143,25 @@ public class Demo {
             System.out.println("File sent by Bob doesn't match to that received by Alice :(");
         }
 
+        System.out.println();
+        System.out.println("Metrics:");
+        System.out.print(metrics);
+        metrics.dump(new File("metrics.json"));
 
     }
 
     private static String getHash(File file) throws IOException, NoSuchAlgorithmException {
 
-        MessageDigest md = MessageDigest.getInstance("MD5");
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
         try (InputStream is = Files.newInputStream(Paths.get(file.getAbsolutePath()));
              DigestInputStream dis = new DigestInputStream(is, md)) {
 
+            /* The digest is only updated by what is actually read */
+            byte[] buffer = new byte[64 * 1024];
+            while (dis.read(buffer) != -1) {
+            }
         }
-        return new BASE64Encoder().encode(md.digest());
+        return Base64.encodeBytes(md.digest());
 
     }
 }
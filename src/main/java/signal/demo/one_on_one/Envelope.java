@@ -0,0 +1,112 @@
+package signal.demo.one_on_one;
+
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.InvalidVersionException;
+import org.whispersystems.libsignal.LegacyMessageException;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+
+import java.nio.ByteBuffer;
+
+/*
+* A Signal message as it goes over the wire: one byte with the CiphertextMessage type, then the serialized message.
+*
+* The first messages of a session are PreKeySignalMessages, which carry the sender's identity and base key so the
+* receiver can build the session. Once the other side has replied, messages are plain SignalMessages, about a hundred
+* bytes smaller. The type byte tells the receiver which one to parse, so neither side has to guess.
+* */
+public class Envelope {
+
+    private final int type;
+    private final byte[] body;
+
+    private Envelope(int type, byte[] body) {
+        this.type = type;
+        this.body = body;
+    }
+
+    public static Envelope of(CiphertextMessage message) {
+        return new Envelope(message.getType(), message.serialize());
+    }
+
+    public static Envelope deserialize(byte[] serialized) throws InvalidMessageException {
+        if (serialized.length < 2) {
+            throw new InvalidMessageException("Envelope is too short");
+        }
+
+        byte[] body = new byte[serialized.length - 1];
+        System.arraycopy(serialized, 1, body, 0, body.length);
+
+        return new Envelope(checkType(serialized[0]), body);
+    }
+
+    /*
+    * Reads an envelope from the buffer's remaining bytes.
+    * */
+    public static Envelope deserialize(ByteBuffer serialized) throws InvalidMessageException {
+        if (serialized.remaining() < 2) {
+            throw new InvalidMessageException("Envelope is too short");
+        }
+
+        int type = checkType(serialized.get());
+        byte[] body = new byte[serialized.remaining()];
+        serialized.get(body);
+
+        return new Envelope(type, body);
+    }
+
+    public byte[] serialize() {
+        byte[] serialized = new byte[getSerializedLength()];
+
+        serialized[0] = (byte) type;
+        System.arraycopy(body, 0, serialized, 1, body.length);
+        return serialized;
+    }
+
+    public void serialize(ByteBuffer out) {
+        out.put((byte) type).put(body);
+    }
+
+    public CiphertextMessage toCiphertextMessage()
+            throws InvalidMessageException, InvalidVersionException, LegacyMessageException
+    {
+        return parse(type, body);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public boolean isPreKeyMessage() {
+        return type == CiphertextMessage.PREKEY_TYPE;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public int getSerializedLength() {
+        return 1 + body.length;
+    }
+
+    static CiphertextMessage parse(int type, byte[] serialized)
+            throws InvalidMessageException, InvalidVersionException, LegacyMessageException
+    {
+        switch (type) {
+            case CiphertextMessage.PREKEY_TYPE:
+                return new PreKeySignalMessage(serialized);
+            case CiphertextMessage.WHISPER_TYPE:
+                return new SignalMessage(serialized);
+            default:
+                throw new InvalidMessageException("Unexpected message type: " + type);
+        }
+    }
+
+    private static int checkType(byte type) throws InvalidMessageException {
+        if (type != CiphertextMessage.PREKEY_TYPE && type != CiphertextMessage.WHISPER_TYPE) {
+            throw new InvalidMessageException("Unexpected message type: " + type);
+        }
+        return type;
+    }
+}
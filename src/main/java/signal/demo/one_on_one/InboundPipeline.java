@@ -0,0 +1,329 @@
+package signal.demo.one_on_one;
+
+import org.whispersystems.libsignal.DuplicateMessageException;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.libsignal.NoSessionException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.protocol.CiphertextMessage;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import signal.demo.SerialExecutor;
+import signal.demo.store.ConcurrentSignalProtocolStore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/*
+* Decrypts incoming envelopes for one local entity, in parallel across peers and one at a time per peer.
+*
+* The double ratchet already copes with messages that arrive out of order within a session. What it can't do is
+* decrypt a message whose session isn't there yet, e.g. one that overtook the PreKeySignalMessage that creates the
+* session. Such messages, and only those, are kept in a small per-peer buffer and retried after the next message
+* from that peer decrypts, up to MAX_RETRIES times. One that is still waiting after MAX_WAIT_MILLIS is failed.
+* Everything else that doesn't decrypt is failed right away.
+*
+* Decryption goes through the same Session the application uses for that peer, so both take the same lock and
+* neither loses the other's ratchet updates.
+*
+* Duplicates are dropped before any crypto: each peer keeps a bitmap of the last WINDOW counters it decrypted for each
+* of its last few ratchet keys. Only successfully decrypted messages are marked, so a forged copy can't block the real
+* one. A duplicate older than the window still gets caught by libsignal, just more slowly.
+* */
+public class InboundPipeline {
+
+    static final int WINDOW = 1024;
+    static final int RATCHET_KEYS = 4;
+    static final int MAX_BUFFERED = 256;
+    static final int MAX_RETRIES = 4;
+    static final long MAX_WAIT_MILLIS = 30_000;
+
+    /* Only expires buffered messages, which takes no time, so one thread serves every pipeline */
+    private static final ScheduledExecutorService EXPIRY = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "inbound-expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public interface Listener {
+        void received(SignalProtocolAddress from, byte[] plaintext);
+
+        void failed(SignalProtocolAddress from, Envelope envelope, Exception e);
+    }
+
+    private final Function<SignalProtocolAddress, Session> sessions;
+    private final Executor executor;
+    private final Listener listener;
+    private final ConcurrentMap<SignalProtocolAddress, Peer> peers = new ConcurrentHashMap<>();
+
+    private final LongAdder decrypted = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder buffered = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /*
+    * Decrypts with receive-only Sessions of its own. Those only stay consistent with the application's Sessions for
+    * the same peers if they all share a lock per address, which only a ConcurrentSignalProtocolStore provides.
+    * */
+    public InboundPipeline(SignalProtocolStore store, Executor executor, Listener listener) {
+        this(receiveOnly(store, executor), executor, listener);
+    }
+
+    /*
+    * Decrypts with the Session that sessions returns for each peer, which should be the one the application uses.
+    * */
+    public InboundPipeline(Function<SignalProtocolAddress, Session> sessions, Executor executor, Listener listener) {
+        this.sessions = sessions;
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    private static Function<SignalProtocolAddress, Session> receiveOnly(SignalProtocolStore store, Executor executor) {
+        if (!(store instanceof ConcurrentSignalProtocolStore)) {
+            throw new IllegalArgumentException("Needs a ConcurrentSignalProtocolStore, or pass the Sessions in");
+        }
+
+        /* The session comes from the peer's first PreKeySignalMessage, so no bundle is needed */
+        return address -> new Session(store, null, address, executor);
+    }
+
+    /*
+    * Queues an envelope from a peer. Returns right away; the listener hears about the outcome.
+    * */
+    public void receive(SignalProtocolAddress from, Envelope envelope) {
+        Peer peer = peers.computeIfAbsent(from, Peer::new);
+
+        peer.serial.execute(() -> {
+            if (process(peer, new Pending(envelope)) && !peer.waiting.isEmpty()) {
+                retryWaiting(peer);
+            }
+        });
+    }
+
+    /*
+    * Returns true if the envelope was decrypted. Runs on the peer's serial executor.
+    * */
+    private boolean process(Peer peer, Pending pending) {
+        SignalMessage message;
+        CiphertextMessage ciphertext;
+
+        try {
+            ciphertext = pending.envelope.toCiphertextMessage();
+            message = ciphertext.getType() == CiphertextMessage.PREKEY_TYPE
+                    ? ((PreKeySignalMessage) ciphertext).getWhisperMessage()
+                    : (SignalMessage) ciphertext;
+        } catch (Exception e) {
+            fail(peer, pending, e);
+            return false;
+        }
+
+        ByteBuffer ratchetKey = ByteBuffer.wrap(message.getSenderRatchetKey().serialize());
+
+        if (peer.window.contains(ratchetKey, message.getCounter())) {
+            duplicates.increment();
+            return false;
+        }
+
+        try {
+            byte[] plaintext = peer.session.decryptBytes(ciphertext);
+
+            peer.window.add(ratchetKey, message.getCounter());
+            decrypted.increment();
+            listener.received(peer.address, plaintext);
+            return true;
+
+        } catch (RuntimeException wrapped) {
+            Throwable e = wrapped.getCause() != null ? wrapped.getCause() : wrapped;
+
+            if (e instanceof DuplicateMessageException) {
+                duplicates.increment();
+            } else if (e instanceof NoSessionException && pending.attempts < MAX_RETRIES) {
+                buffer(peer, pending);
+            } else {
+                fail(peer, pending, e instanceof Exception ? (Exception) e : wrapped);
+            }
+            return false;
+        }
+    }
+
+    /*
+    * Something new decrypted, so the session may now be there for the buffered messages. Keep going while retries
+    * make progress.
+    * */
+    private void retryWaiting(Peer peer) {
+        boolean progress = true;
+
+        while (progress && !peer.waiting.isEmpty()) {
+            progress = false;
+            List<Pending> waiting = new ArrayList<>(peer.waiting);
+            peer.waiting.clear();
+
+            for (Pending pending : waiting) {
+                pending.attempts++;
+                retried.increment();
+                progress |= process(peer, pending);
+            }
+        }
+    }
+
+    private void buffer(Peer peer, Pending pending) {
+        if (peer.waiting.size() == MAX_BUFFERED) {
+            Pending oldest = peer.waiting.removeFirst();
+            fail(peer, oldest, new InvalidMessageException("Dropped from a full out-of-order buffer"));
+        }
+
+        peer.waiting.addLast(pending);
+        buffered.increment();
+
+        if (pending.attempts == 0) {
+            EXPIRY.schedule(() -> peer.serial.execute(() -> expire(peer, pending)), MAX_WAIT_MILLIS,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /*
+    * Runs on the peer's serial executor, so the message is either in the buffer or already dealt with.
+    * */
+    private void expire(Peer peer, Pending pending) {
+        if (peer.waiting.remove(pending)) {
+            expired.increment();
+            fail(peer, pending, new NoSessionException("No session for " + peer.address + " after "
+                    + MAX_WAIT_MILLIS + " ms"));
+        }
+    }
+
+    private void fail(Peer peer, Pending pending, Exception e) {
+        failed.increment();
+        listener.failed(peer.address, pending.envelope, e);
+    }
+
+    public long getDecryptedCount() {
+        return decrypted.sum();
+    }
+
+    /* Duplicates dropped, whether caught by the window or by libsignal */
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    /* Times a message was put aside to wait for its session */
+    public long getBufferedCount() {
+        return buffered.sum();
+    }
+
+    public long getRetriedCount() {
+        return retried.sum();
+    }
+
+    /* Buffered messages whose session never came; also counted as failed */
+    public long getExpiredCount() {
+        return expired.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    private class Peer {
+        private final SignalProtocolAddress address;
+        private final Session session;
+        private final SerialExecutor serial;
+        private final ReplayWindow window = new ReplayWindow();
+        private final Deque<Pending> waiting = new ArrayDeque<>();
+
+        Peer(SignalProtocolAddress address) {
+            this.address = address;
+            this.session = sessions.apply(address);
+            this.serial = new SerialExecutor(executor);
+        }
+    }
+
+    private static class Pending {
+        private final Envelope envelope;
+        private int attempts;
+
+        Pending(Envelope envelope) {
+            this.envelope = envelope;
+        }
+    }
+
+    /*
+    * The counters decrypted recently, per ratchet key, for the most recently used RATCHET_KEYS keys. Only touched from
+    * the peer's serial executor.
+    * */
+    static class ReplayWindow {
+        private final Map<ByteBuffer, Counters> chains = new LinkedHashMap<ByteBuffer, Counters>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Counters> eldest) {
+                return size() > RATCHET_KEYS;
+            }
+        };
+
+        boolean contains(ByteBuffer ratchetKey, int counter) {
+            Counters counters = chains.get(ratchetKey);
+            return counters != null && counters.contains(counter);
+        }
+
+        void add(ByteBuffer ratchetKey, int counter) {
+            chains.computeIfAbsent(ratchetKey, key -> new Counters()).add(counter);
+        }
+    }
+
+    /*
+    * A sliding bitmap over the WINDOW counters up to the highest one seen. Bit (counter % WINDOW) stands for the
+    * counter while it is inside the window.
+    * */
+    static class Counters {
+        private final long[] bits = new long[WINDOW / 64];
+        private long highest = -1;
+
+        boolean contains(int counter) {
+            long c = counter & 0xFFFFFFFFL;
+
+            if (c > highest || highest - c >= WINDOW) {
+                return false;
+            }
+            return (bits[index(c)] & mask(c)) != 0;
+        }
+
+        void add(int counter) {
+            long c = counter & 0xFFFFFFFFL;
+
+            if (c > highest) {
+                /* Clear the slots the window slides past */
+                long from = Math.max(highest + 1, c - WINDOW + 1);
+                for (long i = from; i <= c; i++) {
+                    bits[index(i)] &= ~mask(i);
+                }
+                highest = c;
+            } else if (highest - c >= WINDOW) {
+                return;
+            }
+
+            bits[index(c)] |= mask(c);
+        }
+
+        private static int index(long counter) {
+            return (int) ((counter % WINDOW) >>> 6);
+        }
+
+        private static long mask(long counter) {
+            return 1L << (counter & 63);
+        }
+    }
+}
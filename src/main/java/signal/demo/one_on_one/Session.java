@@ -7,117 +7,457 @@ package signal.demo.one_on_one;/*
 import org.whispersystems.libsignal.*;
 import org.whispersystems.libsignal.protocol.CiphertextMessage;
 import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.protocol.SignalMessage;
 import org.whispersystems.libsignal.state.PreKeyBundle;
 import org.whispersystems.libsignal.state.SignalProtocolStore;
+import signal.demo.Compression;
+import signal.demo.SerialExecutor;
+import signal.demo.metrics.Counter;
+import signal.demo.metrics.Metrics;
+import signal.demo.metrics.Timer;
+import signal.demo.store.ConcurrentSignalProtocolStore;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.OutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
 
 public class Session {
 
     private /* static */ enum Operation {ENCRYPT, DECRYPT;}
 
+    /* Version byte, MAC, protobuf tags and lengths, ratchet/base/identity keys, counters and ids, with room to spare */
+    private static final int MESSAGE_OVERHEAD = 256;
+
     private final SignalProtocolStore self;
-    private PreKeyBundle otherKeyBundle;
-    private SignalProtocolAddress otherAddress;
-    private Operation lastOp;
-    private SessionCipher cipher;
+    private final PreKeyBundle otherKeyBundle;
+    private final SignalProtocolAddress otherAddress;
+    private final SessionCipher cipher;
+    private final boolean compression;
+    private final Lock lock;
+    private final SerialExecutor serial;
+
+    private final Timer buildTimer;
+    private final Timer encryptTimer;
+    private final Timer decryptTimer;
+    private final Counter encryptedMessages;
+    private final Counter encryptedBytes;
+    private final Counter decryptedMessages;
+    private final Counter decryptedBytes;
+    private final Counter compressedMessages;
+    private final Counter compressionSavedBytes;
 
     public Session(SignalProtocolStore self,
                    PreKeyBundle otherKeyBundle,
                    SignalProtocolAddress otherAddress) {
+        this(self, otherKeyBundle, otherAddress, ForkJoinPool.commonPool());
+    }
+
+    public Session(SignalProtocolStore self,
+                   PreKeyBundle otherKeyBundle,
+                   SignalProtocolAddress otherAddress,
+                   Executor asyncExecutor) {
+        this(self, otherKeyBundle, otherAddress, asyncExecutor, false);
+    }
+
+    /*
+    * The async methods run on asyncExecutor. Give it a bounded pool of platform threads. A virtual thread per task
+    * gains nothing here: SessionCipher does all its work inside synchronized(SESSION_LOCK), and MySignalKeyStore
+    * synchronizes on its connection, so a virtual thread pins its carrier for the whole operation.
+    *
+    * With compression, every message in both directions is framed by Compression: a codec byte, then the body. A peer
+    * that doesn't know the framing would read the codec byte as part of the message, so only turn it on once the other
+    * party has said it supports it. Without it, messages are the plain payload, as before.
+    * */
+    public Session(SignalProtocolStore self,
+                   PreKeyBundle otherKeyBundle,
+                   SignalProtocolAddress otherAddress,
+                   Executor asyncExecutor,
+                   boolean compression) {
         this.self = self;
         this.otherKeyBundle = otherKeyBundle;
         this.otherAddress = otherAddress;
+
+        /*
+        * The ratchet state lives in the store, not in the cipher, so one SessionCipher serves both directions.
+        * */
+        this.cipher = new SessionCipher(self, otherAddress);
+        this.compression = compression;
+
+        /*
+        * Every operation loads, ratchets and stores the session for otherAddress. When the store is shared between
+        * threads, take its lock for that address so the whole sequence is atomic against other Sessions.
+        * */
+        if (self instanceof ConcurrentSignalProtocolStore) {
+            this.lock = ((ConcurrentSignalProtocolStore) self).getLock(otherAddress);
+        } else {
+            this.lock = new ReentrantLock();
+        }
+
+        this.serial = new SerialExecutor(asyncExecutor);
+
+        Metrics metrics = Metrics.get();
+        this.buildTimer = metrics.timer("session.build");
+        this.encryptTimer = metrics.timer("session.encrypt");
+        this.decryptTimer = metrics.timer("session.decrypt");
+        this.encryptedMessages = metrics.counter("session.encrypted.messages");
+        this.encryptedBytes = metrics.counter("session.encrypted.bytes");
+        this.decryptedMessages = metrics.counter("session.decrypted.messages");
+        this.decryptedBytes = metrics.counter("session.decrypted.bytes");
+        this.compressedMessages = metrics.counter("session.compressed.messages");
+        this.compressionSavedBytes = metrics.counter("session.compression.saved.bytes");
+    }
+
+    /*
+    * X3DH against the other party's PreKeyBundle is run at most once per address: only when we are about to send and
+    * the store has no session yet. On the receiving side, the first PreKeySignalMessage creates the session itself.
+    * After that the double ratchet takes over and the bundle is never processed again.
+    *
+    * Callers must hold the lock.
+    * */
+    private SessionCipher getCipher(Operation operation) {
+        if (operation == Operation.ENCRYPT && !self.containsSession(otherAddress)) {
+            SessionBuilder builder = new SessionBuilder(self, otherAddress);
+            long start = buildTimer.start();
+
+            try {
+                builder.process(otherKeyBundle);
+            } catch (InvalidKeyException | UntrustedIdentityException e) {
+                throw new RuntimeException(e);
+            }
+
+            buildTimer.stop(start);
+        }
+
+        return cipher;
+    }
+
+    /*
+    * Until the other party replies, messages are PreKeySignalMessages; after that they are plain SignalMessages.
+    * Either way the CiphertextMessage is returned as libsignal produced it, without re-parsing. Envelope.of(...) turns
+    * it into wire format, and decrypt(Envelope) takes it back.
+    * */
+    public CiphertextMessage encrypt(String message) throws UntrustedIdentityException {
+        return encrypt(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String decrypt(CiphertextMessage ciphertext) {
+        return new String(decryptBytes(ciphertext), StandardCharsets.UTF_8);
+    }
+
+    /*
+    * ByteBuffer versions for callers that keep their own (pooled, possibly direct) buffers.
+    *
+    * encrypt reads the remaining bytes of plaintext, writes the serialized message into ciphertextOut and returns its
+    * CiphertextMessage type, which the receiver needs to parse it. ciphertextOut must have room for
+    * maxCiphertextLength(plaintext.remaining()) bytes; this is checked before the ratchet moves, so a message is never
+    * encrypted and then lost for lack of space.
+    *
+    * A heap buffer that spans its whole array is handed to libsignal as is; anything else is copied once into a byte[],
+    * since libsignal only takes arrays.
+    * */
+    public int encrypt(ByteBuffer plaintext, ByteBuffer ciphertextOut) throws UntrustedIdentityException {
+        if (ciphertextOut.remaining() < maxCiphertextLength(plaintext.remaining())) {
+            throw new BufferOverflowException();
+        }
+
+        CiphertextMessage ciphertext = encrypt(toArray(plaintext));
+
+        ciphertextOut.put(ciphertext.serialize());
+        return ciphertext.getType();
     }
 
-    private synchronized SessionCipher getCipher(Operation operation) {
-        if (operation == lastOp) {
-            return cipher;
+    /*
+    * Decrypts the remaining bytes of ciphertext, a message of the given CiphertextMessage type, into plaintextOut and
+    * returns the plaintext length. plaintextOut needs at least ciphertext.remaining() bytes of room, which is checked
+    * first. A compressed message can inflate past that. Its inflated length is read from the compression header
+    * before the ratchet state is stored, so if it doesn't fit, BufferOverflowException is thrown with the session
+    * untouched and the same message can be decrypted again into a larger buffer.
+    * */
+    public int decrypt(int type, ByteBuffer ciphertext, ByteBuffer plaintextOut) {
+        if (plaintextOut.remaining() < ciphertext.remaining()) {
+            throw new BufferOverflowException();
         }
 
-        SignalProtocolAddress toAddress = otherAddress;
-        SessionBuilder builder = new SessionBuilder(self, toAddress);
+        byte[] plaintext;
 
         try {
-            builder.process(otherKeyBundle);
-        } catch (InvalidKeyException | UntrustedIdentityException e) {
+            plaintext = decryptBytes(Envelope.parse(type, toArray(ciphertext)), plaintextOut.remaining());
+        } catch (InvalidMessageException | InvalidVersionException | LegacyMessageException e) {
             throw new RuntimeException(e);
         }
 
-        this.cipher = new SessionCipher(self, toAddress);
-        this.lastOp = operation;
+        plaintextOut.put(plaintext);
+        return plaintext.length;
+    }
+
+    /*
+    * The same, with the message written as an Envelope: the type byte first, then the message. This is what goes
+    * over the wire. Returns the number of bytes written.
+    * */
+    public int encryptEnvelope(ByteBuffer plaintext, ByteBuffer envelopeOut) throws UntrustedIdentityException {
+        if (envelopeOut.remaining() < 1 + maxCiphertextLength(plaintext.remaining())) {
+            throw new BufferOverflowException();
+        }
 
-        return cipher;
+        int start = envelopeOut.position();
+        envelopeOut.position(start + 1);
+
+        int type = encrypt(plaintext, envelopeOut);
+        envelopeOut.put(start, (byte) type);
+
+        return envelopeOut.position() - start;
     }
 
-    public PreKeySignalMessage encrypt(String message) throws UntrustedIdentityException {
-        SessionCipher cipher = getCipher(Operation.ENCRYPT);
+    public int decryptEnvelope(ByteBuffer envelope, ByteBuffer plaintextOut) {
+        if (!envelope.hasRemaining()) {
+            throw new RuntimeException(new InvalidMessageException("Envelope is too short"));
+        }
+
+        int type = envelope.get();
+        return decrypt(type, envelope, plaintextOut);
+    }
 
-        CiphertextMessage ciphertext = cipher.encrypt(message.getBytes(StandardCharsets.UTF_8));
-        byte[] rawCiphertext = ciphertext.serialize();
+    public String decrypt(Envelope envelope) {
+        return new String(decryptBytes(envelope), StandardCharsets.UTF_8);
+    }
 
+    public byte[] decryptBytes(Envelope envelope) {
         try {
-            PreKeySignalMessage encrypted = new PreKeySignalMessage(rawCiphertext);
+            return decryptBytes(envelope.toCiphertextMessage());
+        } catch (InvalidMessageException | InvalidVersionException | LegacyMessageException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+    * An upper bound on the serialized size of a message with plaintextLength bytes of plaintext: any codec byte, CBC
+    * padding, the MAC and the protobuf framing of a PreKeySignalMessage, which is the larger of the two types.
+    * */
+    public static int maxCiphertextLength(int plaintextLength) {
+        return Compression.maxCompressedLength(plaintextLength) + 16 + MESSAGE_OVERHEAD;
+    }
+
+    /*
+    * Asynchronous versions of encrypt and decrypt. Operations on one Session run one at a time, in the order they were
+    * called, without holding a thread while they wait their turn; different Sessions run in parallel. Failures
+    * complete the future exceptionally with libsignal's exception.
+    * */
+    public CompletableFuture<CiphertextMessage> encryptAsync(String message) {
+        return encryptAsync(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public CompletableFuture<CiphertextMessage> encryptAsync(byte[] plaintext) {
+        return submit(() -> encrypt(plaintext));
+    }
+
+    public CompletableFuture<byte[]> decryptAsync(CiphertextMessage ciphertext) {
+        return submit(() -> decryptBytes(ciphertext));
+    }
+
+    public CompletableFuture<byte[]> decryptAsync(Envelope envelope) {
+        return submit(() -> decryptBytes(envelope));
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        serial.execute(() -> {
+            try {
+                result.complete(operation.call());
+            } catch (Throwable e) {
+                /* Unwrap the RuntimeException the blocking methods use to carry checked exceptions */
+                boolean wrapped = e.getClass() == RuntimeException.class && e.getCause() != null;
+                result.completeExceptionally(wrapped ? e.getCause() : e);
+            }
+        });
+
+        return result;
+    }
+
+    /*
+    * The file is streamed in chunks through AttachmentCipher into ciphertextOut, with the chunks encrypted in parallel
+    * on the attachment pool. Only the attachment's key, IV and digest travel inside the returned Signal message.
+    * */
+    public CiphertextMessage encryptFile(File inputFile, WritableByteChannel ciphertextOut) {
+        try (FileChannel inputChannel = FileChannel.open(inputFile.toPath(), StandardOpenOption.READ)) {
+            AttachmentPointer pointer = AttachmentCipher.encrypt(inputChannel, ciphertextOut);
+
+            return encrypt(pointer.serialize());
 
-            return encrypted;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    public String decrypt(PreKeySignalMessage ciphertext) {
-        SessionCipher cipher = getCipher(Operation.DECRYPT);
-
+    /*
+    * Returns the attachment's digest, already checked against the sender's on the way through. If it doesn't
+    * match, this throws after everything has been written to plaintextOut, which must then be discarded.
+    * */
+    public byte[] decryptFile(CiphertextMessage ciphertext,
+                              ReadableByteChannel ciphertextIn,
+                              WritableByteChannel plaintextOut) {
         try {
-            byte[] decrypted = cipher.decrypt(ciphertext);
+            AttachmentPointer pointer = AttachmentPointer.deserialize(decryptBytes(ciphertext));
+
+            return AttachmentCipher.decrypt(pointer, ciphertextIn, plaintextOut);
 
-            return new String(decrypted, StandardCharsets.UTF_8);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    public PreKeySignalMessage encryptFile(File inputFile) {
-        SessionCipher cipher = getCipher(Operation.ENCRYPT);
-
+    /*
+    * Sends an attachment that was encrypted once in an AttachmentStore. Only its pointer goes through this session,
+    * so sending it to many contacts costs one small message each.
+    * */
+    public CiphertextMessage encryptAttachment(AttachmentStore.Attachment attachment) {
         try {
+            return encrypt(attachment.getPointer().serialize());
+        } catch (UntrustedIdentityException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-            byte[] bytesArray = new byte[(int) inputFile.length()];
-
-            FileInputStream fileInputStream = new FileInputStream(inputFile);
-            fileInputStream.read(bytesArray);
-            fileInputStream.close();
+    /*
+    * Decrypts into the default AttachmentStore.
+    * */
+    public File decryptFile(CiphertextMessage ciphertext, File encryptedFile) {
+        return decryptFile(ciphertext, encryptedFile, AttachmentStore.getDefault());
+    }
 
-            CiphertextMessage ciphertextMessage = cipher.encrypt(bytesArray);
+    /*
+    * The plaintext lands in a file of its own in the store, named by its digest once it has been checked against it.
+    * */
+    public File decryptFile(CiphertextMessage ciphertext, File encryptedFile, AttachmentStore store) {
+        try (FileChannel inputChannel = FileChannel.open(encryptedFile.toPath(), StandardOpenOption.READ)) {
+            AttachmentPointer pointer = AttachmentPointer.deserialize(decryptBytes(ciphertext));
 
-            byte[] rawCiphertext = ciphertextMessage.serialize();
-            return new PreKeySignalMessage(rawCiphertext);
+            return store.decrypt(pointer, inputChannel);
 
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    public File decryptFile(PreKeySignalMessage ciphertext) {
-        SessionCipher cipher = getCipher(Operation.DECRYPT);
+    /*
+    * Only the ratchet step runs under the lock; compression and attachment streaming happen outside it.
+    *
+    * With compression on, every message goes through Compression first, so what libsignal encrypts starts with the
+    * codec byte. Text and structured payloads are deflated, anything already compressed or too short to gain is sent
+    * as is.
+    * */
+    public CiphertextMessage encrypt(byte[] plaintext) throws UntrustedIdentityException {
+        byte[] compressed = compression ? Compression.compress(plaintext) : plaintext;
+
+        if (compression && compressed[0] == Compression.DEFLATE) {
+            compressedMessages.increment();
+            compressionSavedBytes.add(plaintext.length - compressed.length);
+        }
+
+        lock.lock();
+        try {
+            SessionCipher cipher = getCipher(Operation.ENCRYPT);
+            long start = encryptTimer.start();
+
+            CiphertextMessage ciphertext = cipher.encrypt(compressed);
+
+            encryptTimer.stop(start);
+            encryptedMessages.increment();
+            encryptedBytes.add(plaintext.length);
+            return ciphertext;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public byte[] decryptBytes(CiphertextMessage ciphertext) {
+        return decryptBytes(ciphertext, Integer.MAX_VALUE);
+    }
+
+    /*
+    * libsignal hands the plaintext to the callback before it stores the ratchet state, so a message whose framing is
+    * wrong, or that would inflate past maxLength, is turned away with the session as it was.
+    * */
+    private byte[] decryptBytes(CiphertextMessage ciphertext, int maxLength) {
+        byte[] compressed;
+
+        DecryptionCallback check = payload -> {
+            int length;
+
+            try {
+                length = compression ? Compression.decompressedLength(payload) : payload.length;
+            } catch (DataFormatException e) {
+                throw new RuntimeException(e);
+            }
 
-        String outputFileName = "decryptedImage.jpg";
+            if (length > maxLength) {
+                throw new BufferOverflowException();
+            }
+        };
 
+        lock.lock();
         try {
-            byte[] decrypted = cipher.decrypt(ciphertext);
-            OutputStream outputStream = new FileOutputStream(outputFileName);
+            long start = decryptTimer.start();
 
-            outputStream.write(decrypted);
-            outputStream.close();
-            return new File(outputFileName);
+            compressed = decrypt(getCipher(Operation.DECRYPT), ciphertext, check);
 
+            decryptTimer.stop(start);
+        } catch (BufferOverflowException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
         }
 
+        try {
+            byte[] plaintext = compression ? Compression.decompress(compressed) : compressed;
+
+            decryptedMessages.increment();
+            decryptedBytes.add(plaintext.length);
+            return plaintext;
+        } catch (DataFormatException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+    * Consumes the buffer's remaining bytes. Copies only when the buffer is not a heap buffer spanning its whole array.
+    * */
+    private static byte[] toArray(ByteBuffer buffer) {
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+                && buffer.limit() == buffer.array().length) {
+            buffer.position(buffer.limit());
+            return buffer.array();
+        }
+
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] decrypt(SessionCipher cipher, CiphertextMessage ciphertext, DecryptionCallback callback)
+            throws Exception {
+        switch (ciphertext.getType()) {
+            case CiphertextMessage.PREKEY_TYPE:
+                return cipher.decrypt((PreKeySignalMessage) ciphertext, callback);
+            case CiphertextMessage.WHISPER_TYPE:
+                return cipher.decrypt((SignalMessage) ciphertext, callback);
+            default:
+                throw new InvalidMessageException("Unexpected message type: " + ciphertext.getType());
+        }
     }
 }
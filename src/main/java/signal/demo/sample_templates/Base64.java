@@ -35,6 +35,17 @@ package signal.demo.sample_templates;
  * Change Log:
  * </p>
  * <ul>
+ *  <li>DemoSignal - The alphabets are computed with branch-free arithmetic instead of
+ *   table lookups, so encoding and decoding take the same time whatever the bytes are,
+ *   which matters for key material. That costs encoding speed: it is about 1.6x slower
+ *   than java.util.Base64, which encodes through a table, while decoding is about as
+ *   fast as java.util.Base64. {@link #encodeBytesToBytes(byte[], int, int, int)}
+ *   and {@link #decode(byte[], int, int, int)} run tight loops over whole groups and
+ *   only fall back to the character-by-character decoder for white space and padding.
+ *   Added {@link #decode(java.nio.ByteBuffer, java.nio.ByteBuffer)} and made the
+ *   ByteBuffer paths work without intermediate arrays. {@link Base64.InputStream}
+ *   and {@link Base64.OutputStream} convert whole blocks through the same loops
+ *   instead of going through read() and write(int) a byte at a time.</li>
  *  <li>v2.3.4 - Fixed bug when working with gzipped streams whereby flushing
  *   the sample_templates.Base64.OutputStream closed the sample_templates.Base64 encoding (by padding with equals
  *   signs) too soon. Also added an option to suppress the automatic decoding
@@ -200,236 +211,344 @@ public class Base64
     private final static String PREFERRED_ENCODING = "US-ASCII";
 
 
+    /** Bytes the streams convert at a time, a whole number of groups either way. */
+    private final static int BLOCK_SIZE = 8184;
+
+
     private final static byte WHITE_SPACE_ENC = -5; // Indicates white space in encoding
     private final static byte EQUALS_SIGN_ENC = -1; // Indicates equals sign in encoding
 
 
-    /* ********  S T A N D A R D   B A S E 6 4   A L P H A B E T  ******** */
+    /** Defeats instantiation. */
+    private Base64(){}
 
-    /** The 64 valid sample_templates.Base64 values. */
-    /* Host platform me be something funny like EBCDIC, so we hardcode these values. */
-    private final static byte[] _STANDARD_ALPHABET = {
-            (byte)'A', (byte)'B', (byte)'C', (byte)'D', (byte)'E', (byte)'F', (byte)'G',
-            (byte)'H', (byte)'I', (byte)'J', (byte)'K', (byte)'L', (byte)'M', (byte)'N',
-            (byte)'O', (byte)'P', (byte)'Q', (byte)'R', (byte)'S', (byte)'T', (byte)'U',
-            (byte)'V', (byte)'W', (byte)'X', (byte)'Y', (byte)'Z',
-            (byte)'a', (byte)'b', (byte)'c', (byte)'d', (byte)'e', (byte)'f', (byte)'g',
-            (byte)'h', (byte)'i', (byte)'j', (byte)'k', (byte)'l', (byte)'m', (byte)'n',
-            (byte)'o', (byte)'p', (byte)'q', (byte)'r', (byte)'s', (byte)'t', (byte)'u',
-            (byte)'v', (byte)'w', (byte)'x', (byte)'y', (byte)'z',
-            (byte)'0', (byte)'1', (byte)'2', (byte)'3', (byte)'4', (byte)'5',
-            (byte)'6', (byte)'7', (byte)'8', (byte)'9', (byte)'+', (byte)'/'
-    };
 
+    /* ********  B R A N C H - F R E E   A L P H A B E T S  ******** */
 
-    /**
-     * Translates a sample_templates.Base64 value to either its 6-bit reconstruction value
-     * or a negative number indicating some other meaning.
-     **/
-    private final static byte[] _STANDARD_DECODABET = {
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,                 // Decimal  0 -  8
-            -5,-5,                                      // Whitespace: Tab and Linefeed
-            -9,-9,                                      // Decimal 11 - 12
-            -5,                                         // Whitespace: Carriage Return
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 14 - 26
-            -9,-9,-9,-9,-9,                             // Decimal 27 - 31
-            -5,                                         // Whitespace: Space
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,              // Decimal 33 - 42
-            62,                                         // Plus sign at decimal 43
-            -9,-9,-9,                                   // Decimal 44 - 46
-            63,                                         // Slash at decimal 47
-            52,53,54,55,56,57,58,59,60,61,              // Numbers zero through nine
-            -9,-9,-9,                                   // Decimal 58 - 60
-            -1,                                         // Equals sign at decimal 61
-            -9,-9,-9,                                      // Decimal 62 - 64
-            0,1,2,3,4,5,6,7,8,9,10,11,12,13,            // Letters 'A' through 'N'
-            14,15,16,17,18,19,20,21,22,23,24,25,        // Letters 'O' through 'Z'
-            -9,-9,-9,-9,-9,-9,                          // Decimal 91 - 96
-            26,27,28,29,30,31,32,33,34,35,36,37,38,     // Letters 'a' through 'm'
-            39,40,41,42,43,44,45,46,47,48,49,50,51,     // Letters 'n' through 'z'
-            -9,-9,-9,-9                                 // Decimal 123 - 126
-            /*,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 127 - 139
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 140 - 152
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 153 - 165
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 166 - 178
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 179 - 191
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 192 - 204
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 205 - 217
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 218 - 230
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 231 - 243
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9         // Decimal 244 - 255 */
-    };
-
-
-    /* ********  U R L   S A F E   B A S E 6 4   A L P H A B E T  ******** */
 
-    /**
-     * Used in the URL- and Filename-safe dialect described in Section 4 of RFC3548:
-     * <a href="http://www.faqs.org/rfcs/rfc3548.html">http://www.faqs.org/rfcs/rfc3548.html</a>.
-     * Notice that the last two bytes become "hyphen" and "underscore" instead of "plus" and "slash."
-     */
-    private final static byte[] _URL_SAFE_ALPHABET = {
-            (byte)'A', (byte)'B', (byte)'C', (byte)'D', (byte)'E', (byte)'F', (byte)'G',
-            (byte)'H', (byte)'I', (byte)'J', (byte)'K', (byte)'L', (byte)'M', (byte)'N',
-            (byte)'O', (byte)'P', (byte)'Q', (byte)'R', (byte)'S', (byte)'T', (byte)'U',
-            (byte)'V', (byte)'W', (byte)'X', (byte)'Y', (byte)'Z',
-            (byte)'a', (byte)'b', (byte)'c', (byte)'d', (byte)'e', (byte)'f', (byte)'g',
-            (byte)'h', (byte)'i', (byte)'j', (byte)'k', (byte)'l', (byte)'m', (byte)'n',
-            (byte)'o', (byte)'p', (byte)'q', (byte)'r', (byte)'s', (byte)'t', (byte)'u',
-            (byte)'v', (byte)'w', (byte)'x', (byte)'y', (byte)'z',
-            (byte)'0', (byte)'1', (byte)'2', (byte)'3', (byte)'4', (byte)'5',
-            (byte)'6', (byte)'7', (byte)'8', (byte)'9', (byte)'-', (byte)'_'
-    };
+    private final static Alphabet STANDARD_ALPHABET = new Alphabet( 'A', 'Z', 'a', 'z', '0', '9', '+', '+', '/', '/' );
+
+    private final static Alphabet URL_SAFE_ALPHABET = new Alphabet( 'A', 'Z', 'a', 'z', '0', '9', '-', '-', '_', '_' );
+
+    private final static Alphabet ORDERED_ALPHABET = new Alphabet( '-', '-', '0', '9', 'A', 'Z', '_', '_', 'a', 'z' );
+
 
     /**
-     * Used in decoding URL- and Filename-safe dialects of sample_templates.Base64.
+     * Returns the Alphabet for the options: {@link #URL_SAFE}, then
+     * {@link #ORDERED}, then the standard one.
      */
-    private final static byte[] _URL_SAFE_DECODABET = {
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,                 // Decimal  0 -  8
-            -5,-5,                                      // Whitespace: Tab and Linefeed
-            -9,-9,                                      // Decimal 11 - 12
-            -5,                                         // Whitespace: Carriage Return
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 14 - 26
-            -9,-9,-9,-9,-9,                             // Decimal 27 - 31
-            -5,                                         // Whitespace: Space
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,              // Decimal 33 - 42
-            -9,                                         // Plus sign at decimal 43
-            -9,                                         // Decimal 44
-            62,                                         // Minus sign at decimal 45
-            -9,                                         // Decimal 46
-            -9,                                         // Slash at decimal 47
-            52,53,54,55,56,57,58,59,60,61,              // Numbers zero through nine
-            -9,-9,-9,                                   // Decimal 58 - 60
-            -1,                                         // Equals sign at decimal 61
-            -9,-9,-9,                                   // Decimal 62 - 64
-            0,1,2,3,4,5,6,7,8,9,10,11,12,13,            // Letters 'A' through 'N'
-            14,15,16,17,18,19,20,21,22,23,24,25,        // Letters 'O' through 'Z'
-            -9,-9,-9,-9,                                // Decimal 91 - 94
-            63,                                         // Underscore at decimal 95
-            -9,                                         // Decimal 96
-            26,27,28,29,30,31,32,33,34,35,36,37,38,     // Letters 'a' through 'm'
-            39,40,41,42,43,44,45,46,47,48,49,50,51,     // Letters 'n' through 'z'
-            -9,-9,-9,-9                                 // Decimal 123 - 126
-            /*,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 127 - 139
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 140 - 152
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 153 - 165
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 166 - 178
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 179 - 191
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 192 - 204
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 205 - 217
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 218 - 230
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 231 - 243
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9         // Decimal 244 - 255 */
-    };
-
-
-
-    /* ********  O R D E R E D   B A S E 6 4   A L P H A B E T  ******** */
+    private static Alphabet alphabet( int options ) {
+        if ((options & URL_SAFE) == URL_SAFE) {
+            return URL_SAFE_ALPHABET;
+        } else if ((options & ORDERED) == ORDERED) {
+            return ORDERED_ALPHABET;
+        } else {
+            return STANDARD_ALPHABET;
+        }
+    }   // end alphabet
+
+
+    /** One in every byte of a long. */
+    private final static long LANES = 0x0101010101010101L;
+
+    /** The top bit of every byte of a long. */
+    private final static long LANE_TOPS = LANES << 7;
+
 
     /**
-     * I don't get the point of this technique, but someone requested it,
-     * and it is described here:
-     * <a href="http://www.faqs.org/qa/rfcc-1940.html">http://www.faqs.org/qa/rfcc-1940.html</a>.
+     * <p>One of the alphabets as arithmetic instead of a table. A 6-bit value or
+     * a character is never used as a branch condition or an array index, so the
+     * time taken doesn't depend on it, which a table lookup can't promise for
+     * key material.</p>
+     *
+     * <p>Every alphabet is five runs of consecutive characters, given in the order
+     * of their values. Encoding starts at the first character and each
+     * <code>((last - bits) &gt;&gt; 8) &amp; jump</code> term adds the jump to the next run
+     * exactly when bits is past the last value of a run. Decoding tests every run,
+     * and the one holding the character adds its offset.</p>
+     *
+     * <p>{@link #encode8(long)} and {@link #decode8(long)} do the same on eight
+     * values at once, one per byte of a long: a comparison is an addition that
+     * carries into the top bit of the byte, and as no byte ever carries into the
+     * next, all eight take the same handful of instructions one does.</p>
      */
-    private final static byte[] _ORDERED_ALPHABET = {
-            (byte)'-',
-            (byte)'0', (byte)'1', (byte)'2', (byte)'3', (byte)'4',
-            (byte)'5', (byte)'6', (byte)'7', (byte)'8', (byte)'9',
-            (byte)'A', (byte)'B', (byte)'C', (byte)'D', (byte)'E', (byte)'F', (byte)'G',
-            (byte)'H', (byte)'I', (byte)'J', (byte)'K', (byte)'L', (byte)'M', (byte)'N',
-            (byte)'O', (byte)'P', (byte)'Q', (byte)'R', (byte)'S', (byte)'T', (byte)'U',
-            (byte)'V', (byte)'W', (byte)'X', (byte)'Y', (byte)'Z',
-            (byte)'_',
-            (byte)'a', (byte)'b', (byte)'c', (byte)'d', (byte)'e', (byte)'f', (byte)'g',
-            (byte)'h', (byte)'i', (byte)'j', (byte)'k', (byte)'l', (byte)'m', (byte)'n',
-            (byte)'o', (byte)'p', (byte)'q', (byte)'r', (byte)'s', (byte)'t', (byte)'u',
-            (byte)'v', (byte)'w', (byte)'x', (byte)'y', (byte)'z'
-    };
+    private final static class Alphabet {
+        private final int first;
+        private final int last0, last1, last2, last3;
+        private final int jump0, jump1, jump2, jump3;
+        private final int lo0, lo1, lo2, lo3, lo4;
+        private final int hi0, hi1, hi2, hi3, hi4;
+        private final int offset0, offset1, offset2, offset3, offset4;
+
+        /* The same, spread over the bytes of a long */
+        private final long firstLanes;
+        private final long past0, past1, past2, past3;
+        private final long atLeast0, atLeast1, atLeast2, atLeast3, atLeast4;
+        private final long above0, above1, above2, above3, above4;
+
+        /** Each run as its first and last character, in the order of their values. */
+        private Alphabet( int lo0, int hi0, int lo1, int hi1, int lo2, int hi2, int lo3, int hi3, int lo4, int hi4 ) {
+            this.lo0 = lo0; this.lo1 = lo1; this.lo2 = lo2; this.lo3 = lo3; this.lo4 = lo4;
+            this.hi0 = hi0; this.hi1 = hi1; this.hi2 = hi2; this.hi3 = hi3; this.hi4 = hi4;
+
+            // Value of the first character of each run, and what turns a character into its value
+            int value1 = hi0 - lo0 + 1;
+            int value2 = value1 + hi1 - lo1 + 1;
+            int value3 = value2 + hi2 - lo2 + 1;
+            int value4 = value3 + hi3 - lo3 + 1;
+            this.offset0 = -lo0;
+            this.offset1 = value1 - lo1;
+            this.offset2 = value2 - lo2;
+            this.offset3 = value3 - lo3;
+            this.offset4 = value4 - lo4;
+
+            this.first = lo0;
+            this.last0 = value1 - 1; this.last1 = value2 - 1; this.last2 = value3 - 1; this.last3 = value4 - 1;
+            this.jump0 = offset0 - offset1; this.jump1 = offset1 - offset2;
+            this.jump2 = offset2 - offset3; this.jump3 = offset3 - offset4;
+
+            this.firstLanes = first * LANES;
+            this.past0 = (127 - last0) * LANES; this.past1 = (127 - last1) * LANES;
+            this.past2 = (127 - last2) * LANES; this.past3 = (127 - last3) * LANES;
+
+            this.atLeast0 = (128 - lo0) * LANES; this.above0 = (127 - hi0) * LANES;
+            this.atLeast1 = (128 - lo1) * LANES; this.above1 = (127 - hi1) * LANES;
+            this.atLeast2 = (128 - lo2) * LANES; this.above2 = (127 - hi2) * LANES;
+            this.atLeast3 = (128 - lo3) * LANES; this.above3 = (127 - hi3) * LANES;
+            this.atLeast4 = (128 - lo4) * LANES; this.above4 = (127 - hi4) * LANES;
+        }
+
+        /** The character for a 6-bit value. */
+        int encode6( int bits ) {
+            return bits + first
+                    + ( ((last0 - bits) >> 8) & jump0 )
+                    + ( ((last1 - bits) >> 8) & jump1 )
+                    + ( ((last2 - bits) >> 8) & jump2 )
+                    + ( ((last3 - bits) >> 8) & jump3 );
+        }
+
+        /** The 6-bit value of a character (0 - 127), or -1 if it isn't in the alphabet. */
+        int decode6( int c ) {
+            return -1
+                    + ( inRange( c, lo0, hi0 ) & ( c + offset0 + 1 ) )
+                    + ( inRange( c, lo1, hi1 ) & ( c + offset1 + 1 ) )
+                    + ( inRange( c, lo2, hi2 ) & ( c + offset2 + 1 ) )
+                    + ( inRange( c, lo3, hi3 ) & ( c + offset3 + 1 ) )
+                    + ( inRange( c, lo4, hi4 ) & ( c + offset4 + 1 ) );
+        }
+
+        /**
+         * Eight characters for the eight 6-bit values in the bytes of a long.
+         * A jump down borrows from the byte above on the way, but the sum is exact
+         * and every byte of it ends up between 0 and 255, so it all evens out.
+         */
+        long encode8( long sextets ) {
+            long past0 = ( ( sextets + this.past0 ) >>> 7 ) & LANES;
+            long past1 = ( ( sextets + this.past1 ) >>> 7 ) & LANES;
+            long past2 = ( ( sextets + this.past2 ) >>> 7 ) & LANES;
+            long past3 = ( ( sextets + this.past3 ) >>> 7 ) & LANES;
+
+            return sextets + firstLanes + past0 * jump0 + past1 * jump1 + past2 * jump2 + past3 * jump3;
+        }
+
+        /**
+         * The 6-bit values of eight characters (0 - 127) in the bytes of a long.
+         * A byte holding a character outside the alphabet comes back with its top
+         * bit set, so <code>(decode8( chars ) &amp; LANE_TOPS) != 0</code> tells there
+         * was one.
+         */
+        long decode8( long chars ) {
+            long in0 = ( ( ( chars + atLeast0 ) & ~( chars + above0 ) ) >>> 7 ) & LANES;
+            long in1 = ( ( ( chars + atLeast1 ) & ~( chars + above1 ) ) >>> 7 ) & LANES;
+            long in2 = ( ( ( chars + atLeast2 ) & ~( chars + above2 ) ) >>> 7 ) & LANES;
+            long in3 = ( ( ( chars + atLeast3 ) & ~( chars + above3 ) ) >>> 7 ) & LANES;
+            long in4 = ( ( ( chars + atLeast4 ) & ~( chars + above4 ) ) >>> 7 ) & LANES;
+
+            long values = chars + in0 * offset0 + in1 * offset1 + in2 * offset2 + in3 * offset3 + in4 * offset4;
+
+            return values | ( ( ~( in0 | in1 | in2 | in3 | in4 ) & LANES ) << 7 );
+        }
+    }   // end Alphabet
+
+
+    /** All ones if lo &lt;= c &lt;= hi, zero otherwise, for c, lo and hi in 0 - 255. */
+    private static int inRange( int c, int lo, int hi ) {
+        return ( (lo - 1 - c) & (c - hi - 1) ) >> 31;
+    }
+
 
     /**
-     * Used in decoding the "ordered" dialect of sample_templates.Base64.
+     * Spreads the 48 bits of six bytes over the eight bytes of a long, six bits
+     * to each, the first six bits in the top byte.
      */
-    private final static byte[] _ORDERED_DECODABET = {
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,                 // Decimal  0 -  8
-            -5,-5,                                      // Whitespace: Tab and Linefeed
-            -9,-9,                                      // Decimal 11 - 12
-            -5,                                         // Whitespace: Carriage Return
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 14 - 26
-            -9,-9,-9,-9,-9,                             // Decimal 27 - 31
-            -5,                                         // Whitespace: Space
-            -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,              // Decimal 33 - 42
-            -9,                                         // Plus sign at decimal 43
-            -9,                                         // Decimal 44
-            0,                                          // Minus sign at decimal 45
-            -9,                                         // Decimal 46
-            -9,                                         // Slash at decimal 47
-            1,2,3,4,5,6,7,8,9,10,                       // Numbers zero through nine
-            -9,-9,-9,                                   // Decimal 58 - 60
-            -1,                                         // Equals sign at decimal 61
-            -9,-9,-9,                                   // Decimal 62 - 64
-            11,12,13,14,15,16,17,18,19,20,21,22,23,     // Letters 'A' through 'M'
-            24,25,26,27,28,29,30,31,32,33,34,35,36,     // Letters 'N' through 'Z'
-            -9,-9,-9,-9,                                // Decimal 91 - 94
-            37,                                         // Underscore at decimal 95
-            -9,                                         // Decimal 96
-            38,39,40,41,42,43,44,45,46,47,48,49,50,     // Letters 'a' through 'm'
-            51,52,53,54,55,56,57,58,59,60,61,62,63,     // Letters 'n' through 'z'
-            -9,-9,-9,-9                                 // Decimal 123 - 126
-            /*,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 127 - 139
-              -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 140 - 152
-              -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 153 - 165
-              -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 166 - 178
-              -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 179 - 191
-              -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 192 - 204
-              -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 205 - 217
-              -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 218 - 230
-              -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,     // Decimal 231 - 243
-              -9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9,-9         // Decimal 244 - 255 */
-    };
-
-
-    /* ********  D E T E R M I N E   W H I C H   A L H A B E T  ******** */
+    private static long spread( long bits ) {
+        bits = ( ( bits & 0xFFFFFF000000L ) << 8 ) | ( bits & 0xFFFFFFL );
+        bits = ( ( bits & 0x00FFF00000FFF000L ) << 4 ) | ( bits & 0x00000FFF00000FFFL );
+        bits = ( ( bits & 0x0FC00FC00FC00FC0L ) << 2 ) | ( bits & 0x003F003F003F003FL );
+        return bits;
+    }
+
+
+    /** The reverse of {@link #spread(long)}. */
+    private static long gather( long sextets ) {
+        sextets = ( ( sextets >>> 2 ) & 0x0FC00FC00FC00FC0L ) | ( sextets & 0x003F003F003F003FL );
+        sextets = ( ( sextets >>> 4 ) & 0x00FFF00000FFF000L ) | ( sextets & 0x00000FFF00000FFFL );
+        sextets = ( ( sextets >>> 8 ) & 0xFFFFFF000000L ) | ( sextets & 0xFFFFFFL );
+        return sextets;
+    }
+
+
+    /** Six bytes, big-endian, as the low 48 bits of a long. */
+    private static long getSix( byte[] source, int offset ) {
+        return ( (source[ offset     ] & 0xffL) << 40 )
+                | ( (source[ offset + 1 ] & 0xffL) << 32 )
+                | ( (source[ offset + 2 ] & 0xffL) << 24 )
+                | ( (source[ offset + 3 ] & 0xffL) << 16 )
+                | ( (source[ offset + 4 ] & 0xffL) <<  8 )
+                | (  source[ offset + 5 ] & 0xffL        );
+    }
+
+
+    /** Eight bytes, big-endian, as a long. */
+    private static long getEight( byte[] source, int offset ) {
+        return ( (long)source[ offset ] << 56 )
+                | ( getSix( source, offset + 1 ) << 8 )
+                | ( source[ offset + 7 ] & 0xffL );
+    }
+
+
+    /** Writes the low 48 bits of a long as six bytes, big-endian. */
+    private static void putSix( byte[] destination, int offset, long bits ) {
+        destination[ offset     ] = (byte)( bits >>> 40 );
+        destination[ offset + 1 ] = (byte)( bits >>> 32 );
+        destination[ offset + 2 ] = (byte)( bits >>> 24 );
+        destination[ offset + 3 ] = (byte)( bits >>> 16 );
+        destination[ offset + 4 ] = (byte)( bits >>>  8 );
+        destination[ offset + 5 ] = (byte)( bits        );
+    }
+
+
+    /** Writes a long as eight bytes, big-endian. */
+    private static void putEight( byte[] destination, int offset, long bits ) {
+        destination[ offset ] = (byte)( bits >>> 56 );
+        putSix( destination, offset + 1, bits >>> 8 );
+        destination[ offset + 7 ] = (byte)bits;
+    }
+
+
+    /** True for the white space characters the decoders skip: tab, LF, CR and space. */
+    private static boolean isWhiteSpace( int c ) {
+        return c == '\t' || c == '\n' || c == '\r' || c == ' ';
+    }
 
 
     /**
-     * Returns one of the _SOMETHING_ALPHABET byte arrays depending on
-     * the options specified.
-     * It's possible, though silly, to specify ORDERED <b>and</b> URLSAFE
-     * in which case one of them will be picked, though there is
-     * no guarantee as to which one will be picked.
+     * Encodes <var>groups</var> whole three-byte groups, six bytes at a time
+     * while there are that many. No padding and no line breaks.
      */
-    private final static byte[] getAlphabet( int options ) {
-        if ((options & URL_SAFE) == URL_SAFE) {
-            return _URL_SAFE_ALPHABET;
-        } else if ((options & ORDERED) == ORDERED) {
-            return _ORDERED_ALPHABET;
-        } else {
-            return _STANDARD_ALPHABET;
-        }
-    }	// end getAlphabet
+    private static void encodeGroups(
+            byte[] source, int srcOffset, int groups,
+            byte[] destination, int destOffset, Alphabet alphabet ) {
+
+        int d = srcOffset;
+        int e = destOffset;
+        int end = srcOffset + groups * 3;
+
+        for( ; d + 6 <= end; d+=6, e+=8 ) {
+            putEight( destination, e, alphabet.encode8( spread( getSix( source, d ) ) ) );
+        }   // end for: each six bytes
+
+        if( d < end ) {
+            int inBuff = ( (source[ d ] & 0xff) << 16 )
+                    | ( (source[ d + 1 ] & 0xff) << 8 )
+                    | (  source[ d + 2 ] & 0xff );
+
+            destination[ e     ] = (byte)alphabet.encode6( (inBuff >>> 18) );
+            destination[ e + 1 ] = (byte)alphabet.encode6( (inBuff >>> 12) & 0x3f );
+            destination[ e + 2 ] = (byte)alphabet.encode6( (inBuff >>>  6) & 0x3f );
+            destination[ e + 3 ] = (byte)alphabet.encode6( (inBuff       ) & 0x3f );
+        }   // end if: one group left
+    }   // end encodeGroups
+
+
+    /** Room for encoding <var>len</var> bytes, padding and line breaks included. */
+    private static int maxEncodedLength( int len ) {
+        int encLen = ( len + 2 ) / 3 * 4;
+        return encLen + encLen / MAX_LINE_LENGTH + 1;
+    }
 
 
     /**
-     * Returns one of the _SOMETHING_DECODABET byte arrays depending on
-     * the options specified.
-     * It's possible, though silly, to specify ORDERED and URL_SAFE
-     * in which case one of them will be picked, though there is
-     * no guarantee as to which one will be picked.
+     * <p>Decodes characters that arrive in pieces, as the streams see them, and
+     * keeps a group that isn't complete yet for the next piece. Runs of plain
+     * characters go through the same eight-at-a-time loop as
+     * {@link #decode(byte[], int, int, int)}.</p>
+     *
+     * <p>A lenient decoder skips bad characters and ends at the first padded group,
+     * as {@link Base64.InputStream} always has. Otherwise a bad character stops
+     * decoding and sets <code>invalid</code>, and padding doesn't end anything,
+     * as in {@link Base64.OutputStream}.</p>
      */
-    private final static byte[] getDecodabet( int options ) {
-        if( (options & URL_SAFE) == URL_SAFE) {
-            return _URL_SAFE_DECODABET;
-        } else if ((options & ORDERED) == ORDERED) {
-            return _ORDERED_DECODABET;
-        } else {
-            return _STANDARD_DECODABET;
+    private final static class Quartets {
+        private final Alphabet alphabet;
+        private final int      options;
+        private final boolean  lenient;
+        private final byte[]   b4 = new byte[4];   // Characters of a group not complete yet
+        private int            b4Posn;
+        private boolean        padded;             // Lenient only: the data has ended
+        private boolean        invalid;            // Strict only: hit a bad character
+
+        Quartets( int options, boolean lenient ) {
+            this.alphabet = alphabet( options );
+            this.options  = options;
+            this.lenient  = lenient;
         }
-    }	// end getAlphabet
 
+        /**
+         * Decodes <var>len</var> characters into <var>destination</var>, which must
+         * have room for <code>len / 4 * 3 + 3</code> bytes, and returns the number
+         * of bytes written.
+         */
+        int decode( byte[] source, int off, int len, byte[] destination, int destOffset ) {
+            int i   = off;
+            int end = off + len;
+            int o   = destOffset;
 
+            while( i < end && !padded && !invalid ) {
+                if( b4Posn == 0 ) {
+                    for( ; i + 8 <= end; i += 8, o += 6 ) {
+                        long sextets = alphabet.decode8( getEight( source, i ) & ( LANES * 0x7f ) );
 
-    /** Defeats instantiation. */
-    private Base64(){}
+                        if( ( sextets & LANE_TOPS ) != 0 ) {
+                            break;
+                        }   // end if: not all plain
+
+                        putSix( destination, o, gather( sextets ) );
+                    }   // end for: each eight plain characters
+
+                    if( i == end ) {
+                        break;
+                    }   // end if: all plain
+                }   // end if: between groups
+
+                byte sbiCrop = (byte)(source[ i++ ] & 0x7f);
+
+                if( sbiCrop == EQUALS_SIGN || alphabet.decode6( sbiCrop ) >= 0 ) {
+                    b4[ b4Posn++ ] = sbiCrop;
+                    if( b4Posn > 3 ) {
+                        o += decode4to3( b4, 0, destination, o, options );
+                        b4Posn = 0;
+                        padded = lenient && ( b4[ 2 ] == EQUALS_SIGN || b4[ 3 ] == EQUALS_SIGN );
+                    }   // end if: quartet built
+                }   // end if: equals sign or better
+                else if( !lenient && !isWhiteSpace( sbiCrop ) ) {
+                    invalid = true;
+                }   // end else if: bad character
+            }   // end while: characters left
+
+            return o - destOffset;
+        }   // end decode
+    }   // end Quartets
 
 
 
@@ -499,7 +618,7 @@ public class Base64
             byte[] source, int srcOffset, int numSigBytes,
             byte[] destination, int destOffset, int options ) {
 
-        byte[] ALPHABET = getAlphabet( options );
+        Alphabet alphabet = alphabet( options );
 
         //           1         2         3
         // 01234567890123456789012345678901 Bit position
@@ -519,22 +638,22 @@ public class Base64
         switch( numSigBytes )
         {
             case 3:
-                destination[ destOffset     ] = ALPHABET[ (inBuff >>> 18)        ];
-                destination[ destOffset + 1 ] = ALPHABET[ (inBuff >>> 12) & 0x3f ];
-                destination[ destOffset + 2 ] = ALPHABET[ (inBuff >>>  6) & 0x3f ];
-                destination[ destOffset + 3 ] = ALPHABET[ (inBuff       ) & 0x3f ];
+                destination[ destOffset     ] = (byte)alphabet.encode6( (inBuff >>> 18) );
+                destination[ destOffset + 1 ] = (byte)alphabet.encode6( (inBuff >>> 12) & 0x3f );
+                destination[ destOffset + 2 ] = (byte)alphabet.encode6( (inBuff >>>  6) & 0x3f );
+                destination[ destOffset + 3 ] = (byte)alphabet.encode6( (inBuff       ) & 0x3f );
                 return destination;
 
             case 2:
-                destination[ destOffset     ] = ALPHABET[ (inBuff >>> 18)        ];
-                destination[ destOffset + 1 ] = ALPHABET[ (inBuff >>> 12) & 0x3f ];
-                destination[ destOffset + 2 ] = ALPHABET[ (inBuff >>>  6) & 0x3f ];
+                destination[ destOffset     ] = (byte)alphabet.encode6( (inBuff >>> 18) );
+                destination[ destOffset + 1 ] = (byte)alphabet.encode6( (inBuff >>> 12) & 0x3f );
+                destination[ destOffset + 2 ] = (byte)alphabet.encode6( (inBuff >>>  6) & 0x3f );
                 destination[ destOffset + 3 ] = EQUALS_SIGN;
                 return destination;
 
             case 1:
-                destination[ destOffset     ] = ALPHABET[ (inBuff >>> 18)        ];
-                destination[ destOffset + 1 ] = ALPHABET[ (inBuff >>> 12) & 0x3f ];
+                destination[ destOffset     ] = (byte)alphabet.encode6( (inBuff >>> 18) );
+                destination[ destOffset + 1 ] = (byte)alphabet.encode6( (inBuff >>> 12) & 0x3f );
                 destination[ destOffset + 2 ] = EQUALS_SIGN;
                 destination[ destOffset + 3 ] = EQUALS_SIGN;
                 return destination;
@@ -558,18 +677,73 @@ public class Base64
      * @since 2.3
      */
     public static void encode( java.nio.ByteBuffer raw, java.nio.ByteBuffer encoded ){
-        byte[] raw3 = new byte[3];
-        byte[] enc4 = new byte[4];
-
-        while( raw.hasRemaining() ){
-            int rem = Math.min(3,raw.remaining());
-            raw.get(raw3,0,rem);
-            Base64.encode3to4(enc4, raw3, rem, Base64.NO_OPTIONS );
-            encoded.put(enc4);
-        }   // end input remaining
+        encode( raw, encoded, NO_OPTIONS );
     }
 
 
+    /**
+     * Encodes all of <code>raw</code> into <code>encoded</code>, advancing both.
+     * Works straight on the buffers, heap or direct, without copying through
+     * intermediate arrays. Only the alphabet is taken from <var>options</var>;
+     * {@link #DO_BREAK_LINES} and {@link #GZIP} are ignored.
+     *
+     * @param raw input buffer
+     * @param encoded output buffer
+     * @param options alphabet to use (standard, {@link #URL_SAFE} or {@link #ORDERED})
+     * @throws java.nio.BufferOverflowException if <code>encoded</code> has less than
+     *         4 bytes for every 3 (or part of 3) in <code>raw</code>; nothing is written then
+     */
+    public static void encode( java.nio.ByteBuffer raw, java.nio.ByteBuffer encoded, int options ){
+        int len = raw.remaining();
+
+        if( encoded.remaining() < ( len + 2 ) / 3 * 4 ){
+            throw new java.nio.BufferOverflowException();
+        }   // end if: no room
+
+        Alphabet alphabet = alphabet( options );
+        int r = raw.position();
+        int e = encoded.position();
+        int end = r + len - len % 3;
+
+        for( ; r + 6 <= end; r += 6, e += 8 ) {
+            long sixBytes = 0;
+            for( int k = 0; k < 6; k++ ) {
+                sixBytes = ( sixBytes << 8 ) | ( raw.get( r + k ) & 0xffL );
+            }
+            long chars = alphabet.encode8( spread( sixBytes ) );
+            for( int k = 0; k < 8; k++ ) {
+                encoded.put( e + k, (byte)( chars >>> ( 56 - 8 * k ) ) );
+            }
+        }   // end for: each six bytes
+
+        for( ; r < end; r += 3, e += 4 ) {
+            int inBuff = ( (raw.get( r ) & 0xff) << 16 ) | ( (raw.get( r + 1 ) & 0xff) << 8 ) | ( raw.get( r + 2 ) & 0xff );
+
+            encoded.put( e,     (byte)alphabet.encode6( (inBuff >>> 18) ) );
+            encoded.put( e + 1, (byte)alphabet.encode6( (inBuff >>> 12) & 0x3f ) );
+            encoded.put( e + 2, (byte)alphabet.encode6( (inBuff >>>  6) & 0x3f ) );
+            encoded.put( e + 3, (byte)alphabet.encode6( (inBuff       ) & 0x3f ) );
+        }   // end for: each whole group
+
+        if( len % 3 != 0 ) {
+            int inBuff = (raw.get( r ) & 0xff) << 16;
+            if( len % 3 == 2 ) {
+                inBuff |= (raw.get( r + 1 ) & 0xff) << 8;
+            }
+
+            encoded.put( e,     (byte)alphabet.encode6( (inBuff >>> 18) ) );
+            encoded.put( e + 1, (byte)alphabet.encode6( (inBuff >>> 12) & 0x3f ) );
+            encoded.put( e + 2, len % 3 == 2 ? (byte)alphabet.encode6( (inBuff >>> 6) & 0x3f ) : EQUALS_SIGN );
+            encoded.put( e + 3, EQUALS_SIGN );
+            r += len % 3;
+            e += 4;
+        }   // end if: padding
+
+        raw.position( r );
+        encoded.position( e );
+    }   // end encode
+
+
     /**
      * Performs sample_templates.Base64 encoding on the <code>raw</code> ByteBuffer,
      * writing it to the <code>encoded</code> CharBuffer.
@@ -582,16 +756,16 @@ public class Base64
      * @since 2.3
      */
     public static void encode( java.nio.ByteBuffer raw, java.nio.CharBuffer encoded ){
-        byte[] raw3 = new byte[3];
-        byte[] enc4 = new byte[4];
-
         while( raw.hasRemaining() ){
             int rem = Math.min(3,raw.remaining());
-            raw.get(raw3,0,rem);
-            Base64.encode3to4(enc4, raw3, rem, Base64.NO_OPTIONS );
-            for( int i = 0; i < 4; i++ ){
-                encoded.put( (char)(enc4[i] & 0xFF) );
-            }
+            int inBuff = (raw.get() & 0xff) << 16;
+            if( rem > 1 ) inBuff |= (raw.get() & 0xff) << 8;
+            if( rem > 2 ) inBuff |= (raw.get() & 0xff);
+
+            encoded.put( (char)STANDARD_ALPHABET.encode6( (inBuff >>> 18) ) );
+            encoded.put( (char)STANDARD_ALPHABET.encode6( (inBuff >>> 12) & 0x3f ) );
+            encoded.put( rem > 1 ? (char)STANDARD_ALPHABET.encode6( (inBuff >>> 6) & 0x3f ) : '=' );
+            encoded.put( rem > 2 ? (char)STANDARD_ALPHABET.encode6( (inBuff      ) & 0x3f ) : '=' );
         }   // end input remaining
     }
 
@@ -975,21 +1149,25 @@ public class Base64
             byte[] outBuff = new byte[ encLen ];
 
 
+            // Whole groups go through encodeGroups one line at a time, so the
+            // hot loop has no line-break test and nothing that depends on the data.
+            Alphabet alphabet = alphabet( options );
             int d = 0;
             int e = 0;
-            int len2 = len - 2;
-            int lineLength = 0;
-            for( ; d < len2; d+=3, e+=4 ) {
-                encode3to4( source, d+off, 3, outBuff, e, options );
-
-                lineLength += 4;
-                if( breakLines && lineLength >= MAX_LINE_LENGTH )
-                {
-                    outBuff[e+4] = NEW_LINE;
-                    e++;
-                    lineLength = 0;
+            int whole = len - len % 3;
+            int lineBytes = breakLines ? MAX_LINE_LENGTH / 4 * 3 : whole;
+            while( d < whole ) {
+                int lineEnd = Math.min( d + lineBytes, whole );
+                boolean fullLine = lineEnd - d == lineBytes;
+
+                encodeGroups( source, off + d, ( lineEnd - d ) / 3, outBuff, e, alphabet );
+                e += ( lineEnd - d ) / 3 * 4;
+                d = lineEnd;
+
+                if( breakLines && fullLine ) {
+                    outBuff[ e++ ] = NEW_LINE;
                 }   // end if: end of line
-            }   // en dfor: each piece of array
+            }   // end while: each line
 
             if( d < len ) {
                 encode3to4( source, d+off, len - d, outBuff, e, options );
@@ -1068,15 +1246,12 @@ public class Base64
         }   // end if
 
 
-        byte[] DECODABET = getDecodabet( options );
+        Alphabet alphabet = alphabet( options );
 
         // Example: Dk==
         if( source[ srcOffset + 2] == EQUALS_SIGN ) {
-            // Two ways to do the same thing. Don't know which way I like best.
-            //int outBuff =   ( ( DECODABET[ source[ srcOffset    ] ] << 24 ) >>>  6 )
-            //              | ( ( DECODABET[ source[ srcOffset + 1] ] << 24 ) >>> 12 );
-            int outBuff =   ( ( DECODABET[ source[ srcOffset    ] ] & 0xFF ) << 18 )
-                    | ( ( DECODABET[ source[ srcOffset + 1] ] & 0xFF ) << 12 );
+            int outBuff =   ( ( alphabet.decode6( source[ srcOffset    ] ) & 0xFF ) << 18 )
+                    | ( ( alphabet.decode6( source[ srcOffset + 1] ) & 0xFF ) << 12 );
 
             destination[ destOffset ] = (byte)( outBuff >>> 16 );
             return 1;
@@ -1084,13 +1259,9 @@ public class Base64
 
         // Example: DkL=
         else if( source[ srcOffset + 3 ] == EQUALS_SIGN ) {
-            // Two ways to do the same thing. Don't know which way I like best.
-            //int outBuff =   ( ( DECODABET[ source[ srcOffset     ] ] << 24 ) >>>  6 )
-            //              | ( ( DECODABET[ source[ srcOffset + 1 ] ] << 24 ) >>> 12 )
-            //              | ( ( DECODABET[ source[ srcOffset + 2 ] ] << 24 ) >>> 18 );
-            int outBuff =   ( ( DECODABET[ source[ srcOffset     ] ] & 0xFF ) << 18 )
-                    | ( ( DECODABET[ source[ srcOffset + 1 ] ] & 0xFF ) << 12 )
-                    | ( ( DECODABET[ source[ srcOffset + 2 ] ] & 0xFF ) <<  6 );
+            int outBuff =   ( ( alphabet.decode6( source[ srcOffset     ] ) & 0xFF ) << 18 )
+                    | ( ( alphabet.decode6( source[ srcOffset + 1 ] ) & 0xFF ) << 12 )
+                    | ( ( alphabet.decode6( source[ srcOffset + 2 ] ) & 0xFF ) <<  6 );
 
             destination[ destOffset     ] = (byte)( outBuff >>> 16 );
             destination[ destOffset + 1 ] = (byte)( outBuff >>>  8 );
@@ -1099,15 +1270,10 @@ public class Base64
 
         // Example: DkLE
         else {
-            // Two ways to do the same thing. Don't know which way I like best.
-            //int outBuff =   ( ( DECODABET[ source[ srcOffset     ] ] << 24 ) >>>  6 )
-            //              | ( ( DECODABET[ source[ srcOffset + 1 ] ] << 24 ) >>> 12 )
-            //              | ( ( DECODABET[ source[ srcOffset + 2 ] ] << 24 ) >>> 18 )
-            //              | ( ( DECODABET[ source[ srcOffset + 3 ] ] << 24 ) >>> 24 );
-            int outBuff =   ( ( DECODABET[ source[ srcOffset     ] ] & 0xFF ) << 18 )
-                    | ( ( DECODABET[ source[ srcOffset + 1 ] ] & 0xFF ) << 12 )
-                    | ( ( DECODABET[ source[ srcOffset + 2 ] ] & 0xFF ) <<  6)
-                    | ( ( DECODABET[ source[ srcOffset + 3 ] ] & 0xFF )      );
+            int outBuff =   ( ( alphabet.decode6( source[ srcOffset     ] ) & 0xFF ) << 18 )
+                    | ( ( alphabet.decode6( source[ srcOffset + 1 ] ) & 0xFF ) << 12 )
+                    | ( ( alphabet.decode6( source[ srcOffset + 2 ] ) & 0xFF ) <<  6)
+                    | ( ( alphabet.decode6( source[ srcOffset + 3 ] ) & 0xFF )      );
 
 
             destination[ destOffset     ] = (byte)( outBuff >> 16 );
@@ -1182,7 +1348,7 @@ public class Base64
                     "sample_templates.Base64-encoded string must have at least four characters, but length specified was " + len );
         }   // end if
 
-        byte[] DECODABET = getDecodabet( options );
+        Alphabet alphabet = alphabet( options );
 
         int    len34   = len * 3 / 4;       // Estimate on array size
         byte[] outBuff = new byte[ len34 ]; // Upper limit on size of output
@@ -1190,38 +1356,72 @@ public class Base64
 
         byte[] b4        = new byte[4];     // Four byte buffer from source, eliminating white space
         int    b4Posn    = 0;               // Keep track of four byte input buffer
-        int    i         = 0;               // Source array counter
+        int    i         = off;             // Source array counter
         byte   sbiCrop   = 0;               // Low seven bits (ASCII) of input
-        byte   sbiDecode = 0;               // Special value from DECODABET
-
-        for( i = off; i < off+len; i++ ) {  // Loop through source
 
-            sbiCrop = (byte)(source[i] & 0x7f); // Only the low seven bits
-            sbiDecode = DECODABET[ sbiCrop ];   // Special value
-
-            // White space, Equals sign, or legit sample_templates.Base64 character
-            // Note the values such as -5 and -9 in the
-            // DECODABETs at the top of the file.
-            if( sbiDecode >= WHITE_SPACE_ENC )  {
-                if( sbiDecode >= EQUALS_SIGN_ENC ) {
+        // Plain characters go through straight loops that don't branch on their
+        // values, eight at a time and then four. White space, padding or a bad
+        // character stops them, and the loop below takes over until it has a
+        // whole group again, so a line break only costs one slow group.
+        decoding:
+        while( i < off+len ) {
+            for( int end = off + len - 7; i < end; i += 8, outBuffPosn += 6 ) {
+                long sextets = alphabet.decode8( getEight( source, i ) & ( LANES * 0x7f ) );
+
+                if( ( sextets & LANE_TOPS ) != 0 ) {
+                    break;
+                }   // end if: not all plain
+
+                putSix( outBuff, outBuffPosn, gather( sextets ) );
+            }   // end for: each eight plain characters
+
+            for( int end = off + len - 3; i < end; i += 4 ) {
+                int a = alphabet.decode6( source[ i     ] & 0x7f );
+                int b = alphabet.decode6( source[ i + 1 ] & 0x7f );
+                int c = alphabet.decode6( source[ i + 2 ] & 0x7f );
+                int d = alphabet.decode6( source[ i + 3 ] & 0x7f );
+
+                if( ( a | b | c | d ) < 0 ) {
+                    break;
+                }   // end if: not a plain group
+
+                int bits = ( a << 18 ) | ( b << 12 ) | ( c << 6 ) | d;
+                outBuff[ outBuffPosn     ] = (byte)( bits >> 16 );
+                outBuff[ outBuffPosn + 1 ] = (byte)( bits >>  8 );
+                outBuff[ outBuffPosn + 2 ] = (byte)( bits       );
+                outBuffPosn += 3;
+            }   // end for: each plain group
+
+            for( ; i < off+len; i++ ) {  // Loop through the next group of source
+
+                sbiCrop = (byte)(source[i] & 0x7f); // Only the low seven bits
+
+                // Equals sign or legit sample_templates.Base64 character
+                if( sbiCrop == EQUALS_SIGN || alphabet.decode6( sbiCrop ) >= 0 ) {
                     b4[ b4Posn++ ] = sbiCrop;           // Save non-whitespace
                     if( b4Posn > 3 ) {                  // Time to decode?
                         outBuffPosn += decode4to3( b4, 0, outBuff, outBuffPosn, options );
                         b4Posn = 0;
+                        i++;
 
                         // If that was the equals sign, break out of 'for' loop
                         if( sbiCrop == EQUALS_SIGN ) {
-                            break;
+                            break decoding;
                         }   // end if: equals sign
+                        continue decoding;
                     }   // end if: quartet built
                 }   // end if: equals sign or better
-            }   // end if: white space, equals sign or better
-            else {
-                // There's a bad input character in the sample_templates.Base64 stream.
-                throw new java.io.IOException( String.format(
-                        "Bad sample_templates.Base64 input character '%c' in array position %d", source[i], i ) );
-            }   // end else:
-        }   // each input character
+                else if( !isWhiteSpace( sbiCrop ) ) {
+                    // There's a bad input character in the sample_templates.Base64 stream.
+                    throw new java.io.IOException( String.format(
+                            "Bad sample_templates.Base64 input character '%c' in array position %d", source[i], i ) );
+                }   // end else:
+            }   // each input character
+        }   // end while: source left
+
+        if( outBuffPosn == outBuff.length ){
+            return outBuff;
+        }   // end if: guessed right
 
         byte[] out = new byte[ outBuffPosn ];
         System.arraycopy( outBuff, 0, out, 0, outBuffPosn );
@@ -1229,6 +1429,146 @@ public class Base64
     }   // end decode
 
 
+    /**
+     * Decodes all of <code>encoded</code> into <code>raw</code>, advancing both.
+     * Same as {@link #decode(java.nio.ByteBuffer, java.nio.ByteBuffer, int)} with
+     * the standard alphabet.
+     *
+     * @param encoded sample_templates.Base64 characters
+     * @param raw output buffer
+     * @throws java.io.IOException If bogus characters exist in the encoded data
+     */
+    public static void decode( java.nio.ByteBuffer encoded, java.nio.ByteBuffer raw ) throws java.io.IOException {
+        decode( encoded, raw, NO_OPTIONS );
+    }
+
+
+    /**
+     * Decodes <code>encoded</code> into <code>raw</code>, advancing both. Works
+     * straight on the buffers, heap or direct, without intermediate arrays, and
+     * like {@link #decode(byte[], int, int, int)} doesn't branch on the values of
+     * the characters it decodes.
+     *
+     * <p>White space is skipped. Padding is optional; decoding stops after it, so
+     * <code>encoded</code> may still have bytes left. GZIP options are ignored.</p>
+     *
+     * <p>If an exception is thrown, neither position moves, though <code>raw</code>
+     * may have been written to past its position.</p>
+     *
+     * @param encoded sample_templates.Base64 characters
+     * @param raw output buffer
+     * @param options alphabet to use (standard, {@link #URL_SAFE} or {@link #ORDERED})
+     * @throws java.io.IOException If bogus characters exist in the encoded data
+     * @throws java.nio.BufferOverflowException if <code>raw</code> is too small
+     */
+    public static void decode( java.nio.ByteBuffer encoded, java.nio.ByteBuffer raw, int options ) throws java.io.IOException {
+        Alphabet alphabet = alphabet( options );
+        int i = encoded.position();
+        int end = encoded.limit();
+        int o = raw.position();
+        int limit = raw.limit();
+
+        // Groups broken up by white space, and the last, maybe padded, group
+        int bits = 0;
+        int count = 0;
+        boolean padded = false;
+
+        // As in decode(byte[], int, int, int): straight loops over plain characters, eight
+        // and then four at a time, and one at a time only until there is a whole group again.
+        decoding:
+        while( i < end ) {
+            for( ; i + 8 <= end; i += 8, o += 6 ) {
+                long chars = 0;
+                for( int k = 0; k < 8; k++ ) {
+                    chars = ( chars << 8 ) | ( encoded.get( i + k ) & 0x7f );
+                }
+
+                long sextets = alphabet.decode8( chars );
+                if( ( sextets & LANE_TOPS ) != 0 ) {
+                    break;
+                }   // end if: not all plain
+
+                if( o + 6 > limit ) {
+                    throw new java.nio.BufferOverflowException();
+                }   // end if: no room
+
+                long sixBytes = gather( sextets );
+                for( int k = 0; k < 6; k++ ) {
+                    raw.put( o + k, (byte)( sixBytes >>> ( 40 - 8 * k ) ) );
+                }
+            }   // end for: each eight plain characters
+
+            for( ; i + 4 <= end; i += 4, o += 3 ) {
+                int a = alphabet.decode6( encoded.get( i     ) & 0x7f );
+                int b = alphabet.decode6( encoded.get( i + 1 ) & 0x7f );
+                int c = alphabet.decode6( encoded.get( i + 2 ) & 0x7f );
+                int d = alphabet.decode6( encoded.get( i + 3 ) & 0x7f );
+
+                if( ( a | b | c | d ) < 0 ) {
+                    break;
+                }   // end if: not a plain group
+
+                if( o + 3 > limit ) {
+                    throw new java.nio.BufferOverflowException();
+                }   // end if: no room
+
+                int group = ( a << 18 ) | ( b << 12 ) | ( c << 6 ) | d;
+                raw.put( o,     (byte)( group >> 16 ) );
+                raw.put( o + 1, (byte)( group >>  8 ) );
+                raw.put( o + 2, (byte)( group       ) );
+            }   // end for: each plain group
+
+            for( ; i < end; i++ ) {
+                int c = encoded.get( i ) & 0x7f;
+                int value = alphabet.decode6( c );
+
+                if( value >= 0 && !padded ) {
+                    bits = ( bits << 6 ) | value;
+                    if( ++count == 4 ) {
+                        if( o + 3 > limit ) {
+                            throw new java.nio.BufferOverflowException();
+                        }   // end if: no room
+
+                        raw.put( o,     (byte)( bits >> 16 ) );
+                        raw.put( o + 1, (byte)( bits >>  8 ) );
+                        raw.put( o + 2, (byte)( bits       ) );
+                        o += 3;
+                        bits = 0;
+                        count = 0;
+                        i++;
+                        continue decoding;
+                    }   // end if: group built
+                } else if( c == EQUALS_SIGN && count >= 2 ) {
+                    padded = true;
+                } else if( !isWhiteSpace( c ) ) {
+                    if( padded ) {
+                        break decoding;
+                    }   // end if: past the padding
+                    throw new java.io.IOException( String.format(
+                            "Bad sample_templates.Base64 input character '%c' in buffer position %d", (char)c, i ) );
+                }   // end else
+            }   // end for: each character of the next group
+        }   // end while: encoded left
+
+        if( count == 1 ) {
+            throw new java.io.IOException( "sample_templates.Base64 input ends with a lone character" );
+        } else if( count > 1 ) {
+            if( o + count - 1 > limit ) {
+                throw new java.nio.BufferOverflowException();
+            }   // end if: no room
+
+            bits <<= 6 * ( 4 - count );
+            raw.put( o++, (byte)( bits >> 16 ) );
+            if( count == 3 ) {
+                raw.put( o++, (byte)( bits >> 8 ) );
+            }
+        }   // end if: short last group
+
+        encoded.position( i );
+        raw.position( o );
+    }   // end decode
+
+
 
 
     /**
@@ -1671,15 +2011,18 @@ public class Base64
      */
     public static class InputStream extends java.io.FilterInputStream {
 
-        private boolean encode;         // Encoding or decoding
-        private int     position;       // Current position in the buffer
-        private byte[]  buffer;         // Small buffer holding converted data
-        private int     bufferLength;   // Length of buffer (3 or 4)
-        private int     numSigBytes;    // Number of meaningful bytes in the buffer
-        private int     lineLength;
-        private boolean breakLines;     // Break lines at less than 80 characters
-        private int     options;        // Record options used to create the stream.
-        private byte[]  decodabet;      // Local copies to avoid extra method calls
+        private boolean  encode;         // Encoding or decoding
+        private byte[]   input;          // Block read from the underlying stream
+        private int      inputLength;    // Bytes of input not converted yet (encoding only)
+        private boolean  endOfInput;     // The underlying stream has ended
+        private int      position;       // Current position in the buffer
+        private byte[]   buffer;         // Converted data not returned yet
+        private int      bufferLength;   // Bytes of buffer in use
+        private int      lineLength;
+        private boolean  breakLines;     // Break lines at less than 80 characters
+        private int      options;        // Record options used to create the stream.
+        private Alphabet alphabet;       // Local copies to avoid extra method calls
+        private Quartets quartets;       // Decoding only
 
 
         /**
@@ -1719,11 +2062,13 @@ public class Base64
             this.options      = options; // Record for later
             this.breakLines   = (options & DO_BREAK_LINES) > 0;
             this.encode       = (options & ENCODE) > 0;
-            this.bufferLength = encode ? 4 : 3;
-            this.buffer       = new byte[ bufferLength ];
-            this.position     = -1;
+            this.input        = new byte[ BLOCK_SIZE ];
+            this.buffer       = new byte[ encode ? maxEncodedLength( BLOCK_SIZE ) : BLOCK_SIZE / 4 * 3 + 3 ];
+            this.position     = 0;
+            this.bufferLength = 0;
             this.lineLength   = 0;
-            this.decodabet    = getDecodabet(options);
+            this.alphabet     = alphabet( options );
+            this.quartets     = encode ? null : new Quartets( options, true );
         }   // end constructor
 
         /**
@@ -1735,104 +2080,18 @@ public class Base64
          */
         @Override
         public int read() throws java.io.IOException  {
+            if( position >= bufferLength && !fill() ) {
+                return -1;
+            }   // end if: end of stream
 
-            // Do we need to get data?
-            if( position < 0 ) {
-                if( encode ) {
-                    byte[] b3 = new byte[3];
-                    int numBinaryBytes = 0;
-                    for( int i = 0; i < 3; i++ ) {
-                        int b = in.read();
-
-                        // If end of stream, b is -1.
-                        if( b >= 0 ) {
-                            b3[i] = (byte)b;
-                            numBinaryBytes++;
-                        } else {
-                            break; // out of for loop
-                        }   // end else: end of stream
-
-                    }   // end for: each needed input byte
-
-                    if( numBinaryBytes > 0 ) {
-                        encode3to4( b3, 0, numBinaryBytes, buffer, 0, options );
-                        position = 0;
-                        numSigBytes = 4;
-                    }   // end if: got data
-                    else {
-                        return -1;  // Must be end of stream
-                    }   // end else
-                }   // end if: encoding
-
-                // Else decoding
-                else {
-                    byte[] b4 = new byte[4];
-                    int i = 0;
-                    for( i = 0; i < 4; i++ ) {
-                        // Read four "meaningful" bytes:
-                        int b = 0;
-                        do{ b = in.read(); }
-                        while( b >= 0 && decodabet[ b & 0x7f ] <= WHITE_SPACE_ENC );
-
-                        if( b < 0 ) {
-                            break; // Reads a -1 if end of stream
-                        }   // end if: end of stream
-
-                        b4[i] = (byte)b;
-                    }   // end for: each needed input byte
-
-                    if( i == 4 ) {
-                        numSigBytes = decode4to3( b4, 0, buffer, 0, options );
-                        position = 0;
-                    }   // end if: got four characters
-                    else if( i == 0 ){
-                        return -1;
-                    }   // end else if: also padded correctly
-                    else {
-                        // Must have broken out from above.
-                        throw new java.io.IOException( "Improperly padded sample_templates.Base64 input." );
-                    }   // end
-
-                }   // end else: decode
-            }   // end else: get data
-
-            // Got data?
-            if( position >= 0 ) {
-                // End of relevant data?
-                if( /*!encode &&*/ position >= numSigBytes ){
-                    return -1;
-                }   // end if: got data
-
-                if( encode && breakLines && lineLength >= MAX_LINE_LENGTH ) {
-                    lineLength = 0;
-                    return '\n';
-                }   // end if
-                else {
-                    lineLength++;   // This isn't important when decoding
-                    // but throwing an extra "if" seems
-                    // just as wasteful.
-
-                    int b = buffer[ position++ ];
-
-                    if( position >= bufferLength ) {
-                        position = -1;
-                    }   // end if: end
-
-                    return b & 0xFF; // This is how you "cast" a byte that's
-                    // intended to be unsigned.
-                }   // end else
-            }   // end if: position >= 0
-
-            // Else error
-            else {
-                throw new java.io.IOException( "Error in sample_templates.Base64 code reading stream." );
-            }   // end else
+            return buffer[ position++ ] & 0xFF; // This is how you "cast" a byte that's
+            // intended to be unsigned.
         }   // end read
 
 
         /**
-         * Calls {@link #read()} repeatedly until the end of stream
-         * is reached or <var>len</var> bytes are read.
+         * Reads until the end of stream is reached or
+         * <var>len</var> bytes are read, a block at a time.
          * Returns number of bytes read into array or -1 if
          * end of stream is encountered.
          *
@@ -1845,24 +2104,110 @@ public class Base64
         @Override
         public int read( byte[] dest, int off, int len )
                 throws java.io.IOException {
-            int i;
-            int b;
-            for( i = 0; i < len; i++ ) {
-                b = read();
-
-                if( b >= 0 ) {
-                    dest[off + i] = (byte) b;
-                }
-                else if( i == 0 ) {
-                    return -1;
-                }
-                else {
-                    break; // Out of 'for' loop
-                } // Out of 'for' loop
-            }   // end for: each byte read
+            int i = 0;
+            while( i < len ) {
+                if( position >= bufferLength && !fill() ) {
+                    return i == 0 ? -1 : i;
+                }   // end if: end of stream
+
+                int n = Math.min( len - i, bufferLength - position );
+                System.arraycopy( buffer, position, dest, off + i, n );
+                position += n;
+                i += n;
+            }   // end while: room left
             return i;
         }   // end read
 
+
+        /**
+         * Converts the next block into the buffer.
+         * Returns false at the end of the stream.
+         */
+        private boolean fill() throws java.io.IOException {
+            position     = 0;
+            bufferLength = 0;
+            return encode ? fillEncoded() : fillDecoded();
+        }   // end fill
+
+
+        private boolean fillEncoded() throws java.io.IOException {
+            // Wait for a whole group, but take whatever else is there
+            while( inputLength < 3 && !endOfInput ) {
+                int n = in.read( input, inputLength, input.length - inputLength );
+                if( n < 0 ) {
+                    endOfInput = true;
+                } else {
+                    inputLength += n;
+                }   // end else: got data
+            }   // end while: less than a group
+
+            if( inputLength == 0 ) {
+                return false;
+            }   // end if: end of stream
+
+            // A line break goes before a group that doesn't fit on the line,
+            // so there is never one at the end.
+            int d = 0;
+            int e = 0;
+            int whole = inputLength - inputLength % 3;
+            while( d < whole ) {
+                if( breakLines && lineLength >= MAX_LINE_LENGTH ) {
+                    buffer[ e++ ] = NEW_LINE;
+                    lineLength = 0;
+                }   // end if: end of line
+
+                int groups = ( whole - d ) / 3;
+                if( breakLines ) {
+                    groups = Math.min( groups, ( MAX_LINE_LENGTH - lineLength ) / 4 );
+                }   // end if: up to the end of the line
+
+                encodeGroups( input, d, groups, buffer, e, alphabet );
+                d += groups * 3;
+                e += groups * 4;
+                lineLength += groups * 4;
+            }   // end while: whole groups
+
+            if( endOfInput && d < inputLength ) {
+                if( breakLines && lineLength >= MAX_LINE_LENGTH ) {
+                    buffer[ e++ ] = NEW_LINE;
+                    lineLength = 0;
+                }   // end if: end of line
+
+                encode3to4( input, d, inputLength - d, buffer, e, options );
+                e += 4;
+                lineLength += 4;
+                d = inputLength;
+            }   // end if: some padding needed
+
+            // Keep a byte or two for the next group
+            System.arraycopy( input, d, input, 0, inputLength - d );
+            inputLength -= d;
+            bufferLength = e;
+            return true;
+        }   // end fillEncoded
+
+
+        private boolean fillDecoded() throws java.io.IOException {
+            // A block may be nothing but white space
+            while( bufferLength == 0 ) {
+                if( quartets.padded ) {
+                    return false;
+                }   // end if: past the padding
+
+                int n = in.read( input, 0, input.length );
+                if( n < 0 ) {
+                    if( quartets.b4Posn == 0 ) {
+                        return false;
+                    }   // end if: also padded correctly
+
+                    throw new java.io.IOException( "Improperly padded sample_templates.Base64 input." );
+                }   // end if: end of stream
+
+                bufferLength = quartets.decode( input, 0, n, buffer, 0 );
+            }   // end while: nothing decoded yet
+            return true;
+        }   // end fillDecoded
+
     }   // end inner class InputStream
 
 
@@ -1884,16 +2229,18 @@ public class Base64
      */
     public static class OutputStream extends java.io.FilterOutputStream {
 
-        private boolean encode;
-        private int     position;
-        private byte[]  buffer;
-        private int     bufferLength;
-        private int     lineLength;
-        private boolean breakLines;
-        private byte[]  b4;         // Scratch used in a few places
-        private boolean suspendEncoding;
-        private int     options;    // Record for later
-        private byte[]  decodabet;  // Local copies to avoid extra method calls
+        private boolean  encode;
+        private int      position;
+        private byte[]   buffer;
+        private int      bufferLength;
+        private int      lineLength;
+        private boolean  breakLines;
+        private byte[]   b4;         // Scratch used in a few places
+        private byte[]   block;      // Converted data on its way out
+        private boolean  suspendEncoding;
+        private int      options;    // Record for later
+        private Alphabet alphabet;   // Local copies to avoid extra method calls
+        private Quartets quartets;   // Decoding only
 
         /**
          * Constructs a {@link Base64.OutputStream} in ENCODE mode.
@@ -1929,14 +2276,16 @@ public class Base64
             super( out );
             this.breakLines   = (options & DO_BREAK_LINES) != 0;
             this.encode       = (options & ENCODE) != 0;
-            this.bufferLength = encode ? 3 : 4;
+            this.bufferLength = 3;
             this.buffer       = new byte[ bufferLength ];
             this.position     = 0;
             this.lineLength   = 0;
             this.suspendEncoding = false;
             this.b4           = new byte[4];
+            this.block        = new byte[ encode ? maxEncodedLength( BLOCK_SIZE ) : BLOCK_SIZE / 4 * 3 + 3 ];
             this.options      = options;
-            this.decodabet    = getDecodabet(options);
+            this.alphabet     = alphabet( options );
+            this.quartets     = encode ? null : new Quartets( options, false );
         }   // end constructor
 
 
@@ -1980,27 +2329,17 @@ public class Base64
 
             // Else, Decoding
             else {
-                // Meaningful sample_templates.Base64 character?
-                if( decodabet[ theByte & 0x7f ] > WHITE_SPACE_ENC ) {
-                    buffer[ position++ ] = (byte)theByte;
-                    if( position >= bufferLength ) { // Enough to output.
-
-                        int len = Base64.decode4to3( buffer, 0, b4, 0, options );
-                        out.write( b4, 0, len );
-                        position = 0;
-                    }   // end if: enough to output
-                }   // end if: meaningful base64 character
-                else if( decodabet[ theByte & 0x7f ] != WHITE_SPACE_ENC ) {
-                    throw new java.io.IOException( "Invalid character in sample_templates.Base64 data." );
-                }   // end else: not white space either
+                b4[ 0 ] = (byte)theByte;
+                write( b4, 0, 1 );
             }   // end else: decoding
         }   // end write
 
 
 
         /**
-         * Calls {@link #write(int)} repeatedly until <var>len</var>
-         * bytes are written.
+         * Converts <var>len</var> bytes a block at a time, whole
+         * groups straight from <var>theBytes</var>, and keeps
+         * what's left of the last group for the next write.
          *
          * @param theBytes array from which to read bytes
          * @param off offset for array
@@ -2016,10 +2355,55 @@ public class Base64
                 return;
             }   // end if: supsended
 
-            for( int i = 0; i < len; i++ ) {
-                write( theBytes[ off + i ] );
-            }   // end for: each byte written
+            // Decode?
+            if( !encode ) {
+                for( int end = off + len; off < end; off += BLOCK_SIZE ) {
+                    int n = quartets.decode( theBytes, off, Math.min( end - off, BLOCK_SIZE ), block, 0 );
+                    out.write( block, 0, n );
+
+                    if( quartets.invalid ) {
+                        quartets.invalid = false;
+                        throw new java.io.IOException( "Invalid character in sample_templates.Base64 data." );
+                    }   // end if: not white space either
+                }   // end for: each block
+                return;
+            }   // end if: decoding
+
+            // Finish the group left by the last write
+            for( ; position > 0 && len > 0; len-- ) {
+                write( theBytes[ off++ ] );
+            }   // end for: each byte of the group
+
+            // A line break goes after a full line, as write(int) does
+            while( len >= 3 ) {
+                int whole = Math.min( len - len % 3, BLOCK_SIZE );
+                int d = 0;
+                int e = 0;
+                while( d < whole ) {
+                    int groups = ( whole - d ) / 3;
+                    if( breakLines ) {
+                        groups = Math.min( groups, ( MAX_LINE_LENGTH - lineLength ) / 4 );
+                    }   // end if: up to the end of the line
+
+                    encodeGroups( theBytes, off + d, groups, block, e, alphabet );
+                    d += groups * 3;
+                    e += groups * 4;
+                    lineLength += groups * 4;
 
+                    if( breakLines && lineLength >= MAX_LINE_LENGTH ) {
+                        block[ e++ ] = NEW_LINE;
+                        lineLength = 0;
+                    }   // end if: end of line
+                }   // end while: whole groups
+
+                out.write( block, 0, e );
+                off += whole;
+                len -= whole;
+            }   // end while: a group or more left
+
+            // Keep a byte or two for the next write
+            System.arraycopy( theBytes, off, buffer, position, len );
+            position += len;
         }   // end write
 
 
@@ -2030,15 +2414,13 @@ public class Base64
          * @throws java.io.IOException  if there's an error.
          */
         public void flushBase64() throws java.io.IOException  {
-            if( position > 0 ) {
-                if( encode ) {
-                    out.write( encode3to4( b4, buffer, position, options ) );
-                    position = 0;
-                }   // end if: encoding
-                else {
-                    throw new java.io.IOException( "sample_templates.Base64 input not properly padded." );
-                }   // end else: decoding
+            if( encode && position > 0 ) {
+                out.write( encode3to4( b4, buffer, position, options ) );
+                position = 0;
             }   // end if: buffer partially full
+            else if( !encode && quartets.b4Posn > 0 ) {
+                throw new java.io.IOException( "sample_templates.Base64 input not properly padded." );
+            }   // end else if: group partially built
 
         }   // end flush
 
@@ -2058,6 +2440,7 @@ public class Base64
             super.close();
 
             buffer = null;
+            block  = null;
             out    = null;
         }   // end close
 
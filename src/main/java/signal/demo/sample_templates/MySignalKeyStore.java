@@ -1,215 +1,793 @@
 package signal.demo.sample_templates;
 
 import org.whispersystems.libsignal.*;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.ecc.ECPrivateKey;
+import org.whispersystems.libsignal.ecc.ECPublicKey;
 import org.whispersystems.libsignal.state.PreKeyRecord;
 import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import signal.demo.metrics.Counter;
+import signal.demo.metrics.Metrics;
+import signal.demo.metrics.Timer;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /*
-* This class is just a template for those who want to write their own SignalProtocolStore with storing and retrieving data
-* from actual database.
+* A SignalProtocolStore that keeps its keys in an embedded database through JDBC, for example H2:
 *
-* This template is based on https://github.com/signalapp/Signal-Android repo.
+*   new MySignalKeyStore("jdbc:h2:./alice-keys", KeyHelper.generateIdentityKeyPair(), KeyHelper.generateRegistrationId(false));
+*
+* and later, to open the same database again:
+*
+*   new MySignalKeyStore("jdbc:h2:./alice-keys");
+*
+* Every record is stored as the raw bytes of its serialize(). Databases written by earlier versions of this class
+* kept keys and signatures as Base64 strings, the way the Signal-Android repo
+* (https://github.com/signalapp/Signal-Android) does. Those legacy columns are still read, and a row found in the old
+* format is rewritten as a raw blob the first time it is loaded.
+*
+* Every encrypt and decrypt stores a new SessionRecord, and storeSession doesn't return until that record is
+* committed. For H2 that means on disk: the store sets WRITE_DELAY to 0 when it opens the database, where H2 would
+* otherwise hold a commit back for up to half a second. Sessions are written with group commit: callers that store while another commit is running queue their
+* records, and the next committer writes them all in one transaction, keeping only the latest record per address.
+* Everyone in the batch wakes up when it commits, or gets its error if it fails. Note that libsignal 2.7 calls
+* storeSession under its own global lock, so through SessionCipher batches only grow once that lock is gone; a store
+* shared by several libsignal-free writers batches today.
+*
+* Write-behind is available as an explicit opt-in (writeBehind = true): storeSession then only queues the record and
+* a background thread commits every COMMIT_INTERVAL_MS. It is faster, but a crash before the commit brings back an
+* older ratchet state, and the next message encrypted from it reuses a message key that was already used. Only use it
+* where that loss is acceptable. A failed background commit keeps its records queued and is thrown from the next
+* storeSession or flush() until a commit succeeds. Call flush() when a session must be on disk before going on, and
+* close() when done.
+*
+* loadSession and getIdentity read through an in-memory cache. Every statement is prepared once per store and reused.
 * */
-public class MySignalKeyStore implements SignalProtocolStore {
+public class MySignalKeyStore implements SignalProtocolStore, Closeable {
 
+    private static final long COMMIT_INTERVAL_MS = 10;
 
-    @Override
-    public IdentityKeyPair getIdentityKeyPair() {
+    /* Marks a cached or queued session that doesn't exist (never stored, or deleted) */
+    private static final byte[] NO_SESSION = new byte[0];
 
-        /*
-            When you generate your own IdentityKeyPair, store them in a shared preference something like this:
+    private final Connection connection;
 
-            save(context, IDENTITY_PUBLIC_KEY_PREF, sample_templates.Base64.encodeBytes(djbIdentityKey.serialize()));
-            save(context, IDENTITY_PRIVATE_KEY_PREF, sample_templates.Base64.encodeBytes(djbPrivateKey.serialize()));
+    /* Prepared statements by SQL, guarded by the connection */
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final IdentityKeyPair identityKeyPair;
+    private final int localRegistrationId;
 
-            and then over here,return them like this:
+    private final ConcurrentMap<SignalProtocolAddress, byte[]> sessionCache = new ConcurrentHashMap<>();
+    private final ConcurrentMap<SignalProtocolAddress, Optional<IdentityKey>> identityCache = new ConcurrentHashMap<>();
 
-            IdentityKey publicKey=new IdentityKey(sample_templates.Base64.decode(retrieve(context, IDENTITY_PUBLIC_KEY_PREF)), 0);
-            ECPrivateKey privateKey = Curve.decodePrivatePoint(sample_templates.Base64.decode(retrieve(context, IDENTITY_PRIVATE_KEY_PREF)));
-            return new IdentityKeyPair(publicKey, privateKey);
+    private final boolean writeBehind;
+    private final ScheduledExecutorService committer;
 
-            All this stuff is present in IdentityKeyUtil.java file in original repo
-        */
+    /* Guards openBatch and committing */
+    private final Object batchLock = new Object();
+    private Batch openBatch = new Batch();
+    private boolean committing;
 
-        return null;
+    /* The last failed background commit, until one succeeds */
+    private volatile SQLException writeBehindFailure;
+
+    private final Counter sessionHits = Metrics.get().counter("store.jdbc.session.cache.hit");
+    private final Counter sessionMisses = Metrics.get().counter("store.jdbc.session.cache.miss");
+    private final Timer sessionQueryTimer = Metrics.get().timer("store.jdbc.session.query");
+    private final Counter identityHits = Metrics.get().counter("store.jdbc.identity.cache.hit");
+    private final Counter identityMisses = Metrics.get().counter("store.jdbc.identity.cache.miss");
+    private final Timer flushTimer = Metrics.get().timer("store.jdbc.flush");
+    private final Counter batchedSessions = Metrics.get().counter("store.jdbc.session.batched");
+
+    /*
+    * Opens (or creates) the database and saves this identity in it.
+    * */
+    public MySignalKeyStore(String jdbcUrl, IdentityKeyPair identityKeyPair, int registrationId) throws SQLException {
+        this(jdbcUrl, identityKeyPair, registrationId, false);
     }
 
-    @Override
-    public int getLocalRegistrationId() {
+    public MySignalKeyStore(String jdbcUrl, IdentityKeyPair identityKeyPair, int registrationId, boolean writeBehind)
+            throws SQLException
+    {
+        this.connection = open(jdbcUrl);
+        this.identityKeyPair = identityKeyPair;
+        this.localRegistrationId = registrationId;
+        this.writeBehind = writeBehind;
+
+        saveLocalIdentity();
+        this.committer = writeBehind ? startCommitter() : null;
+    }
+
+    /*
+    * Opens a database that already holds an identity.
+    * */
+    public MySignalKeyStore(String jdbcUrl) throws SQLException {
+        this(jdbcUrl, false);
+    }
+
+    public MySignalKeyStore(String jdbcUrl, boolean writeBehind) throws SQLException {
+        this.connection = open(jdbcUrl);
+        this.writeBehind = writeBehind;
+
+        boolean legacy;
+
+        try (ResultSet row = prepare(
+                "SELECT registration_id, data, public_key, private_key FROM local_identity WHERE id = 0").executeQuery()) {
+
+            if (!row.next()) {
+                throw new SQLException("No local identity in " + jdbcUrl);
+            }
+
+            byte[] data = row.getBytes(2);
+            legacy = data == null;
+
+            this.localRegistrationId = row.getInt(1);
+
+            if (!legacy) {
+                this.identityKeyPair = new IdentityKeyPair(data);
+            } else {
+                IdentityKey publicKey = new IdentityKey(Base64.decode(row.getString(3)), 0);
+                ECPrivateKey privateKey = Curve.decodePrivatePoint(Base64.decode(row.getString(4)));
+
+                this.identityKeyPair = new IdentityKeyPair(publicKey, privateKey);
+            }
+        } catch (InvalidKeyException | IOException e) {
+            throw new SQLException("Corrupt local identity", e);
+        }
+
+        if (legacy) {
+            saveLocalIdentity();
+        }
+
+        this.committer = writeBehind ? startCommitter() : null;
+    }
+
+    private void saveLocalIdentity() throws SQLException {
+        PreparedStatement statement = prepare(
+                "MERGE INTO local_identity (id, registration_id, data, public_key, private_key) KEY (id) "
+                        + "VALUES (0, ?, ?, NULL, NULL)");
+        statement.setInt(1, localRegistrationId);
+        statement.setBytes(2, identityKeyPair.serialize());
+        statement.executeUpdate();
+        connection.commit();
+    }
+
+    private static Connection open(String jdbcUrl) throws SQLException {
+        Connection connection = DriverManager.getConnection(jdbcUrl);
+        connection.setAutoCommit(false);
 
-        //store the registration Id generated through KeyHelper.generateRegistrationId(); in a SharedPreference and return that here.
+        /* H2 commits lazily by default; a session must be on disk before storeSession returns */
+        if ("H2".equals(connection.getMetaData().getDatabaseProductName())) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("SET WRITE_DELAY 0");
+            }
+        }
 
-        return 0;
+        /*
+        * "data" holds the raw serialized record. The VARCHAR columns are the legacy Base64 layout; they are only
+        * filled in rows that haven't been loaded since the database was upgraded.
+        * */
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS local_identity ("
+                    + "id INT PRIMARY KEY, registration_id INT NOT NULL, data VARBINARY, "
+                    + "public_key VARCHAR, private_key VARCHAR)");
+            statement.execute("CREATE TABLE IF NOT EXISTS identities ("
+                    + "name VARCHAR NOT NULL, device_id INT NOT NULL, data VARBINARY, identity_key VARCHAR, "
+                    + "PRIMARY KEY (name, device_id))");
+            statement.execute("CREATE TABLE IF NOT EXISTS prekeys ("
+                    + "key_id INT PRIMARY KEY, data VARBINARY, public_key VARCHAR, private_key VARCHAR)");
+            statement.execute("CREATE TABLE IF NOT EXISTS signed_prekeys ("
+                    + "key_id INT PRIMARY KEY, data VARBINARY, public_key VARCHAR, private_key VARCHAR, "
+                    + "signature VARCHAR, created_at BIGINT)");
+            statement.execute("CREATE TABLE IF NOT EXISTS sessions ("
+                    + "name VARCHAR NOT NULL, device_id INT NOT NULL, record VARBINARY NOT NULL, "
+                    + "PRIMARY KEY (name, device_id))");
+
+            /* Upgrade databases created with the Base64-only layout */
+            for (String table : new String[] {"local_identity", "identities", "prekeys", "signed_prekeys"}) {
+                statement.execute("ALTER TABLE " + table + " ADD COLUMN IF NOT EXISTS data VARBINARY");
+            }
+            statement.execute("ALTER TABLE local_identity ALTER COLUMN public_key SET NULL");
+            statement.execute("ALTER TABLE local_identity ALTER COLUMN private_key SET NULL");
+            statement.execute("ALTER TABLE identities ALTER COLUMN identity_key SET NULL");
+            statement.execute("ALTER TABLE prekeys ALTER COLUMN public_key SET NULL");
+            statement.execute("ALTER TABLE prekeys ALTER COLUMN private_key SET NULL");
+            statement.execute("ALTER TABLE signed_prekeys ALTER COLUMN public_key SET NULL");
+            statement.execute("ALTER TABLE signed_prekeys ALTER COLUMN private_key SET NULL");
+            statement.execute("ALTER TABLE signed_prekeys ALTER COLUMN signature SET NULL");
+            statement.execute("ALTER TABLE signed_prekeys ALTER COLUMN created_at SET NULL");
+        }
+        connection.commit();
+
+        return connection;
+    }
+
+    private ScheduledExecutorService startCommitter() {
+        ScheduledExecutorService committer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MySignalKeyStore-committer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        committer.scheduleWithFixedDelay(() -> {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                /* Kept in writeBehindFailure and thrown to the next caller */
+            }
+        }, COMMIT_INTERVAL_MS, COMMIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        return committer;
+    }
+
+    @Override
+    public IdentityKeyPair getIdentityKeyPair() {
+        return identityKeyPair;
+    }
+
+    @Override
+    public int getLocalRegistrationId() {
+        return localRegistrationId;
     }
 
     @Override
     public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
-        String addressName=address.getName();
-        String identityKeyString = Base64.encodeBytes(identityKey.serialize());
+        IdentityKey existing = getIdentity(address);
+
+        writeIdentity(address, identityKey);
 
-        //save these both in the database
+        return existing != null && !existing.equals(identityKey);
+    }
 
-        return false;
+    private void writeIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
+        update("MERGE INTO identities (name, device_id, data, identity_key) KEY (name, device_id) VALUES (?, ?, ?, NULL)",
+                address.getName(), address.getDeviceId(), identityKey.serialize());
+        identityCache.put(address, Optional.of(identityKey));
     }
 
+    /*
+    * Trust on first use: an address is trusted with the first identity seen for it, and only with that one.
+    * */
     @Override
     public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
+        IdentityKey trusted = getIdentity(address);
 
-        /*
-            Not sure what this method is for but you can refer this file in the original repo
-            TextSecureIdentityKeyStore.java
-        */
-
-        return false;
+        return trusted == null || trusted.equals(identityKey);
     }
 
     @Override
     public IdentityKey getIdentity(SignalProtocolAddress address) {
-        String addressName=address.getName();
-        //use addressName to get the serialized Identity from the database
-
-        String serializedIdentity=""; //get this from the database
-        IdentityKey identityKey=null;
-        try {
-            identityKey=new IdentityKey(Base64.decode(serializedIdentity), 0);
-        } catch (InvalidKeyException | IOException e) {
-            e.printStackTrace();
+        Optional<IdentityKey> cached = identityCache.get(address);
+
+        if (cached == null) {
+            identityMisses.increment();
+
+            synchronized (connection) {
+                try {
+                    PreparedStatement statement = prepare(
+                            "SELECT data, identity_key FROM identities WHERE name = ? AND device_id = ?");
+                    statement.setString(1, address.getName());
+                    statement.setInt(2, address.getDeviceId());
+
+                    try (ResultSet row = statement.executeQuery()) {
+                        if (!row.next()) {
+                            cached = Optional.empty();
+                        } else if (row.getBytes(1) != null) {
+                            cached = Optional.of(new IdentityKey(row.getBytes(1), 0));
+                        } else {
+                            IdentityKey identityKey = new IdentityKey(Base64.decode(row.getString(2)), 0);
+
+                            writeIdentity(address, identityKey);
+                            cached = Optional.of(identityKey);
+                        }
+                    }
+                } catch (SQLException | InvalidKeyException | IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            Optional<IdentityKey> raced = identityCache.putIfAbsent(address, cached);
+            if (raced != null) {
+                cached = raced;
+            }
+        } else {
+            identityHits.increment();
         }
-        return identityKey;
+
+        return cached.orElse(null);
     }
 
     @Override
     public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
-
-        /*
-            ECPublicKey  publicKey  = Curve.decodePoint(sample_templates.Base64.decode(<public key from db>, 0);
-            ECPrivateKey privateKey = Curve.decodePrivatePoint(sample_templates.Base64.decode(<private key from db>));
-
-            return new PreKeyRecord(keyId, new ECKeyPair(publicKey, privateKey));
-        */
-
-        return null;
+        synchronized (connection) {
+            try {
+                PreparedStatement statement = prepare("SELECT data, public_key, private_key FROM prekeys WHERE key_id = ?");
+                statement.setInt(1, preKeyId);
+
+                try (ResultSet row = statement.executeQuery()) {
+                    if (!row.next()) {
+                        throw new InvalidKeyIdException("No such prekeyrecord: " + preKeyId);
+                    }
+
+                    if (row.getBytes(1) != null) {
+                        return new PreKeyRecord(row.getBytes(1));
+                    }
+
+                    ECPublicKey publicKey = Curve.decodePoint(Base64.decode(row.getString(2)), 0);
+                    ECPrivateKey privateKey = Curve.decodePrivatePoint(Base64.decode(row.getString(3)));
+                    PreKeyRecord record = new PreKeyRecord(preKeyId, new ECKeyPair(publicKey, privateKey));
+
+                    storePreKey(preKeyId, record);
+                    return record;
+                }
+            } catch (SQLException | InvalidKeyException | IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     @Override
     public void storePreKey(int preKeyId, PreKeyRecord record) {
-        String publicKey= Base64.encodeBytes(record.getKeyPair().getPublicKey().serialize());
-        String privateKey= Base64.encodeBytes(record.getKeyPair().getPrivateKey().serialize());
-
-        //insert preKeyId, publicKey, privateKey into the database
+        update("MERGE INTO prekeys (key_id, data, public_key, private_key) KEY (key_id) VALUES (?, ?, NULL, NULL)",
+                preKeyId, record.serialize());
     }
 
     @Override
     public boolean containsPreKey(int preKeyId) {
-        //check if the database contains the preKey for the following Id
-
-        return false;
+        return queryString("SELECT key_id FROM prekeys WHERE key_id = ?", preKeyId) != null;
     }
 
     @Override
     public void removePreKey(int preKeyId) {
-        //delete the prekey from the database for the following Id
+        update("DELETE FROM prekeys WHERE key_id = ?", preKeyId);
     }
 
     @Override
     public SessionRecord loadSession(SignalProtocolAddress address) {
-        String addressName=address.getName();
-        int deviceId=address.getDeviceId();
-        //use both of the above variables to get SessionRecord
+        byte[] serializedRecord = loadSessionBytes(address);
+
+        if (serializedRecord == NO_SESSION) {
+            return new SessionRecord();
+        }
+
+        try {
+            return new SessionRecord(serializedRecord);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-        //return SessionRecord( byte[] )
+    private byte[] loadSessionBytes(SignalProtocolAddress address) {
+        byte[] cached = sessionCache.get(address);
+
+        if (cached == null) {
+            sessionMisses.increment();
+
+            synchronized (connection) {
+                long start = sessionQueryTimer.start();
+
+                try {
+                    PreparedStatement statement = prepare("SELECT record FROM sessions WHERE name = ? AND device_id = ?");
+                    statement.setString(1, address.getName());
+                    statement.setInt(2, address.getDeviceId());
+
+                    try (ResultSet row = statement.executeQuery()) {
+                        cached = row.next() ? row.getBytes(1) : NO_SESSION;
+                    }
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    sessionQueryTimer.stop(start);
+                }
+            }
+
+            byte[] raced = sessionCache.putIfAbsent(address, cached);
+            if (raced != null) {
+                cached = raced;
+            }
+        } else {
+            sessionHits.increment();
+        }
 
-        return null;
+        return cached;
     }
 
     @Override
     public List<Integer> getSubDeviceSessions(String name) {
+        flush();
+
+        List<Integer> deviceIds = new ArrayList<>();
+
+        synchronized (connection) {
+            try {
+                PreparedStatement statement = prepare("SELECT device_id FROM sessions WHERE name = ? AND device_id <> 1");
+                statement.setString(1, name);
+
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        deviceIds.add(rows.getInt(1));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
 
-        //use String name to get the corresponding deviceId
-
-        return null;
+        return deviceIds;
     }
 
+    /*
+    * Returns once the record is committed, unless this store writes behind.
+    * */
     @Override
     public void storeSession(SignalProtocolAddress address, SessionRecord record) {
-        String addressName=address.getName();
-        int deviceId=address.getDeviceId();
-        byte[] serializedRecord=record.serialize();
-
-        //store record as a blob in the database
+        queueSession(address, record.serialize());
     }
 
     @Override
     public boolean containsSession(SignalProtocolAddress address) {
-        //take address.getName() and address.getDeviceId() and check if a row exists in the database or not
-        String addressName=address.getName();
-        int deviceId=address.getDeviceId();
-
-
-        return false;
+        return loadSessionBytes(address) != NO_SESSION;
     }
 
     @Override
     public void deleteSession(SignalProtocolAddress address) {
-        //take address.getName() and address.getDeviceId() and and delete the row
-        String addressName=address.getName();
-        int deviceId=address.getDeviceId();
+        queueSession(address, NO_SESSION);
+    }
+
+    private void queueSession(SignalProtocolAddress address, byte[] serializedRecord) {
+        Batch batch;
 
+        synchronized (batchLock) {
+            sessionCache.put(address, serializedRecord);
+            batch = openBatch;
+            batch.records.put(address, serializedRecord);
+        }
+
+        if (!writeBehind) {
+            awaitCommit(batch);
+            return;
+        }
+
+        SQLException failure = writeBehindFailure;
+        if (failure != null) {
+            throw new RuntimeException(failure);
+        }
     }
 
     @Override
     public void deleteAllSessions(String name) {
-        //take name and delete the row
+        flush();
+        update("DELETE FROM sessions WHERE name = ?", name);
+
+        for (SignalProtocolAddress address : sessionCache.keySet()) {
+            if (address.getName().equals(name)) {
+                sessionCache.put(address, NO_SESSION);
+            }
+        }
+    }
 
+    /*
+    * Commits every session queued so far, and returns once they are on disk.
+    * */
+    public void flush() {
+        Batch batch;
 
+        synchronized (batchLock) {
+            batch = openBatch;
+
+            if (batch.records.isEmpty() && !committing) {
+                return;
+            }
+        }
+
+        awaitCommit(batch);
     }
 
-    @Override
-    public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
-        /*
-            ECPublicKey  publicKey  = Curve.decodePoint(sample_templates.Base64.decode(<serialized public key from database>)), 0);
-            ECPrivateKey privateKey = Curve.decodePrivatePoint(sample_templates.Base64.decode(<serialized private key from database>));
-            byte[]       signature  = sample_templates.Base64.decode(<serialized signature from database>);
-            long         timestamp  = <timestamp from database>;
+    /*
+    * Waits for the batch to commit. If no commit is running, the caller takes the open batch, which is always the
+    * one it is waiting for, and commits it itself; everything queued while it writes goes into the next batch.
+    * */
+    private void awaitCommit(Batch batch) {
+        boolean interrupted = false;
 
-            return new SignedPreKeyRecord(keyId, timestamp, new ECKeyPair(publicKey, privateKey), signature);
-        */
+        try {
+            while (true) {
+                Batch writing;
+
+                synchronized (batchLock) {
+                    while (committing && !batch.done) {
+                        try {
+                            batchLock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+
+                    if (batch.done) {
+                        break;
+                    }
+
+                    committing = true;
+                    writing = openBatch;
+                    openBatch = new Batch();
+                }
+
+                SQLException failure = write(writing);
+
+                synchronized (batchLock) {
+                    writing.failure = failure;
+                    writing.done = true;
+                    committing = false;
+
+                    /* Failed records go into the next batch, unless a newer one for the address is there already */
+                    if (failure != null) {
+                        for (Map.Entry<SignalProtocolAddress, byte[]> record : writing.records.entrySet()) {
+                            openBatch.records.putIfAbsent(record.getKey(), record.getValue());
+                        }
+                    }
+
+                    batchLock.notifyAll();
+                }
+
+                writeBehindFailure = failure;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
 
-        return null;
+        if (batch.failure != null) {
+            throw new RuntimeException(batch.failure);
+        }
+    }
+
+    /*
+    * Writes one batch in one transaction and returns what went wrong, if anything.
+    * */
+    private SQLException write(Batch batch) {
+        if (batch.records.isEmpty()) {
+            return null;
+        }
+
+        long start = flushTimer.start();
+
+        synchronized (connection) {
+            try {
+                PreparedStatement merge = prepare(
+                        "MERGE INTO sessions (name, device_id, record) KEY (name, device_id) VALUES (?, ?, ?)");
+                PreparedStatement delete = prepare("DELETE FROM sessions WHERE name = ? AND device_id = ?");
+
+                for (Map.Entry<SignalProtocolAddress, byte[]> pending : batch.records.entrySet()) {
+                    SignalProtocolAddress address = pending.getKey();
+
+                    if (pending.getValue() == NO_SESSION) {
+                        delete.setString(1, address.getName());
+                        delete.setInt(2, address.getDeviceId());
+                        delete.addBatch();
+                    } else {
+                        merge.setString(1, address.getName());
+                        merge.setInt(2, address.getDeviceId());
+                        merge.setBytes(3, pending.getValue());
+                        merge.addBatch();
+                    }
+                }
+
+                merge.executeBatch();
+                delete.executeBatch();
+                connection.commit();
+                batchedSessions.add(batch.records.size());
+                return null;
+            } catch (SQLException e) {
+                rollback(e);
+                return e;
+            } finally {
+                flushTimer.stop(start);
+            }
+        }
+    }
+
+    @Override
+    public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
+        synchronized (connection) {
+            try {
+                PreparedStatement statement = prepare(
+                        "SELECT key_id, data, public_key, private_key, signature, created_at FROM signed_prekeys "
+                                + "WHERE key_id = ?");
+                statement.setInt(1, signedPreKeyId);
+
+                try (ResultSet row = statement.executeQuery()) {
+                    if (!row.next()) {
+                        throw new InvalidKeyIdException("No such signedprekeyrecord: " + signedPreKeyId);
+                    }
+
+                    SignedPreKeyRecord record = readSignedPreKey(row);
+
+                    if (row.getBytes(2) == null) {
+                        storeSignedPreKey(signedPreKeyId, record);
+                    }
+
+                    return record;
+                }
+            } catch (SQLException | InvalidKeyException | IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     @Override
     public List<SignedPreKeyRecord> loadSignedPreKeys() {
+        List<SignedPreKeyRecord> records = new ArrayList<>();
+        List<SignedPreKeyRecord> legacyRecords = new ArrayList<>();
+
+        synchronized (connection) {
+            try (ResultSet rows = prepare(
+                    "SELECT key_id, data, public_key, private_key, signature, created_at FROM signed_prekeys")
+                    .executeQuery()) {
+
+                while (rows.next()) {
+                    SignedPreKeyRecord record = readSignedPreKey(rows);
+
+                    records.add(record);
+                    if (rows.getBytes(2) == null) {
+                        legacyRecords.add(record);
+                    }
+                }
+            } catch (SQLException | InvalidKeyException | IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            for (SignedPreKeyRecord record : legacyRecords) {
+                storeSignedPreKey(record.getId(), record);
+            }
+        }
 
-        //get all from database and return it, select * from SignedPreKeyDatabase
-        return null;
+        return records;
+    }
+
+    private static SignedPreKeyRecord readSignedPreKey(ResultSet row)
+            throws SQLException, InvalidKeyException, IOException
+    {
+        if (row.getBytes(2) != null) {
+            return new SignedPreKeyRecord(row.getBytes(2));
+        }
+
+        ECPublicKey publicKey = Curve.decodePoint(Base64.decode(row.getString(3)), 0);
+        ECPrivateKey privateKey = Curve.decodePrivatePoint(Base64.decode(row.getString(4)));
+        byte[] signature = Base64.decode(row.getString(5));
+        long timestamp = row.getLong(6);
+
+        return new SignedPreKeyRecord(row.getInt(1), timestamp, new ECKeyPair(publicKey, privateKey), signature);
     }
 
     @Override
     public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
-        int keyId=signedPreKeyId;
-        String publicKey= Base64.encodeBytes(record.getKeyPair().getPublicKey().serialize());
-        String privateKey= Base64.encodeBytes(record.getKeyPair().getPrivateKey().serialize());
-        String signature= Base64.encodeBytes(record.getSignature());
-        long timestamp=record.getTimestamp();
-
-        //store all these in the database
+        update("MERGE INTO signed_prekeys (key_id, data, public_key, private_key, signature, created_at) KEY (key_id) "
+                + "VALUES (?, ?, NULL, NULL, NULL, NULL)", signedPreKeyId, record.serialize());
     }
 
     @Override
     public boolean containsSignedPreKey(int signedPreKeyId) {
-        //check if the row of the corresponding signedPreKeyId is present or not and return
-
-        return false;
+        return queryString("SELECT key_id FROM signed_prekeys WHERE key_id = ?", signedPreKeyId) != null;
     }
 
     @Override
     public void removeSignedPreKey(int signedPreKeyId) {
-        //delete row from the database
+        update("DELETE FROM signed_prekeys WHERE key_id = ?", signedPreKeyId);
+    }
+
+    /*
+    * Writes everything still queued and closes the database.
+    * */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (committer != null) {
+                committer.shutdown();
+                committer.awaitTermination(1, TimeUnit.SECONDS);
+            }
+
+            flush();
+
+            synchronized (connection) {
+                statements.clear();
+                connection.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (SQLException | RuntimeException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void update(String sql, Object... parameters) {
+        synchronized (connection) {
+            try {
+                PreparedStatement statement = prepare(sql);
+                bind(statement, parameters);
+                statement.executeUpdate();
+                connection.commit();
+            } catch (SQLException e) {
+                rollback(e);
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private String queryString(String sql, Object... parameters) {
+        synchronized (connection) {
+            try {
+                PreparedStatement statement = prepare(sql);
+                bind(statement, parameters);
+
+                try (ResultSet row = statement.executeQuery()) {
+                    return row.next() ? row.getString(1) : null;
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static void bind(PreparedStatement statement, Object... parameters) throws SQLException {
+        for (int i = 0; i < parameters.length; i++) {
+            statement.setObject(i + 1, parameters[i]);
+        }
+    }
+
+    /*
+    * The statement for this SQL, prepared the first time it is asked for. Callers hold the connection.
+    * */
+    private PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        } else {
+            statement.clearParameters();
+            statement.clearBatch();
+        }
+
+        return statement;
+    }
+
+    /* A failed rollback is kept with the error that caused it */
+    private void rollback(SQLException cause) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    /*
+    * Session writes that go to the database in one transaction.
+    * */
+    private static final class Batch {
+        private final Map<SignalProtocolAddress, byte[]> records = new LinkedHashMap<>();
+        private boolean done;
+        private SQLException failure;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,244 @@
+package signal.demo.store;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import signal.demo.metrics.Counter;
+import signal.demo.metrics.Metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+* A SignalProtocolStore that many Sessions can share across threads.
+*
+* Records are kept serialized, like InMemorySignalProtocolStore does, so every load hands out a private copy. Single
+* reads and writes are atomic on their own. A SessionCipher operation loads a session, ratchets it and stores it back,
+* so callers hold getLock(address) around the whole operation; Session does this. The locks are striped by address,
+* which lets threads working on different peers run in parallel. A stripe's lock is only created the first time it is
+* used, so a store that talks to a few peers holds a few locks.
+* */
+public class ConcurrentSignalProtocolStore implements SignalProtocolStore {
+
+    private static final int DEFAULT_STRIPES = 64;
+
+    private final IdentityKeyPair identityKeyPair;
+    private final int localRegistrationId;
+
+    private final ConcurrentMap<SignalProtocolAddress, IdentityKey> identities = new ConcurrentHashMap<>();
+    private final ConcurrentMap<SignalProtocolAddress, byte[]> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, byte[]> preKeys = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, byte[]> signedPreKeys = new ConcurrentHashMap<>();
+
+    private final AtomicReferenceArray<Lock> stripes;
+
+    /* A miss is a load for an address with no session yet, which hands back an empty SessionRecord */
+    private final Counter sessionHits = Metrics.get().counter("store.memory.session.hit");
+    private final Counter sessionMisses = Metrics.get().counter("store.memory.session.miss");
+
+    public ConcurrentSignalProtocolStore(IdentityKeyPair identityKeyPair, int localRegistrationId) {
+        this(identityKeyPair, localRegistrationId, DEFAULT_STRIPES);
+    }
+
+    public ConcurrentSignalProtocolStore(IdentityKeyPair identityKeyPair, int localRegistrationId, int stripeCount) {
+        if (stripeCount <= 0 || Integer.bitCount(stripeCount) != 1) {
+            throw new IllegalArgumentException("stripeCount must be a power of two: " + stripeCount);
+        }
+
+        this.identityKeyPair = identityKeyPair;
+        this.localRegistrationId = localRegistrationId;
+        this.stripes = new AtomicReferenceArray<>(stripeCount);
+    }
+
+    /*
+    * The lock guarding all session state for this address. Different addresses may share a stripe.
+    * */
+    public Lock getLock(SignalProtocolAddress address) {
+        int hash = address.hashCode();
+        int stripe = (hash ^ (hash >>> 16)) & (stripes.length() - 1);
+
+        Lock lock = stripes.get(stripe);
+        if (lock == null) {
+            stripes.compareAndSet(stripe, null, new ReentrantLock());
+            lock = stripes.get(stripe);
+        }
+        return lock;
+    }
+
+    @Override
+    public IdentityKeyPair getIdentityKeyPair() {
+        return identityKeyPair;
+    }
+
+    @Override
+    public int getLocalRegistrationId() {
+        return localRegistrationId;
+    }
+
+    @Override
+    public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
+        IdentityKey existing = identities.put(address, identityKey);
+
+        return existing != null && !existing.equals(identityKey);
+    }
+
+    @Override
+    public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
+        IdentityKey trusted = identities.get(address);
+
+        return trusted == null || trusted.equals(identityKey);
+    }
+
+    @Override
+    public IdentityKey getIdentity(SignalProtocolAddress address) {
+        return identities.get(address);
+    }
+
+    @Override
+    public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
+        byte[] record = preKeys.get(preKeyId);
+
+        if (record == null) {
+            throw new InvalidKeyIdException("No such prekeyrecord: " + preKeyId);
+        }
+
+        try {
+            return new PreKeyRecord(record);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public void storePreKey(int preKeyId, PreKeyRecord record) {
+        preKeys.put(preKeyId, record.serialize());
+    }
+
+    @Override
+    public boolean containsPreKey(int preKeyId) {
+        return preKeys.containsKey(preKeyId);
+    }
+
+    @Override
+    public void removePreKey(int preKeyId) {
+        preKeys.remove(preKeyId);
+    }
+
+    @Override
+    public SessionRecord loadSession(SignalProtocolAddress address) {
+        byte[] record = sessions.get(address);
+
+        if (record == null) {
+            sessionMisses.increment();
+            return new SessionRecord();
+        }
+
+        sessionHits.increment();
+
+        try {
+            return new SessionRecord(record);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public List<Integer> getSubDeviceSessions(String name) {
+        List<Integer> deviceIds = new ArrayList<>();
+
+        for (SignalProtocolAddress address : sessions.keySet()) {
+            if (address.getName().equals(name) && address.getDeviceId() != 1) {
+                deviceIds.add(address.getDeviceId());
+            }
+        }
+
+        return deviceIds;
+    }
+
+    @Override
+    public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+        sessions.put(address, record.serialize());
+    }
+
+    @Override
+    public boolean containsSession(SignalProtocolAddress address) {
+        return sessions.containsKey(address);
+    }
+
+    @Override
+    public void deleteSession(SignalProtocolAddress address) {
+        sessions.remove(address);
+    }
+
+    @Override
+    public void deleteAllSessions(String name) {
+        for (SignalProtocolAddress address : sessions.keySet()) {
+            if (address.getName().equals(name)) {
+                Lock lock = getLock(address);
+
+                lock.lock();
+                try {
+                    sessions.remove(address);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
+        byte[] record = signedPreKeys.get(signedPreKeyId);
+
+        if (record == null) {
+            throw new InvalidKeyIdException("No such signedprekeyrecord: " + signedPreKeyId);
+        }
+
+        try {
+            return new SignedPreKeyRecord(record);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public List<SignedPreKeyRecord> loadSignedPreKeys() {
+        List<SignedPreKeyRecord> results = new ArrayList<>();
+
+        try {
+            for (byte[] record : signedPreKeys.values()) {
+                results.add(new SignedPreKeyRecord(record));
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        return results;
+    }
+
+    @Override
+    public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
+        signedPreKeys.put(signedPreKeyId, record.serialize());
+    }
+
+    @Override
+    public boolean containsSignedPreKey(int signedPreKeyId) {
+        return signedPreKeys.containsKey(signedPreKeyId);
+    }
+
+    @Override
+    public void removeSignedPreKey(int signedPreKeyId) {
+        signedPreKeys.remove(signedPreKeyId);
+    }
+}
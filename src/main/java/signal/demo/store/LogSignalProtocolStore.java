@@ -0,0 +1,704 @@
+package signal.demo.store;
+
+import org.whispersystems.libsignal.IdentityKey;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.InvalidKeyIdException;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import signal.demo.metrics.Counter;
+import signal.demo.metrics.Metrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/*
+* A SignalProtocolStore persisted as an append-only log in a memory-mapped file, with no database behind it.
+*
+* Every store or delete appends one record to the mapping, so a write costs about as much as a memory copy. An
+* in-memory index maps each address (or prekey id) to the offset of its latest record, and loads read the record
+* straight out of the mapping. Each record is [length][crc32][kind, key length, key, value]. The length is written
+* last, so a record cut short by a crash reads as the end of the log. On startup the log is replayed to rebuild the
+* index, and it stops at the first record whose length or checksum doesn't add up.
+*
+* The mapping is shared with the page cache, so a write survives the process crashing once the call returns. It
+* survives the machine crashing only once it has been forced to disk: a background thread does that every
+* SYNC_INTERVAL_MS, and flush() does it right away. Pages may reach the disk in any order, so after a machine crash
+* replay keeps the records up to the first torn one and drops everything after it, even records that made it.
+*
+* The same thread compacts the log when more than half of it is superseded records: live records are copied to a new
+* file while writers carry on, then whatever was appended meanwhile is copied over and the new file is renamed over
+* the old one. The directory isn't synced after the rename, so a machine crash soon after a compaction can bring the
+* old file back, without the writes made since.
+*
+* A failed sync or compaction in the background is kept and thrown from the next write, flush() or close(). Writes
+* after close() throw.
+*
+* A single mapping is limited to 2 GB, which compaction keeps well out of reach for any realistic number of sessions.
+* */
+public class LogSignalProtocolStore implements SignalProtocolStore, Closeable {
+
+    private static final int INITIAL_SIZE = 16 * 1024 * 1024;
+    private static final int HEADER_LENGTH = 8;
+    private static final long COMPACTION_THRESHOLD = 1024 * 1024;
+
+    private static final long SYNC_INTERVAL_MS = 100;
+    private static final long COMPACTION_INTERVAL_MS = 5000;
+
+    private static final byte LOCAL_IDENTITY = 1;
+    private static final byte IDENTITY = 2;
+    private static final byte SESSION = 3;
+    private static final byte PREKEY = 4;
+    private static final byte SIGNED_PREKEY = 5;
+    private static final byte TOMBSTONE = (byte) 0x80;
+
+    private static final byte[] NO_KEY = new byte[0];
+
+    private final Path path;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final IdentityKeyPair identityKeyPair;
+    private final int localRegistrationId;
+
+    private volatile Log log;
+    private volatile boolean closed;
+
+    /* The last background sync or compaction that failed, until it is thrown to a caller */
+    private final AtomicReference<IOException> maintenanceFailure = new AtomicReference<>();
+
+    /* A miss is a load for an address with no session yet, which hands back an empty SessionRecord */
+    private final Counter sessionHits = Metrics.get().counter("store.log.session.hit");
+    private final Counter sessionMisses = Metrics.get().counter("store.log.session.miss");
+
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "LogSignalProtocolStore-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /*
+    * Opens (or creates) the log and records this identity in it.
+    * */
+    public LogSignalProtocolStore(File file, IdentityKeyPair identityKeyPair, int registrationId) throws IOException {
+        this.path = file.toPath();
+        this.log = Log.open(path, INITIAL_SIZE);
+        this.identityKeyPair = identityKeyPair;
+        this.localRegistrationId = registrationId;
+
+        byte[] serializedPair = identityKeyPair.serialize();
+        ByteBuffer value = ByteBuffer.allocate(4 + serializedPair.length);
+        value.putInt(registrationId).put(serializedPair);
+
+        append(LOCAL_IDENTITY, NO_KEY, value.array());
+        startMaintenance();
+    }
+
+    /*
+    * Opens a log that already holds an identity, replaying it to rebuild the index.
+    * */
+    public LogSignalProtocolStore(File file) throws IOException {
+        this.path = file.toPath();
+        this.log = Log.open(path, INITIAL_SIZE);
+
+        if (log.localIdentity < 0) {
+            log.channel.close();
+            throw new IOException("No local identity in " + file);
+        }
+
+        ByteBuffer value = ByteBuffer.wrap(log.value(log.localIdentity));
+        byte[] serializedPair = new byte[value.remaining() - 4];
+        this.localRegistrationId = value.getInt();
+        value.get(serializedPair);
+
+        try {
+            this.identityKeyPair = new IdentityKeyPair(serializedPair);
+        } catch (InvalidKeyException e) {
+            log.channel.close();
+            throw new IOException("Corrupt local identity", e);
+        }
+
+        startMaintenance();
+    }
+
+    private void startMaintenance() {
+        maintenance.scheduleWithFixedDelay(() -> {
+            try {
+                sync();
+            } catch (IOException | RuntimeException e) {
+                recordFailure(e);
+            }
+        }, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+        maintenance.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                recordFailure(e);
+            }
+        }, COMPACTION_INTERVAL_MS, COMPACTION_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void recordFailure(Exception e) {
+        maintenanceFailure.set(e instanceof IOException ? (IOException) e : new IOException(e));
+    }
+
+    /* Throws a background failure that no caller has seen yet */
+    private void throwMaintenanceFailure() throws IOException {
+        IOException failure = maintenanceFailure.getAndSet(null);
+
+        if (failure != null) {
+            throw new IOException("Background sync or compaction failed", failure);
+        }
+    }
+
+    @Override
+    public IdentityKeyPair getIdentityKeyPair() {
+        return identityKeyPair;
+    }
+
+    @Override
+    public int getLocalRegistrationId() {
+        return localRegistrationId;
+    }
+
+    @Override
+    public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
+        IdentityKey existing = getIdentity(address);
+
+        append(IDENTITY, addressKey(address), identityKey.serialize());
+
+        return existing != null && !existing.equals(identityKey);
+    }
+
+    @Override
+    public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
+        IdentityKey trusted = getIdentity(address);
+
+        return trusted == null || trusted.equals(identityKey);
+    }
+
+    @Override
+    public IdentityKey getIdentity(SignalProtocolAddress address) {
+        Log current = log;
+        Long offset = current.identities.get(address);
+
+        if (offset == null) {
+            return null;
+        }
+
+        try {
+            return new IdentityKey(current.value(offset), 0);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
+        Log current = log;
+        Long offset = current.preKeys.get(preKeyId);
+
+        if (offset == null) {
+            throw new InvalidKeyIdException("No such prekeyrecord: " + preKeyId);
+        }
+
+        try {
+            return new PreKeyRecord(current.value(offset));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public void storePreKey(int preKeyId, PreKeyRecord record) {
+        append(PREKEY, idKey(preKeyId), record.serialize());
+    }
+
+    @Override
+    public boolean containsPreKey(int preKeyId) {
+        return log.preKeys.containsKey(preKeyId);
+    }
+
+    @Override
+    public void removePreKey(int preKeyId) {
+        append((byte) (PREKEY | TOMBSTONE), idKey(preKeyId), NO_KEY);
+    }
+
+    @Override
+    public SessionRecord loadSession(SignalProtocolAddress address) {
+        Log current = log;
+        Long offset = current.sessions.get(address);
+
+        if (offset == null) {
+            sessionMisses.increment();
+            return new SessionRecord();
+        }
+
+        sessionHits.increment();
+
+        try {
+            return new SessionRecord(current.value(offset));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public List<Integer> getSubDeviceSessions(String name) {
+        List<Integer> deviceIds = new ArrayList<>();
+
+        for (SignalProtocolAddress address : log.sessions.keySet()) {
+            if (address.getName().equals(name) && address.getDeviceId() != 1) {
+                deviceIds.add(address.getDeviceId());
+            }
+        }
+
+        return deviceIds;
+    }
+
+    @Override
+    public void storeSession(SignalProtocolAddress address, SessionRecord record) {
+        append(SESSION, addressKey(address), record.serialize());
+    }
+
+    @Override
+    public boolean containsSession(SignalProtocolAddress address) {
+        return log.sessions.containsKey(address);
+    }
+
+    @Override
+    public void deleteSession(SignalProtocolAddress address) {
+        append((byte) (SESSION | TOMBSTONE), addressKey(address), NO_KEY);
+    }
+
+    @Override
+    public void deleteAllSessions(String name) {
+        for (SignalProtocolAddress address : log.sessions.keySet()) {
+            if (address.getName().equals(name)) {
+                deleteSession(address);
+            }
+        }
+    }
+
+    @Override
+    public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
+        Log current = log;
+        Long offset = current.signedPreKeys.get(signedPreKeyId);
+
+        if (offset == null) {
+            throw new InvalidKeyIdException("No such signedprekeyrecord: " + signedPreKeyId);
+        }
+
+        try {
+            return new SignedPreKeyRecord(current.value(offset));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public List<SignedPreKeyRecord> loadSignedPreKeys() {
+        Log current = log;
+        List<SignedPreKeyRecord> records = new ArrayList<>();
+
+        try {
+            for (Long offset : current.signedPreKeys.values()) {
+                records.add(new SignedPreKeyRecord(current.value(offset)));
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+
+        return records;
+    }
+
+    @Override
+    public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
+        append(SIGNED_PREKEY, idKey(signedPreKeyId), record.serialize());
+    }
+
+    @Override
+    public boolean containsSignedPreKey(int signedPreKeyId) {
+        return log.signedPreKeys.containsKey(signedPreKeyId);
+    }
+
+    @Override
+    public void removeSignedPreKey(int signedPreKeyId) {
+        append((byte) (SIGNED_PREKEY | TOMBSTONE), idKey(signedPreKeyId), NO_KEY);
+    }
+
+    /*
+    * Forces everything appended so far to disk.
+    * */
+    public void flush() throws IOException {
+        throwMaintenanceFailure();
+        sync();
+    }
+
+    private void sync() throws IOException {
+        writeLock.lock();
+        try {
+            checkOpen();
+            log.buffer.force();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        maintenance.shutdown();
+
+        try {
+            maintenance.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        writeLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+
+            log.buffer.force();
+            log.channel.close();
+        } finally {
+            writeLock.unlock();
+        }
+
+        throwMaintenanceFailure();
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Store is closed: " + path);
+        }
+    }
+
+    private void append(byte kind, byte[] key, byte[] value) {
+        byte[] body = ByteBuffer.allocate(3 + key.length + value.length)
+                .put(kind)
+                .putShort((short) key.length)
+                .put(key)
+                .put(value)
+                .array();
+
+        writeLock.lock();
+        try {
+            checkOpen();
+            throwMaintenanceFailure();
+
+            Log current = log;
+            long offset = current.append(body);
+
+            current.apply(body, offset);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /*
+    * Rewrites the live records into a fresh log when at least half of the current one is garbage. Copying the
+    * records indexed at the start runs without the write lock; only the records appended in the meantime are
+    * copied under it, right before the new file takes the old one's place.
+    * */
+    void compact() throws IOException {
+        Log old = log;
+        long snapshotEnd;
+
+        writeLock.lock();
+        try {
+            if (closed || old.end < COMPACTION_THRESHOLD || old.garbage * 2 < old.end) {
+                return;
+            }
+            snapshotEnd = old.end;
+        } finally {
+            writeLock.unlock();
+        }
+
+        Path compactedPath = path.resolveSibling(path.getFileName() + ".compact");
+        Files.deleteIfExists(compactedPath);
+
+        Log compacted = Log.open(compactedPath, (int) Math.max(INITIAL_SIZE, Math.min(Integer.MAX_VALUE, 2 * (old.end - old.garbage))));
+
+        try {
+            if (old.localIdentity >= 0) {
+                compacted.copyFrom(old, old.localIdentity);
+            }
+            copyLive(old, compacted, old.identities, snapshotEnd);
+            copyLive(old, compacted, old.sessions, snapshotEnd);
+            copyLive(old, compacted, old.preKeys, snapshotEnd);
+            copyLive(old, compacted, old.signedPreKeys, snapshotEnd);
+
+            writeLock.lock();
+            try {
+                checkOpen();
+
+                long position = snapshotEnd;
+
+                while (position < old.end) {
+                    position += compacted.copyFrom(old, position);
+                }
+
+                compacted.buffer.force();
+                Files.move(compactedPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+                log = compacted;
+                old.channel.close();
+            } finally {
+                writeLock.unlock();
+            }
+        } catch (IOException | RuntimeException e) {
+            compacted.channel.close();
+            Files.deleteIfExists(compactedPath);
+            throw e;
+        }
+    }
+
+    /*
+    * Records at or past snapshotEnd were appended after the snapshot; the tail copy picks them up in order.
+    * */
+    private static void copyLive(Log from, Log to, Map<?, Long> index, long snapshotEnd) throws IOException {
+        for (Long offset : index.values()) {
+            if (offset < snapshotEnd) {
+                to.copyFrom(from, offset);
+            }
+        }
+    }
+
+    private static byte[] addressKey(SignalProtocolAddress address) {
+        byte[] name = address.getName().getBytes(StandardCharsets.UTF_8);
+
+        return ByteBuffer.allocate(4 + name.length)
+                .putInt(address.getDeviceId())
+                .put(name)
+                .array();
+    }
+
+    private static byte[] idKey(int id) {
+        return ByteBuffer.allocate(4).putInt(id).array();
+    }
+
+    /*
+    * One log file: its mapping, where it ends, and the index of the latest record per key. Mutations happen under
+    * the store's write lock; the index maps and the buffer reference can be read without it.
+    * */
+    private static class Log {
+
+        private final FileChannel channel;
+        private volatile MappedByteBuffer buffer;
+        private long end;
+        private long garbage;
+        private volatile long localIdentity = -1;
+
+        private final ConcurrentMap<SignalProtocolAddress, Long> identities = new ConcurrentHashMap<>();
+        private final ConcurrentMap<SignalProtocolAddress, Long> sessions = new ConcurrentHashMap<>();
+        private final ConcurrentMap<Integer, Long> preKeys = new ConcurrentHashMap<>();
+        private final ConcurrentMap<Integer, Long> signedPreKeys = new ConcurrentHashMap<>();
+
+        private Log(FileChannel channel, MappedByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Log open(Path path, int initialSize) throws IOException {
+            FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            long size = Math.max(initialSize, channel.size());
+            if (size > Integer.MAX_VALUE) {
+                channel.close();
+                throw new IOException("Log is larger than a single mapping: " + path);
+            }
+
+            Log log = new Log(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            log.replay();
+
+            return log;
+        }
+
+        private void replay() {
+            int capacity = buffer.capacity();
+            int position = 0;
+
+            while (position + HEADER_LENGTH <= capacity) {
+                int length = buffer.getInt(position);
+
+                if (length == 0) {
+                    break;
+                }
+
+                if (length < 3 || length > capacity - position - HEADER_LENGTH
+                        || buffer.getInt(position + 4) != checksum(position + HEADER_LENGTH, length)) {
+                    /* A torn or corrupt tail: wipe it so new appends don't run into leftovers */
+                    for (int i = position; i < capacity; i++) {
+                        buffer.put(i, (byte) 0);
+                    }
+                    break;
+                }
+
+                byte[] body = new byte[length];
+                ByteBuffer record = buffer.duplicate();
+                record.position(position + HEADER_LENGTH);
+                record.get(body);
+
+                apply(body, position);
+                position += HEADER_LENGTH + length;
+            }
+
+            end = position;
+        }
+
+        private int checksum(int bodyOffset, int length) {
+            ByteBuffer body = buffer.duplicate();
+            body.position(bodyOffset);
+            body.limit(bodyOffset + length);
+
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            return (int) crc.getValue();
+        }
+
+        long append(byte[] body) throws IOException {
+            ensureCapacity(HEADER_LENGTH + body.length);
+
+            CRC32 crc = new CRC32();
+            crc.update(body);
+
+            int offset = (int) end;
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset + 4);
+            record.putInt((int) crc.getValue());
+            record.put(body);
+
+            /* The length goes in last: until then the record reads as the end of the log */
+            buffer.putInt(offset, body.length);
+            end += HEADER_LENGTH + body.length;
+
+            return offset;
+        }
+
+        /*
+        * Appends the raw record at offset in another log, applies it here, and returns its size.
+        * */
+        int copyFrom(Log from, long offset) throws IOException {
+            int length = from.buffer.getInt((int) offset);
+            byte[] body = new byte[length];
+
+            ByteBuffer record = from.buffer.duplicate();
+            record.position((int) offset + HEADER_LENGTH);
+            record.get(body);
+
+            apply(body, append(body));
+            return HEADER_LENGTH + length;
+        }
+
+        private void ensureCapacity(int recordLength) throws IOException {
+            long needed = end + recordLength;
+
+            if (needed > buffer.capacity()) {
+                long size = Math.max(needed, 2L * buffer.capacity());
+
+                if (size > Integer.MAX_VALUE) {
+                    size = Integer.MAX_VALUE;
+                }
+                if (needed > size) {
+                    throw new IOException("Log is full");
+                }
+
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        void apply(byte[] body, long offset) {
+            ByteBuffer parsed = ByteBuffer.wrap(body);
+            byte kind = parsed.get();
+            byte[] key = new byte[parsed.getShort() & 0xffff];
+            parsed.get(key);
+
+            boolean tombstone = (kind & TOMBSTONE) != 0;
+            Long replaced;
+
+            switch (kind & ~TOMBSTONE) {
+                case LOCAL_IDENTITY:
+                    replaced = localIdentity < 0 ? null : localIdentity;
+                    localIdentity = offset;
+                    break;
+                case IDENTITY:
+                    replaced = update(identities, address(key), offset, tombstone);
+                    break;
+                case SESSION:
+                    replaced = update(sessions, address(key), offset, tombstone);
+                    break;
+                case PREKEY:
+                    replaced = update(preKeys, ByteBuffer.wrap(key).getInt(), offset, tombstone);
+                    break;
+                case SIGNED_PREKEY:
+                    replaced = update(signedPreKeys, ByteBuffer.wrap(key).getInt(), offset, tombstone);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown record kind " + kind + " at " + offset);
+            }
+
+            if (replaced != null) {
+                garbage += HEADER_LENGTH + buffer.getInt(replaced.intValue());
+            }
+            if (tombstone) {
+                garbage += HEADER_LENGTH + body.length;
+            }
+        }
+
+        private static <K> Long update(ConcurrentMap<K, Long> index, K key, long offset, boolean tombstone) {
+            return tombstone ? index.remove(key) : index.put(key, offset);
+        }
+
+        byte[] value(long offset) {
+            ByteBuffer record = buffer.duplicate();
+            record.position((int) offset);
+
+            int length = record.getInt();
+            record.getInt();
+            record.get();
+            int keyLength = record.getShort() & 0xffff;
+            record.position(record.position() + keyLength);
+
+            byte[] value = new byte[length - 3 - keyLength];
+            record.get(value);
+            return value;
+        }
+
+        private static SignalProtocolAddress address(byte[] key) {
+            ByteBuffer parsed = ByteBuffer.wrap(key);
+            int deviceId = parsed.getInt();
+
+            return new SignalProtocolAddress(
+                    new String(key, 4, key.length - 4, StandardCharsets.UTF_8), deviceId);
+        }
+    }
+}
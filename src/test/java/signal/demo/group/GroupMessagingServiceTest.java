@@ -0,0 +1,65 @@
+package signal.demo.group;
+
+import org.junit.Test;
+import org.whispersystems.libsignal.protocol.SenderKeyDistributionMessage;
+import signal.demo.Entity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class GroupMessagingServiceTest {
+
+    private static final String GROUP_ID = "rotation-race";
+    private static final int ROTATIONS = 200;
+    private static final int ENCRYPTING_THREADS = 4;
+
+    /*
+    * An encrypt that loaded the old record must not be able to store it back over a rotation.
+    * */
+    @Test
+    public void rotationChangesKeyWhileEncrypting() throws Exception {
+        GroupMessagingService groups = new GroupMessagingService();
+        Entity sender = new Entity(1, 1, "Sender");
+        int keyId = groups.createSenderKey(sender, GROUP_ID).getId();
+
+        AtomicBoolean rotating = new AtomicBoolean(true);
+        ExecutorService encrypting = Executors.newFixedThreadPool(ENCRYPTING_THREADS);
+        List<Future<?>> encrypts = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < ENCRYPTING_THREADS; i++) {
+                encrypts.add(encrypting.submit(() -> {
+                    while (rotating.get()) {
+                        groups.encrypt(sender, GROUP_ID, new byte[]{1, 2, 3});
+                    }
+                }));
+            }
+
+            for (int i = 0; i < ROTATIONS; i++) {
+                SenderKeyDistributionMessage rotated = groups.rotateSenderKey(sender, GROUP_ID);
+
+                assertNotEquals(keyId, rotated.getId());
+                keyId = rotated.getId();
+
+                /* create returns the current key, which must still be the rotated one */
+                groups.encrypt(sender, GROUP_ID, new byte[]{4, 5, 6});
+                assertEquals(keyId, groups.createSenderKey(sender, GROUP_ID).getId());
+            }
+        } finally {
+            rotating.set(false);
+            encrypting.shutdown();
+        }
+
+        for (Future<?> encrypt : encrypts) {
+            encrypt.get(10, TimeUnit.SECONDS);
+        }
+    }
+}